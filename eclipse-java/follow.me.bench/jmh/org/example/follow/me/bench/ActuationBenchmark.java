@@ -0,0 +1,100 @@
+package org.example.follow.me.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.example.follow.me.FollowMeImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+
+/**
+ * Measure the time a room takes to be actuated when its lights are slow to
+ * answer. The presence of one room is toggled and waited for up to the end of
+ * its commands. The commands of a room are sent in sequence (timeout at 0) or
+ * at the same time, optionally with one light of each room not answering
+ * before the timeout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ActuationBenchmark {
+
+	private static final int BINARY_LIGHTS = 4;
+
+	private static final int DIMMER_LIGHTS = 2;
+
+	/** The delay of the light not answering, as a multiple of the timeout */
+	private static final int HUNG_FACTOR = 20;
+
+	private static final long TIMEOUT = 60000L;
+
+	@Param({ "4", "100" })
+	public int zones;
+
+	/** The time each command takes, in milliseconds */
+	@Param({ "5" })
+	public long commandDelay;
+
+	/** The actuation.timeout, 0 to send the commands in sequence */
+	@Param({ "0", "100" })
+	public long timeout;
+
+	/** Whether one light of each room does not answer before the timeout */
+	@Param({ "false", "true" })
+	public boolean hung;
+
+	private InMemoryHouse house;
+
+	private int iteration;
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException {
+		house = InMemoryHouse.withZones(zones, BINARY_LIGHTS, DIMMER_LIGHTS);
+		house.setCommandDelay(TimeUnit.MILLISECONDS.toNanos(commandDelay));
+		FollowMeImpl followMe = house.getFollowMe();
+		followMe.setActuationTimeout(Long.toString(timeout));
+		// every light of an occupied room is turned on
+		followMe.setMaximumNumberOfLightsToTurnOn(BINARY_LIGHTS + DIMMER_LIGHTS);
+		followMe.setMaximumAllowedEnergyInRoom((BINARY_LIGHTS + DIMMER_LIGHTS) * InMemoryHouse.LIGHT_MAX_POWER);
+		followMe.setTargetedIlluminance(1.0e6d);
+		if (hung) {
+			// without timeout, a hung light is as long as the timeout of 100 ms
+			long hungDelay = HUNG_FACTOR * Math.max(timeout, 100L);
+			List<GenericDevice> lights = house.getLights();
+			for (int i = 0; i < zones; i++) {
+				InMemoryDevice.of(lights.get(i * BINARY_LIGHTS)).setCommandDelay(
+						TimeUnit.MILLISECONDS.toNanos(hungDelay));
+			}
+		}
+		house.start();
+		house.awaitIdle(TIMEOUT);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		house.stop();
+	}
+
+	@Benchmark
+	public boolean roomActuation() throws InterruptedException {
+		int i = iteration++;
+		house.setPresence(house.getZones().get(i % zones), (i / zones) % 2 == 0);
+		return house.awaitIdle(TIMEOUT);
+	}
+}
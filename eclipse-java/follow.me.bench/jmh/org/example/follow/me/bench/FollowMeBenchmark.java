@@ -0,0 +1,159 @@
+package org.example.follow.me.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.example.follow.me.FollowMeHarness;
+import org.example.follow.me.manager.EnergyGoal;
+import org.example.follow.me.manager.FollowMeAdministration;
+import org.example.follow.me.manager.IlluminanceGoal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The baseline benchmark of the Follow Me application, run headless against
+ * in-memory houses of increasing size. It measures the cost of the
+ * devicePropertyModified callback alone and up to the end of the room
+ * evaluation, the cost of a personMoved event, and the administration setters
+ * of the manager, each goal change re-evaluating the rooms, and the update of
+ * the preferences of every person one by one or in bulk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FollowMeBenchmark {
+
+	private static final long TIMEOUT = 60000L;
+
+	private static final IlluminanceGoal[] ILLUMINANCE_GOALS = IlluminanceGoal.values();
+
+	private static final EnergyGoal[] ENERGY_GOALS = EnergyGoal.values();
+
+	@Param({ "4", "100", "1000", "10000" })
+	public int zones;
+
+	private InMemoryHouse house;
+
+	private FollowMeAdministration manager;
+
+	private int numberOfPersons;
+
+	/** The preferences of every person, one map per goal */
+	private List<Map<String, IlluminanceGoal>> bulkPreferences;
+
+	private int iteration;
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException {
+		house = InMemoryHouse.withZones(zones, 2, 1);
+		numberOfPersons = Math.max(1, zones / 4);
+		for (int i = 0; i < numberOfPersons; i++) {
+			house.addPerson("person-" + i, house.getZones().get((i * 4) % zones));
+		}
+		house.start();
+		house.awaitIdle(TIMEOUT);
+		manager = (FollowMeAdministration) FollowMeHarness
+				.newComponent("org.example.follow.me.manager.impl.FollowMeManagerImpl");
+		FollowMeHarness.inject(manager, "FollowMeConfiguration", house.getFollowMe());
+		FollowMeHarness.inject(manager, "PreferencesService", house.getPreferences().getService());
+		bulkPreferences = new ArrayList<Map<String, IlluminanceGoal>>();
+		for (IlluminanceGoal illuminanceGoal : ILLUMINANCE_GOALS) {
+			Map<String, IlluminanceGoal> preferences = new HashMap<String, IlluminanceGoal>();
+			for (int i = 0; i < numberOfPersons; i++) {
+				preferences.put("person-" + i, illuminanceGoal);
+			}
+			bulkPreferences.add(preferences);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		house.stop();
+	}
+
+	/**
+	 * The rooms marked dirty by the callbacks alone are evaluated between the
+	 * iterations, outside of the measure.
+	 */
+	@TearDown(Level.Iteration)
+	public void awaitIdle() throws InterruptedException {
+		house.awaitIdle(TIMEOUT);
+	}
+
+	private void togglePresence() {
+		int i = iteration++;
+		house.setPresence(house.getZones().get(i % zones), (i / zones) % 2 == 0);
+	}
+
+	@Benchmark
+	public int devicePropertyModifiedCallbackOnly() {
+		togglePresence();
+		return iteration;
+	}
+
+	@Benchmark
+	public boolean devicePropertyModifiedUpToActuation() throws InterruptedException {
+		togglePresence();
+		return house.awaitIdle(TIMEOUT);
+	}
+
+	@Benchmark
+	public boolean personMovedUpToActuation() throws InterruptedException {
+		int i = iteration++;
+		house.movePerson("person-" + (i % numberOfPersons), house.getZones().get((i * 7) % zones));
+		return house.awaitIdle(TIMEOUT);
+	}
+
+	@Benchmark
+	public boolean managerSetters() throws InterruptedException {
+		int i = iteration++;
+		manager.setIlluminancePreference(ILLUMINANCE_GOALS[i % ILLUMINANCE_GOALS.length]);
+		manager.setEnergySavingGoal(ENERGY_GOALS[i % ENERGY_GOALS.length]);
+		return house.awaitIdle(TIMEOUT);
+	}
+
+	@Benchmark
+	public boolean managerSetGoals() throws InterruptedException {
+		int i = iteration++;
+		manager.setGoals(ILLUMINANCE_GOALS[i % ILLUMINANCE_GOALS.length], ENERGY_GOALS[i % ENERGY_GOALS.length]);
+		return house.awaitIdle(TIMEOUT);
+	}
+
+	/**
+	 * The preference of every person, one call each.
+	 */
+	@Benchmark
+	public boolean managerSetUserPreference() throws InterruptedException {
+		IlluminanceGoal illuminanceGoal = ILLUMINANCE_GOALS[iteration++ % ILLUMINANCE_GOALS.length];
+		for (int i = 0; i < numberOfPersons; i++) {
+			manager.setUserPreference("person-" + i, illuminanceGoal);
+		}
+		return house.awaitIdle(TIMEOUT);
+	}
+
+	/**
+	 * The preference of every person, in one call.
+	 */
+	@Benchmark
+	public boolean managerSetUserPreferences() throws InterruptedException {
+		manager.setUserPreferences(bulkPreferences.get(iteration++ % bulkPreferences.size()));
+		return house.awaitIdle(TIMEOUT);
+	}
+}
@@ -0,0 +1,93 @@
+package org.example.follow.me.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure many houses sharing one process: each house has its own Follow Me
+ * instance, set with its house.id, and its own in-memory devices, and all the
+ * instances share the worker shards and the timer wheel of the engine. Each
+ * operation sends a batch of presence changes to random rooms of random
+ * houses, up to the end of their actuations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgs = { "-Xmx2g" })
+public class MultiHouseBenchmark {
+
+	private static final int BATCH = 1000;
+
+	private static final long TIMEOUT = 60000L;
+
+	@Param({ "1", "100", "1000" })
+	public int houses;
+
+	@Param({ "20" })
+	public int zonesPerHouse;
+
+	private final List<InMemoryHouse> inMemoryHouses = new ArrayList<InMemoryHouse>();
+
+	private boolean[][] presence;
+
+	private final Random random = new Random(42L);
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException {
+		for (int i = 0; i < houses; i++) {
+			InMemoryHouse house = InMemoryHouse.withZones(zonesPerHouse, 2, 1);
+			house.getFollowMe().setHouseId("house-" + i);
+			inMemoryHouses.add(house);
+		}
+		for (InMemoryHouse house : inMemoryHouses) {
+			house.start();
+		}
+		awaitIdle();
+		presence = new boolean[houses][zonesPerHouse];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (InMemoryHouse house : inMemoryHouses) {
+			house.stop();
+		}
+	}
+
+	private void awaitIdle() throws InterruptedException {
+		for (InMemoryHouse house : inMemoryHouses) {
+			house.awaitIdle(TIMEOUT);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void presenceChangesUpToActuation() throws InterruptedException {
+		for (int i = 0; i < BATCH; i++) {
+			int house = random.nextInt(houses);
+			int zone = random.nextInt(zonesPerHouse);
+			presence[house][zone] = !presence[house][zone];
+			InMemoryHouse inMemoryHouse = inMemoryHouses.get(house);
+			inMemoryHouse.setPresence(inMemoryHouse.getZones().get(zone), presence[house][zone]);
+		}
+		awaitIdle();
+	}
+}
@@ -0,0 +1,100 @@
+package org.example.follow.me.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the presence debounce against noisy sensors: each operation sends a
+ * short pulse to the sensor of the next room, shorter than the debounce. The
+ * same house is run without debounce and with a debounce of 50 ms and a
+ * hold-off of 500 ms; the commands sent to the lights by the pulses are
+ * counted next to the time spent in the callbacks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PresenceNoiseBenchmark {
+
+	private static final long TIMEOUT = 60000L;
+
+	@Param({ "4", "100", "1000", "10000" })
+	public int zones;
+
+	/** The presence.debounce and presence.hold, in milliseconds */
+	@Param({ "0:0", "50:500" })
+	public String times;
+
+	private InMemoryHouse house;
+
+	private List<String> locations;
+
+	private int iteration;
+
+	/**
+	 * The commands sent to the lights during the iteration, the pending
+	 * timers being expired at its end
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Commands {
+
+		public long commands;
+
+		private long before;
+
+		@Setup(Level.Iteration)
+		public void setUp(PresenceNoiseBenchmark benchmark) {
+			before = benchmark.house.getCommands();
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown(PresenceNoiseBenchmark benchmark) throws InterruptedException {
+			String[] delays = benchmark.times.split(":");
+			Thread.sleep(Long.parseLong(delays[0]) + Long.parseLong(delays[1]));
+			benchmark.house.awaitIdle(TIMEOUT);
+			commands = benchmark.house.getCommands() - before;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException {
+		String[] delays = times.split(":");
+		house = InMemoryHouse.withZones(zones, 2, 1);
+		house.getFollowMe().setPresenceDebounce(delays[0]);
+		house.getFollowMe().setPresenceHold(delays[1]);
+		house.start();
+		house.awaitIdle(TIMEOUT);
+		locations = house.getZones();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		house.stop();
+	}
+
+	@Benchmark
+	public int pulse(Commands commands) {
+		String location = locations.get(iteration++ % zones);
+		house.setPresence(location, true);
+		house.setPresence(location, false);
+		return iteration;
+	}
+}
@@ -0,0 +1,78 @@
+package org.example.follow.me.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.example.follow.me.FollowMeImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure a full-house reconciliation with an increasing parallelism. Every
+ * room is occupied and each operation changes the targeted illuminance, which
+ * reconciles the whole house: every room has a light to change, and the
+ * lights take a simulated time to actuate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ReconcileBenchmark {
+
+	/** The two targeted illuminances, the second lighting one more light */
+	private static final double[] TARGETED_ILLUMINANCES = { 50.0d, 3000.0d };
+
+	private static final long TIMEOUT = 60000L;
+
+	@Param({ "4", "100", "1000", "10000" })
+	public int zones;
+
+	@Param({ "1", "2", "4" })
+	public int parallelism;
+
+	/** The time each command takes, in nanoseconds */
+	@Param({ "20000" })
+	public long commandDelay;
+
+	private InMemoryHouse house;
+
+	private FollowMeImpl followMe;
+
+	private int iteration;
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException {
+		house = InMemoryHouse.withZones(zones, 1, 1);
+		followMe = house.getFollowMe();
+		followMe.setReconcileParallelism(Integer.toString(parallelism));
+		house.start();
+		for (String zone : house.getZones()) {
+			house.setPresence(zone, true);
+		}
+		house.awaitIdle(TIMEOUT);
+		house.setCommandDelay(commandDelay);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		house.stop();
+	}
+
+	@Benchmark
+	public long reconcile() {
+		followMe.setTargetedIlluminance(TARGETED_ILLUMINANCES[iteration++ % TARGETED_ILLUMINANCES.length]);
+		return house.getCommands();
+	}
+}
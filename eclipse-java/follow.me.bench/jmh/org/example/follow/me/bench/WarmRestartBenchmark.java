@@ -0,0 +1,109 @@
+package org.example.follow.me.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.example.follow.me.FollowMeImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the restart of the component in a running house: before each
+ * restart the component is stopped, which saves its snapshot, and replaced by
+ * a new instance, then started without or with the snapshot. Every fourth
+ * room is occupied and the lights are already in their state, as they are
+ * when only the bundle restarts; the lights take a simulated time to answer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(2)
+public class WarmRestartBenchmark {
+
+	private static final long COMMAND_DELAY = 20000L;
+
+	private static final long TIMEOUT = 60000L;
+
+	@Param({ "4", "100", "1000", "10000" })
+	public int zones;
+
+	private InMemoryHouse house;
+
+	private File snapshot;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		snapshot = File.createTempFile("follow.me", ".snapshot");
+		snapshot.delete();
+		house = InMemoryHouse.withZones(zones, 2, 1);
+		for (int i = 0; i < zones; i += 4) {
+			String person = "person-" + i;
+			house.getPreferences().getService().setUserPropertyValue(person, FollowMeImpl.USER_PROP_ILLUMINANCE,
+					FollowMeImpl.USER_PROP_ILLUMINANCE_VALUE_MEDIUM);
+			house.addPerson(person, house.getZones().get(i));
+		}
+		house.getFollowMe().setSnapshotFile(snapshot.getPath());
+		house.start();
+		house.awaitIdle(TIMEOUT);
+		house.setCommandDelay(COMMAND_DELAY);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		house.stop();
+		snapshot.delete();
+	}
+
+	/**
+	 * Stop the running component, saving its snapshot, and replace it.
+	 */
+	private void replaceComponent(boolean withSnapshot) {
+		house.getFollowMe().setSnapshotFile(snapshot.getPath());
+		house.replaceComponent();
+		if (withSnapshot) {
+			house.getFollowMe().setSnapshotFile(snapshot.getPath());
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Cold {
+		@Setup(Level.Invocation)
+		public void replaceComponent(WarmRestartBenchmark benchmark) {
+			benchmark.replaceComponent(false);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Warm {
+		@Setup(Level.Invocation)
+		public void replaceComponent(WarmRestartBenchmark benchmark) {
+			benchmark.replaceComponent(true);
+		}
+	}
+
+	@Benchmark
+	public boolean startWithoutSnapshot(Cold cold) throws InterruptedException {
+		house.start();
+		return house.awaitIdle(TIMEOUT);
+	}
+
+	@Benchmark
+	public boolean startWithSnapshot(Warm warm) throws InterruptedException {
+		house.start();
+		return house.awaitIdle(TIMEOUT);
+	}
+}
@@ -0,0 +1,91 @@
+package org.example.follow.me.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.example.follow.me.FollowMeHarness;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * Measure how the evaluations scale with the number of rooms when several
+ * threads evaluate rooms at the same time. Each thread keeps toggling the
+ * presence of its room and evaluates it directly, the workers of the engine
+ * evaluating it too; the lights take a simulated time to actuate, so a shared
+ * lock would serialize all the rooms while per-zone locks let distinct rooms
+ * progress in parallel. The number of threads is set by -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class ZoneContentionBenchmark {
+
+	@Param({ "1", "2", "4", "8" })
+	public int rooms;
+
+	/** The time each command takes, in nanoseconds */
+	@Param({ "20000" })
+	public long commandDelay;
+
+	private InMemoryHouse house;
+
+	/** The number of threads which have taken a room */
+	private final AtomicInteger threads = new AtomicInteger();
+
+	/**
+	 * The room of a thread and the presence it sets next
+	 */
+	@State(Scope.Thread)
+	public static class Room {
+
+		private String location;
+
+		private PresenceSensor sensor;
+
+		private boolean presence;
+
+		@Setup(Level.Trial)
+		public void setUp(ZoneContentionBenchmark benchmark) {
+			location = benchmark.house.getZones().get(benchmark.threads.getAndIncrement() % benchmark.rooms);
+			sensor = benchmark.house.getPresenceSensors(location).get(0);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		house = InMemoryHouse.withZones(rooms, 1, 1);
+		house.setCommandDelay(commandDelay);
+		house.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		house.stop();
+	}
+
+	@Benchmark
+	public boolean evaluate(Room room) {
+		room.presence = !room.presence;
+		InMemoryDevice.of(room.sensor).setProperty(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE, room.presence);
+		FollowMeHarness.evaluateNow(house.getFollowMe(), room.location);
+		return room.presence;
+	}
+}
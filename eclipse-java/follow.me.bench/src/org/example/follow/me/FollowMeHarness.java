@@ -0,0 +1,64 @@
+package org.example.follow.me;
+
+import java.lang.reflect.Field;
+
+/**
+ * The FollowMeHarness gives the headless benchmarks access to the components
+ * without the iPOJO runtime: it injects the dependency fields as iPOJO would,
+ * and exposes the package-private hooks of FollowMeImpl.
+ */
+public final class FollowMeHarness {
+
+	private FollowMeHarness() {
+	}
+
+	/**
+	 * Instantiate a component from its class name.
+	 * 
+	 * @param className
+	 *            : the implementation class of the component
+	 * @return the new component
+	 */
+	public static Object newComponent(String className) {
+		try {
+			return Class.forName(className).newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot instantiate " + className, e);
+		}
+	}
+
+	/**
+	 * Set a dependency field of a component, as iPOJO does.
+	 * 
+	 * @param component
+	 *            : the component
+	 * @param fieldName
+	 *            : the name of the field
+	 * @param value
+	 *            : the injected value
+	 */
+	public static void inject(Object component, String fieldName, Object value) {
+		Class<?> type = component.getClass();
+		while (type != null) {
+			try {
+				Field field = type.getDeclaredField(fieldName);
+				field.setAccessible(true);
+				field.set(component, value);
+				return;
+			} catch (NoSuchFieldException e) {
+				type = type.getSuperclass();
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException("Cannot inject " + fieldName, e);
+			}
+		}
+		throw new IllegalArgumentException("No field " + fieldName + " in " + component.getClass());
+	}
+
+	public static boolean awaitQuiescence(FollowMeImpl followMe, long timeoutMillis) throws InterruptedException {
+		return followMe.awaitQuiescence(timeoutMillis);
+	}
+
+	public static void evaluateNow(FollowMeImpl followMe, String location) {
+		followMe.evaluateNow(location);
+	}
+}
@@ -0,0 +1,352 @@
+package org.example.follow.me.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.example.follow.me.FollowMeImpl;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+import fr.liglab.adele.icasa.simulator.Person;
+
+/**
+ * Replay an iCasa behavior script (.bhv) against an in-memory house, without
+ * the OSGi platform. The zones, devices and persons of the script are created
+ * and moved as the simulator would, either as fast as possible or following
+ * the delays of the script at a chosen clock factor. Random moves of the
+ * persons can be added after the script to load the house.
+ * 
+ * The events are sent one after the other without waiting for the component,
+ * which reacts on its own threads; the events per second count the whole
+ * replay up to the end of the last actuation. Each change of the presence of
+ * a room is stamped when its event is sent, and the lights stamp the end of
+ * each actuation: the latency is the time from the oldest change of a room
+ * not actuated yet to the first actuation of a light of the room (p50 and
+ * p99). A change undone before any actuation, as a person crossing a room, is
+ * not measured.
+ * 
+ * Usage: BehaviorReplay script.bhv [--factor N | --fast] [--random-moves N]
+ */
+public class BehaviorReplay {
+
+	private static final long TIMEOUT = 60000L;
+
+	private final InMemoryHouse house = new InMemoryHouse();
+
+	/** The devices of the script, by id */
+	private final Map<String, GenericDevice> devices = new HashMap<String, GenericDevice>();
+
+	/** The persons of the script */
+	private final List<String> persons = new ArrayList<String>();
+
+	/** The clock factor; 0 replays as fast as possible */
+	private final double factor;
+
+	/**
+	 * A change of the presence of a room waiting for the actuation of its
+	 * lights
+	 */
+	private static final class PresenceChange {
+		/** The time the event was sent, in nanoseconds */
+		private final long start;
+
+		/** The presence of the room before the change */
+		private final boolean presenceBefore;
+
+		PresenceChange(long start, boolean presenceBefore) {
+			this.start = start;
+			this.presenceBefore = presenceBefore;
+		}
+	}
+
+	/** The changes not actuated yet, by room */
+	private final ConcurrentMap<String, PresenceChange> pendingChanges = new ConcurrentHashMap<String, PresenceChange>();
+
+	/**
+	 * The time from each change of presence to the first actuation of its
+	 * room, in nanoseconds, guarded by this
+	 */
+	private long[] latencies = new long[1024];
+
+	private int numberOfLatencies;
+
+	/** The number of events sent */
+	private int numberOfEvents;
+
+	/** The time spent waiting for the delays of the script, in nanoseconds */
+	private long delayTime;
+
+	public BehaviorReplay(double factor) {
+		this.factor = factor;
+		house.setCommandListener(new InMemoryDevice.CommandListener() {
+			@Override
+			public void commanded(GenericDevice device, long time) {
+				Object zone = InMemoryDevice.of(device).getProperty(FollowMeImpl.LOCATION_PROPERTY_NAME);
+				PresenceChange change = zone == null ? null : pendingChanges.remove(zone);
+				if (change != null) {
+					record(time - change.start);
+				}
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("Usage: BehaviorReplay script.bhv [--factor N | --fast] [--random-moves N]");
+			return;
+		}
+		BehaviorScript script = BehaviorScript.parse(new File(args[0]));
+		double factor = script.getFactor();
+		int randomMoves = 0;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--fast")) {
+				factor = 0.0d;
+			} else if (args[i].equals("--factor")) {
+				factor = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--random-moves")) {
+				randomMoves = Integer.parseInt(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Invalid option !" + args[i]);
+			}
+		}
+		BehaviorReplay replay = new BehaviorReplay(factor);
+		long start = System.nanoTime();
+		replay.replay(script);
+		replay.randomMoves(randomMoves, new Random(42));
+		replay.house.awaitIdle(TIMEOUT);
+		long elapsed = System.nanoTime() - start;
+		replay.house.stop();
+		replay.report(elapsed);
+	}
+
+	/**
+	 * Replay the actions of a script.
+	 */
+	public void replay(BehaviorScript script) throws InterruptedException {
+		house.start();
+		for (BehaviorScript.Action action : script.getActions()) {
+			replay(action);
+		}
+	}
+
+	private void replay(BehaviorScript.Action action) throws InterruptedException {
+		long start = System.nanoTime();
+		switch (action.getName()) {
+		case "create-zone":
+			house.addZone(action.get("id"));
+			return;
+		case "create-device":
+			createDevice(action.get("id"), action.get("type"));
+			break;
+		case "remove-device":
+			house.removeDevice(device(action.get("deviceId")));
+			devices.remove(action.get("deviceId"));
+			break;
+		case "move-device-zone": {
+			GenericDevice device = device(action.get("deviceId"));
+			String oldZone = locationOf(device);
+			String newZone = action.get("zoneId");
+			boolean[] before = { isPresent(oldZone), isPresent(newZone) };
+			house.moveDevice(device, newZone);
+			if (device instanceof PresenceSensor) {
+				presenceChanged(oldZone, before[0], start);
+				presenceChanged(newZone, before[1], start);
+			} else {
+				// a new layout, not a change of presence
+				pendingChanges.remove(newZone);
+			}
+			break;
+		}
+		case "create-person": {
+			String zone = action.get("zoneId", null);
+			boolean before = isPresent(zone);
+			persons.add(action.get("id"));
+			house.addPerson(action.get("id"), zone);
+			presenceChanged(zone, before, start);
+			break;
+		}
+		case "move-person-zone":
+			movePerson(action.get("personId"), action.get("zoneId"), start);
+			break;
+		case "remove-person": {
+			String zone = zoneOf(action.get("personId"));
+			boolean before = isPresent(zone);
+			persons.remove(action.get("personId"));
+			house.removePerson(action.get("personId"));
+			presenceChanged(zone, before, start);
+			break;
+		}
+		case "delay":
+			delay(action);
+			return;
+		default:
+			// zone variables and the other simulator actions do not concern
+			// the application
+			return;
+		}
+		numberOfEvents++;
+	}
+
+	private void movePerson(String person, String newZone, long start) {
+		String oldZone = zoneOf(person);
+		boolean[] before = { isPresent(oldZone), isPresent(newZone) };
+		house.movePerson(person, newZone);
+		presenceChanged(oldZone, before[0], start);
+		presenceChanged(newZone, before[1], start);
+	}
+
+	private String zoneOf(String person) {
+		Person standIn = house.getPerson(person);
+		return standIn == null ? null : standIn.getLocation();
+	}
+
+	private static String locationOf(GenericDevice device) {
+		Object location = InMemoryDevice.of(device).getProperty(FollowMeImpl.LOCATION_PROPERTY_NAME);
+		return location == null ? null : location.toString();
+	}
+
+	/**
+	 * Tell whether a presence sensor of a zone senses someone.
+	 */
+	private boolean isPresent(String zone) {
+		List<PresenceSensor> sensors = zone == null ? null : house.getPresenceSensors(zone);
+		if (sensors != null) {
+			for (PresenceSensor sensor : sensors) {
+				if (Boolean.TRUE.equals(InMemoryDevice.of(sensor).getProperty(
+						PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stamp the change of the presence of a zone made by an event, keeping
+	 * the oldest change not actuated yet; a change undone before being
+	 * actuated is forgotten.
+	 *
+	 * @param zone
+	 *            : the zone, may be null
+	 * @param before
+	 *            : its presence before the event
+	 * @param start
+	 *            : the time the event was sent
+	 */
+	private void presenceChanged(String zone, boolean before, long start) {
+		if (zone == null) {
+			return;
+		}
+		boolean after = isPresent(zone);
+		PresenceChange pending = pendingChanges.get(zone);
+		if (pending == null) {
+			if (after != before) {
+				pendingChanges.putIfAbsent(zone, new PresenceChange(start, before));
+			}
+		} else if (after == pending.presenceBefore) {
+			pendingChanges.remove(zone, pending);
+		}
+	}
+
+	private void createDevice(String id, String type) {
+		GenericDevice device;
+		switch (type) {
+		case "iCasa.BinaryLight":
+			device = house.addBinaryLight(id, FollowMeImpl.LOCATION_UNKNOWN);
+			break;
+		case "iCasa.DimmerLight":
+			device = house.addDimmerLight(id, FollowMeImpl.LOCATION_UNKNOWN);
+			break;
+		case "iCasa.PresenceSensor":
+			device = house.addPresenceSensor(id, FollowMeImpl.LOCATION_UNKNOWN);
+			break;
+		default:
+			return;
+		}
+		devices.put(id, device);
+	}
+
+	private GenericDevice device(String id) {
+		GenericDevice device = devices.get(id);
+		if (device == null) {
+			throw new IllegalArgumentException("Unknown device !" + id);
+		}
+		return device;
+	}
+
+	/**
+	 * Wait for a delay of the script, scaled by the clock factor.
+	 */
+	private void delay(BehaviorScript.Action action) throws InterruptedException {
+		if (factor <= 0.0d) {
+			return;
+		}
+		double value = Double.parseDouble(action.get("value"));
+		String unit = action.get("unit", "s");
+		double seconds;
+		switch (unit) {
+		case "h":
+			seconds = value * 3600.0d;
+			break;
+		case "m":
+			seconds = value * 60.0d;
+			break;
+		default:
+			seconds = value;
+		}
+		long start = System.nanoTime();
+		Thread.sleep((long) (seconds * 1000.0d / factor));
+		delayTime += System.nanoTime() - start;
+	}
+
+	/**
+	 * Move random persons to random zones, after the script.
+	 */
+	public void randomMoves(int numberOfMoves, Random random) {
+		List<String> zones = new ArrayList<String>(house.getZones());
+		zones.remove(FollowMeImpl.LOCATION_UNKNOWN);
+		if (persons.isEmpty() || zones.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < numberOfMoves; i++) {
+			movePerson(persons.get(random.nextInt(persons.size())), zones.get(random.nextInt(zones.size())),
+					System.nanoTime());
+			numberOfEvents++;
+		}
+	}
+
+	private synchronized void record(long latency) {
+		if (numberOfLatencies == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[numberOfLatencies++] = latency;
+	}
+
+	private synchronized void report(long elapsed) {
+		long[] sorted = Arrays.copyOf(latencies, numberOfLatencies);
+		Arrays.sort(sorted);
+		double seconds = (elapsed - delayTime) / 1.0e9d;
+		System.out.println(String.format("%d events in %.3f s (delays excluded): %.0f events/s", numberOfEvents,
+				seconds, numberOfEvents / seconds));
+		if (numberOfLatencies > 0) {
+			System.out.println(String.format(
+					"presence change to actuation: %d changes, p50 %.1f us, p99 %.1f us, max %.1f us",
+					numberOfLatencies, percentile(sorted, 0.50d) / 1000.0d, percentile(sorted, 0.99d) / 1000.0d,
+					sorted[sorted.length - 1] / 1000.0d));
+		}
+		System.out.println(pendingChanges.size() + " changes of presence without actuation");
+		System.out.println(house.getCommands() + " commands sent to the lights");
+	}
+
+	private static long percentile(long[] sorted, double rank) {
+		int index = (int) Math.ceil(rank * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
@@ -0,0 +1,111 @@
+package org.example.follow.me.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A parsed iCasa behavior script (.bhv): the clock factor of the script and
+ * its actions, in order, each with its attributes.
+ */
+public class BehaviorScript {
+
+	/**
+	 * An action of the script, such as create-zone or move-person-zone
+	 */
+	public static class Action {
+		private final String name;
+		private final Map<String, String> attributes;
+
+		Action(String name, Map<String, String> attributes) {
+			this.name = name;
+			this.attributes = attributes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String get(String attribute) {
+			String value = attributes.get(attribute);
+			if (value == null) {
+				throw new IllegalArgumentException("Missing attribute " + attribute + " in " + name);
+			}
+			return value;
+		}
+
+		public String get(String attribute, String defaultValue) {
+			String value = attributes.get(attribute);
+			return value == null ? defaultValue : value;
+		}
+
+		@Override
+		public String toString() {
+			return name + attributes;
+		}
+	}
+
+	private final double factor;
+
+	private final List<Action> actions;
+
+	private BehaviorScript(double factor, List<Action> actions) {
+		this.factor = factor;
+		this.actions = actions;
+	}
+
+	/**
+	 * Parse a behavior script.
+	 * 
+	 * @param file
+	 *            : the .bhv file
+	 * @return the parsed script
+	 */
+	public static BehaviorScript parse(File file) throws Exception {
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+		Element behavior = document.getDocumentElement();
+		double factor = 1.0d;
+		if (behavior.hasAttribute("factor")) {
+			factor = Double.parseDouble(behavior.getAttribute("factor"));
+		}
+		List<Action> actions = new ArrayList<Action>();
+		NodeList children = behavior.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			Map<String, String> attributes = new HashMap<String, String>();
+			NamedNodeMap nodeAttributes = child.getAttributes();
+			for (int j = 0; j < nodeAttributes.getLength(); j++) {
+				Node attribute = nodeAttributes.item(j);
+				attributes.put(attribute.getNodeName(), attribute.getNodeValue());
+			}
+			actions.add(new Action(child.getNodeName(), attributes));
+		}
+		return new BehaviorScript(factor, Collections.unmodifiableList(actions));
+	}
+
+	/**
+	 * Return the clock factor of the script: the number of simulated seconds
+	 * per real second.
+	 */
+	public double getFactor() {
+		return factor;
+	}
+
+	public List<Action> getActions() {
+		return actions;
+	}
+}
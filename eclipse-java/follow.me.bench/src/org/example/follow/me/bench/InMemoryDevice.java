@@ -0,0 +1,256 @@
+package org.example.follow.me.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.example.follow.me.FollowMeImpl;
+
+import fr.liglab.adele.icasa.device.DeviceListener;
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * An in-memory stand-in for the iCasa devices. The device interface is
+ * implemented by a dynamic proxy: properties are kept in a map, and every
+ * change of a property is notified to the device listeners as the iCasa
+ * simulator does. Actuations are counted and can be slowed down to simulate a
+ * remote device.
+ */
+public class InMemoryDevice implements InvocationHandler {
+
+	/**
+	 * Receives the actuations of the devices, stamped when they end
+	 */
+	public interface CommandListener {
+		/**
+		 * @param device
+		 *            : the device actuated
+		 * @param time
+		 *            : the end of the actuation, as given by System.nanoTime()
+		 */
+		void commanded(GenericDevice device, long time);
+	}
+
+	private final String serialNumber;
+
+	private final Map<String, Object> properties = new ConcurrentHashMap<String, Object>();
+
+	private final List<DeviceListener> listeners = new CopyOnWriteArrayList<DeviceListener>();
+
+	/** The number of actuations received */
+	private final AtomicLong commands = new AtomicLong();
+
+	/** The time of the last actuation, in nanoseconds */
+	private volatile long lastCommandTime;
+
+	/** The simulated duration of an actuation, in nanoseconds */
+	private volatile long commandDelay;
+
+	/** The listener of the actuations, may be null */
+	private volatile CommandListener commandListener;
+
+	private GenericDevice device;
+
+	private InMemoryDevice(String serialNumber) {
+		this.serialNumber = serialNumber;
+		properties.put(FollowMeImpl.LOCATION_PROPERTY_NAME, FollowMeImpl.LOCATION_UNKNOWN);
+	}
+
+	private static <T extends GenericDevice> T newDevice(Class<T> type, InMemoryDevice handler) {
+		T device = type.cast(Proxy.newProxyInstance(InMemoryDevice.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+		handler.device = device;
+		return device;
+	}
+
+	public static BinaryLight newBinaryLight(String serialNumber, double maxPowerLevel) {
+		InMemoryDevice handler = new InMemoryDevice(serialNumber);
+		handler.properties.put(BinaryLight.BINARY_LIGHT_POWER_STATUS, Boolean.FALSE);
+		handler.properties.put(BinaryLight.BINARY_LIGHT_MAX_POWER_LEVEL, maxPowerLevel);
+		return newDevice(BinaryLight.class, handler);
+	}
+
+	public static DimmerLight newDimmerLight(String serialNumber, double maxPowerLevel) {
+		InMemoryDevice handler = new InMemoryDevice(serialNumber);
+		handler.properties.put(DimmerLight.DIMMER_LIGHT_POWER_LEVEL, 0.0d);
+		handler.properties.put(DimmerLight.DIMMER_LIGHT_MAX_POWER_LEVEL, maxPowerLevel);
+		return newDevice(DimmerLight.class, handler);
+	}
+
+	public static PresenceSensor newPresenceSensor(String serialNumber) {
+		InMemoryDevice handler = new InMemoryDevice(serialNumber);
+		handler.properties.put(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE, Boolean.FALSE);
+		return newDevice(PresenceSensor.class, handler);
+	}
+
+	/**
+	 * Return the stand-in behind a device proxy.
+	 */
+	public static InMemoryDevice of(GenericDevice device) {
+		return (InMemoryDevice) Proxy.getInvocationHandler(device);
+	}
+
+	public GenericDevice getDevice() {
+		return device;
+	}
+
+	public Object getProperty(String name) {
+		return properties.get(name);
+	}
+
+	/**
+	 * Change a property and notify the listeners if its value has changed.
+	 */
+	public void setProperty(String name, Object value) {
+		Object oldValue = properties.put(name, value);
+		if (value.equals(oldValue)) {
+			return;
+		}
+		notifyPropertyModified(name, oldValue, value);
+	}
+
+	// the iCasa listeners are registered raw, whatever their type of device
+	@SuppressWarnings("unchecked")
+	private void notifyPropertyModified(String name, Object oldValue, Object value) {
+		for (DeviceListener listener : listeners) {
+			listener.devicePropertyModified(device, name, oldValue, value);
+		}
+	}
+
+	/**
+	 * Change a property without notifying the listeners, as if an event had
+	 * been lost.
+	 */
+	public void setPropertyQuietly(String name, Object value) {
+		properties.put(name, value);
+	}
+
+	public void setCommandDelay(long nanoseconds) {
+		commandDelay = nanoseconds;
+	}
+
+	public void setCommandListener(CommandListener listener) {
+		commandListener = listener;
+	}
+
+	public long getCommands() {
+		return commands.get();
+	}
+
+	public long getLastCommandTime() {
+		return lastCommandTime;
+	}
+
+	private void command() {
+		long delay = commandDelay;
+		if (delay > 0) {
+			LockSupport.parkNanos(delay);
+		}
+		commands.incrementAndGet();
+		long time = System.nanoTime();
+		lastCommandTime = time;
+		CommandListener listener = commandListener;
+		if (listener != null) {
+			listener.commanded(device, time);
+		}
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return serialNumber;
+		case "getSerialNumber":
+			return serialNumber;
+		case "getPropertyValue":
+			return properties.get(args[0]);
+		case "setPropertyValue":
+			setProperty((String) args[0], args[1]);
+			return null;
+		case "getProperties":
+			return properties.keySet();
+		case "addListener":
+			listeners.add((DeviceListener) args[0]);
+			return null;
+		case "removeListener":
+			listeners.remove(args[0]);
+			return null;
+		case "getPowerStatus":
+			return properties.get(BinaryLight.BINARY_LIGHT_POWER_STATUS);
+		case "turnOn":
+			command();
+			setProperty(BinaryLight.BINARY_LIGHT_POWER_STATUS, Boolean.TRUE);
+			return null;
+		case "turnOff":
+			command();
+			setProperty(BinaryLight.BINARY_LIGHT_POWER_STATUS, Boolean.FALSE);
+			return null;
+		case "setPowerStatus":
+			command();
+			setProperty(BinaryLight.BINARY_LIGHT_POWER_STATUS, args[0]);
+			return args[0];
+		case "getPowerLevel":
+			return properties.get(DimmerLight.DIMMER_LIGHT_POWER_LEVEL);
+		case "setPowerLevel":
+			command();
+			setProperty(DimmerLight.DIMMER_LIGHT_POWER_LEVEL, args[0]);
+			return args[0];
+		case "getMaxPowerLevel":
+			Object maxPowerLevel = properties.get(BinaryLight.BINARY_LIGHT_MAX_POWER_LEVEL);
+			return maxPowerLevel != null ? maxPowerLevel : properties.get(DimmerLight.DIMMER_LIGHT_MAX_POWER_LEVEL);
+		case "getSensedPresence":
+			return properties.get(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE);
+		case "getState":
+			return "activated";
+		case "getFault":
+			return "no";
+		default:
+			return defaultValue(method.getReturnType());
+		}
+	}
+
+	/**
+	 * Return the default value of a type, for the methods the stand-ins do not
+	 * implement.
+	 */
+	static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) {
+			return null;
+		}
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if (type == char.class) {
+			return Character.valueOf((char) 0);
+		}
+		if (type == double.class) {
+			return 0.0d;
+		}
+		if (type == float.class) {
+			return 0.0f;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == short.class) {
+			return (short) 0;
+		}
+		return (byte) 0;
+	}
+}
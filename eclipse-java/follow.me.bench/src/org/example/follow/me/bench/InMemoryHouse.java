@@ -0,0 +1,386 @@
+package org.example.follow.me.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.example.follow.me.FollowMeHarness;
+import org.example.follow.me.FollowMeImpl;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+import fr.liglab.adele.icasa.service.location.PersonLocationService;
+import fr.liglab.adele.icasa.simulator.Person;
+
+/**
+ * An in-memory house running a FollowMeImpl without the iCasa platform. It
+ * plays the role of the simulator: it creates zones, devices and persons, binds
+ * the devices to the component, moves the persons and sets the presence
+ * sensors of a zone according to the persons in it.
+ */
+public class InMemoryHouse {
+
+	/** The maximum power of the lights, in Watt */
+	public static final double LIGHT_MAX_POWER = 100.0d;
+
+	private FollowMeImpl followMe = new FollowMeImpl();
+
+	private final InMemoryPreferences preferences = new InMemoryPreferences();
+
+	private final List<String> zones = new ArrayList<String>();
+
+	private final List<PresenceSensor> presenceSensors = new ArrayList<PresenceSensor>();
+	private final List<BinaryLight> binaryLights = new ArrayList<BinaryLight>();
+	private final List<DimmerLight> dimmerLights = new ArrayList<DimmerLight>();
+
+	/** The presence sensors of each zone */
+	private final Map<String, List<PresenceSensor>> zoneSensors = new ConcurrentHashMap<String, List<PresenceSensor>>();
+
+	/** The persons of each zone, and the zone of each person */
+	private final Map<String, Set<String>> zonePersons = new ConcurrentHashMap<String, Set<String>>();
+	private final Map<String, Person> persons = new ConcurrentHashMap<String, Person>();
+	private final Map<String, String> personZones = new ConcurrentHashMap<String, String>();
+
+	private final PersonLocationService locationService = (PersonLocationService) Proxy.newProxyInstance(
+			InMemoryHouse.class.getClassLoader(), new Class<?>[] { PersonLocationService.class },
+			new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("getPersonInZone")) {
+						Set<String> inZone = zonePersons.get(args[0]);
+						return inZone == null ? Collections.<String> emptySet() : new HashSet<String>(inZone);
+					}
+					return InMemoryDevice.defaultValue(method.getReturnType());
+				}
+			});
+
+	private int serialNumbers;
+
+	/** The listener of the actuations of the lights, may be null */
+	private InMemoryDevice.CommandListener commandListener;
+
+	public InMemoryHouse() {
+		injectServices();
+	}
+
+	private void injectServices() {
+		FollowMeHarness.inject(followMe, "preferencesService", preferences.getService());
+		FollowMeHarness.inject(followMe, "LocationService", locationService);
+	}
+
+	/**
+	 * Stop the component and replace it by a new instance to which the same
+	 * devices are bound, as after a restart of its bundle. The devices and the
+	 * persons keep their state. The new component is not started, so its
+	 * properties can be set first.
+	 */
+	public void replaceComponent() {
+		followMe.stop();
+		String houseId = followMe.getHouseId();
+		followMe = new FollowMeImpl();
+		followMe.setHouseId(houseId);
+		injectServices();
+		for (PresenceSensor sensor : presenceSensors) {
+			followMe.bindPresenceSensor(sensor, null);
+		}
+		for (BinaryLight light : binaryLights) {
+			followMe.bindBinaryLight(light, null);
+		}
+		for (DimmerLight light : dimmerLights) {
+			followMe.bindDimmerLight(light, null);
+		}
+	}
+
+	/**
+	 * Build a house of identical rooms.
+	 * 
+	 * @param numberOfZones
+	 *            : the number of rooms
+	 * @param binaryLightsPerZone
+	 *            : the number of binary lights in each room
+	 * @param dimmerLightsPerZone
+	 *            : the number of dimmer lights in each room
+	 * @return the house, not started
+	 */
+	public static InMemoryHouse withZones(int numberOfZones, int binaryLightsPerZone, int dimmerLightsPerZone) {
+		InMemoryHouse house = new InMemoryHouse();
+		for (int i = 0; i < numberOfZones; i++) {
+			String zone = house.addZone("zone-" + i);
+			house.addPresenceSensor(zone);
+			for (int j = 0; j < binaryLightsPerZone; j++) {
+				house.addBinaryLight(zone);
+			}
+			for (int j = 0; j < dimmerLightsPerZone; j++) {
+				house.addDimmerLight(zone);
+			}
+		}
+		return house;
+	}
+
+	public FollowMeImpl getFollowMe() {
+		return followMe;
+	}
+
+	public InMemoryPreferences getPreferences() {
+		return preferences;
+	}
+
+	public PersonLocationService getLocationService() {
+		return locationService;
+	}
+
+	public List<String> getZones() {
+		return zones;
+	}
+
+	public String addZone(String zone) {
+		if (!zonePersons.containsKey(zone)) {
+			zones.add(zone);
+			zonePersons.put(zone, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+			zoneSensors.put(zone, new ArrayList<PresenceSensor>());
+		}
+		return zone;
+	}
+
+	private String nextSerialNumber(String prefix) {
+		return prefix + "-" + (serialNumbers++);
+	}
+
+	public PresenceSensor addPresenceSensor(String zone) {
+		return addPresenceSensor(nextSerialNumber("Pres"), zone);
+	}
+
+	public PresenceSensor addPresenceSensor(String serialNumber, String zone) {
+		PresenceSensor sensor = InMemoryDevice.newPresenceSensor(serialNumber);
+		place(sensor, zone);
+		presenceSensors.add(sensor);
+		followMe.bindPresenceSensor(sensor, null);
+		return sensor;
+	}
+
+	public BinaryLight addBinaryLight(String zone) {
+		return addBinaryLight(nextSerialNumber("BiLi"), zone);
+	}
+
+	public BinaryLight addBinaryLight(String serialNumber, String zone) {
+		BinaryLight light = InMemoryDevice.newBinaryLight(serialNumber, LIGHT_MAX_POWER);
+		InMemoryDevice.of(light).setCommandListener(commandListener);
+		place(light, zone);
+		binaryLights.add(light);
+		followMe.bindBinaryLight(light, null);
+		return light;
+	}
+
+	public DimmerLight addDimmerLight(String zone) {
+		return addDimmerLight(nextSerialNumber("DL"), zone);
+	}
+
+	public DimmerLight addDimmerLight(String serialNumber, String zone) {
+		DimmerLight light = InMemoryDevice.newDimmerLight(serialNumber, LIGHT_MAX_POWER);
+		InMemoryDevice.of(light).setCommandListener(commandListener);
+		place(light, zone);
+		dimmerLights.add(light);
+		followMe.bindDimmerLight(light, null);
+		return light;
+	}
+
+	/**
+	 * Place a device that is not bound yet, without any event.
+	 */
+	private void place(GenericDevice device, String zone) {
+		InMemoryDevice.of(device).setPropertyQuietly(FollowMeImpl.LOCATION_PROPERTY_NAME, zone);
+		if (device instanceof PresenceSensor && zone != null) {
+			zoneSensors.get(addZone(zone)).add((PresenceSensor) device);
+		}
+	}
+
+	/**
+	 * Move a bound device to another zone, notifying the component.
+	 */
+	public void moveDevice(GenericDevice device, String zone) {
+		addZone(zone);
+		InMemoryDevice standIn = InMemoryDevice.of(device);
+		if (device instanceof PresenceSensor) {
+			Object oldZone = standIn.getProperty(FollowMeImpl.LOCATION_PROPERTY_NAME);
+			List<PresenceSensor> oldSensors = zoneSensors.get(oldZone);
+			if (oldSensors != null) {
+				oldSensors.remove(device);
+			}
+			zoneSensors.get(zone).add((PresenceSensor) device);
+		}
+		standIn.setProperty(FollowMeImpl.LOCATION_PROPERTY_NAME, zone);
+		if (device instanceof PresenceSensor) {
+			updatePresence(zone);
+		}
+	}
+
+	/**
+	 * Remove a bound device from the house, unbinding it from the component.
+	 */
+	public void removeDevice(GenericDevice device) {
+		Object zone = InMemoryDevice.of(device).getProperty(FollowMeImpl.LOCATION_PROPERTY_NAME);
+		if (device instanceof PresenceSensor) {
+			presenceSensors.remove(device);
+			List<PresenceSensor> sensors = zoneSensors.get(zone);
+			if (sensors != null) {
+				sensors.remove(device);
+			}
+			followMe.unbindPresenceSensor((PresenceSensor) device, null);
+		} else if (device instanceof BinaryLight) {
+			binaryLights.remove(device);
+			followMe.unbindBinaryLight((BinaryLight) device, null);
+		} else if (device instanceof DimmerLight) {
+			dimmerLights.remove(device);
+			followMe.unbindDimmerLight((DimmerLight) device, null);
+		}
+	}
+
+	public Person getPerson(String name) {
+		return persons.get(name);
+	}
+
+	/**
+	 * Create a person, in the given zone or nowhere if the zone is null.
+	 */
+	public void addPerson(final String name, String zone) {
+		Person person = (Person) Proxy.newProxyInstance(InMemoryHouse.class.getClassLoader(),
+				new Class<?>[] { Person.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "getName":
+						case "toString":
+							return name;
+						case "getLocation":
+							return personZones.get(name);
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return name.hashCode();
+						default:
+							return InMemoryDevice.defaultValue(method.getReturnType());
+						}
+					}
+				});
+		persons.put(name, person);
+		if (zone != null) {
+			personZones.put(name, addZone(zone));
+			zonePersons.get(zone).add(name);
+			updatePresence(zone);
+		}
+		followMe.personAdded(person);
+	}
+
+	/**
+	 * Move a person to another zone: the presence sensors of both zones are
+	 * updated, then the component is notified.
+	 */
+	public void movePerson(String name, String zone) {
+		addZone(zone);
+		String oldZone = personZones.put(name, zone);
+		if (oldZone != null) {
+			zonePersons.get(oldZone).remove(name);
+		}
+		zonePersons.get(zone).add(name);
+		if (oldZone != null) {
+			updatePresence(oldZone);
+		}
+		updatePresence(zone);
+		followMe.personMoved(persons.get(name), null);
+	}
+
+	public void removePerson(String name) {
+		String oldZone = personZones.remove(name);
+		Person person = persons.remove(name);
+		if (oldZone != null) {
+			zonePersons.get(oldZone).remove(name);
+			updatePresence(oldZone);
+		}
+		if (person != null) {
+			followMe.personRemoved(person);
+		}
+	}
+
+	/**
+	 * Set the presence sensed in a zone directly, whoever is in it.
+	 */
+	public void setPresence(String zone, boolean presence) {
+		for (PresenceSensor sensor : zoneSensors.get(zone)) {
+			InMemoryDevice.of(sensor).setProperty(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE, presence);
+		}
+	}
+
+	public List<PresenceSensor> getPresenceSensors(String zone) {
+		return zoneSensors.get(zone);
+	}
+
+	private void updatePresence(String zone) {
+		setPresence(zone, !zonePersons.get(zone).isEmpty());
+	}
+
+	public List<GenericDevice> getLights() {
+		List<GenericDevice> lights = new ArrayList<GenericDevice>(binaryLights);
+		lights.addAll(dimmerLights);
+		return lights;
+	}
+
+	/**
+	 * Return the total number of actuations received by the lights.
+	 */
+	public long getCommands() {
+		long commands = 0;
+		for (GenericDevice light : getLights()) {
+			commands += InMemoryDevice.of(light).getCommands();
+		}
+		return commands;
+	}
+
+	/**
+	 * Simulate a duration for each actuation of the lights.
+	 */
+	public void setCommandDelay(long nanoseconds) {
+		for (GenericDevice light : getLights()) {
+			InMemoryDevice.of(light).setCommandDelay(nanoseconds);
+		}
+	}
+
+	/**
+	 * Receive the actuations of the lights, those added later included.
+	 */
+	public void setCommandListener(InMemoryDevice.CommandListener listener) {
+		commandListener = listener;
+		for (GenericDevice light : getLights()) {
+			InMemoryDevice.of(light).setCommandListener(listener);
+		}
+	}
+
+	/**
+	 * Start the component, its dependency arrays being injected as iPOJO does.
+	 */
+	public void start() {
+		FollowMeHarness.inject(followMe, "presenceSensors", presenceSensors.toArray(new PresenceSensor[0]));
+		FollowMeHarness.inject(followMe, "binaryLights", binaryLights.toArray(new BinaryLight[0]));
+		FollowMeHarness.inject(followMe, "dimmerLights", dimmerLights.toArray(new DimmerLight[0]));
+		followMe.start();
+	}
+
+	public void stop() {
+		followMe.stop();
+	}
+
+	/**
+	 * Wait until the component has evaluated every dirty room.
+	 */
+	public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+		return FollowMeHarness.awaitQuiescence(followMe, timeoutMillis);
+	}
+}
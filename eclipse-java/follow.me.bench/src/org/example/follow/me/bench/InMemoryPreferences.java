@@ -0,0 +1,98 @@
+package org.example.follow.me.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.liglab.adele.icasa.service.preferences.PreferenceChangeListener;
+import fr.liglab.adele.icasa.service.preferences.Preferences;
+
+/**
+ * An in-memory stand-in for the iCasa Preferences service. Only the user
+ * properties are kept; their listeners are notified of every change. The
+ * reads are counted, to check how often the service is queried.
+ */
+public class InMemoryPreferences implements InvocationHandler {
+
+	private final Map<String, Map<String, Object>> userProperties = new ConcurrentHashMap<String, Map<String, Object>>();
+
+	private final Map<String, List<PreferenceChangeListener>> userListeners = new ConcurrentHashMap<String, List<PreferenceChangeListener>>();
+
+	private final AtomicLong reads = new AtomicLong();
+
+	private final AtomicLong writes = new AtomicLong();
+
+	private final Preferences service = (Preferences) Proxy.newProxyInstance(
+			InMemoryPreferences.class.getClassLoader(), new Class<?>[] { Preferences.class }, this);
+
+	public Preferences getService() {
+		return service;
+	}
+
+	public long getReads() {
+		return reads.get();
+	}
+
+	public long getWrites() {
+		return writes.get();
+	}
+
+	private Map<String, Object> propertiesOf(String user) {
+		Map<String, Object> properties = userProperties.get(user);
+		if (properties == null) {
+			userProperties.putIfAbsent(user, new ConcurrentHashMap<String, Object>());
+			properties = userProperties.get(user);
+		}
+		return properties;
+	}
+
+	private List<PreferenceChangeListener> listenersOf(String user) {
+		List<PreferenceChangeListener> listeners = userListeners.get(user);
+		if (listeners == null) {
+			userListeners.putIfAbsent(user, new CopyOnWriteArrayList<PreferenceChangeListener>());
+			listeners = userListeners.get(user);
+		}
+		return listeners;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return "InMemoryPreferences";
+		case "getUserPropertyValue":
+			reads.incrementAndGet();
+			return propertiesOf((String) args[0]).get(args[1]);
+		case "getUserProperties":
+			return Collections.unmodifiableSet(propertiesOf((String) args[0]).keySet());
+		case "setUserPropertyValue": {
+			writes.incrementAndGet();
+			String user = (String) args[0];
+			String name = (String) args[1];
+			Object oldValue = propertiesOf(user).put(name, args[2]);
+			for (PreferenceChangeListener listener : listenersOf(user)) {
+				listener.changedProperty(name, oldValue, args[2]);
+			}
+			return null;
+		}
+		case "addUserPropertyListener":
+			listenersOf((String) args[0]).add((PreferenceChangeListener) args[1]);
+			return null;
+		case "removeUserPropertyListener":
+			listenersOf((String) args[0]).remove(args[1]);
+			return null;
+		default:
+			return InMemoryDevice.defaultValue(method.getReturnType());
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package org.example.follow.me.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.example.follow.me.FollowMeImpl;
+import org.example.follow.me.JournalReader;
+import org.example.follow.me.JournalRecord;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * Replay a time range of an event journal against an in-memory house, without
+ * the OSGi platform. The devices, persons and settings of the journal are
+ * created and changed as they were seen by the component, either as fast as
+ * possible or following the times of the records at a chosen clock factor. A
+ * device met before its DEVICE_BOUND record, its segment having been rotated
+ * out, is created on the fly. The power changes of the lights are the result
+ * of the commands, so they are not replayed: the commands sent by the replay
+ * are compared with the recorded ones instead.
+ *
+ * At the end the replay reports the number of events per second and the time
+ * from each event to the end of the resulting actuations (p50 and p99).
+ *
+ * Usage: JournalReplay directory [--from ms] [--to ms] [--factor N | --fast]
+ * [--print]
+ */
+public class JournalReplay {
+
+	private static final long TIMEOUT = 60000L;
+
+	private final InMemoryHouse house = new InMemoryHouse();
+
+	/** The devices of the journal, by serial number */
+	private final Map<String, GenericDevice> devices = new HashMap<String, GenericDevice>();
+
+	/** The clock factor; 0 replays as fast as possible */
+	private final double factor;
+
+	/** Whether each record is printed */
+	private final boolean print;
+
+	/** The time of the previous record, in milliseconds */
+	private long previousTime = -1L;
+
+	/** The time from each event to the end of its actuations, in nanoseconds */
+	private long[] latencies = new long[1024];
+
+	private int numberOfEvents;
+
+	private long recordedCommands;
+
+	/** The time spent waiting between the records, in nanoseconds */
+	private long delayTime;
+
+	public JournalReplay(double factor, boolean print) {
+		this.factor = factor;
+		this.print = print;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("Usage: JournalReplay directory [--from ms] [--to ms] [--factor N | --fast] [--print]");
+			return;
+		}
+		long from = 0L;
+		long to = Long.MAX_VALUE;
+		double factor = 0.0d;
+		boolean print = false;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--from")) {
+				from = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--to")) {
+				to = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--fast")) {
+				factor = 0.0d;
+			} else if (args[i].equals("--factor")) {
+				factor = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--print")) {
+				print = true;
+			} else {
+				throw new IllegalArgumentException("Invalid option !" + args[i]);
+			}
+		}
+		final JournalReplay replay = new JournalReplay(factor, print);
+		replay.house.start();
+		long start = System.nanoTime();
+		long records = new JournalReader(new File(args[0])).read(from, to, new JournalReader.RecordHandler() {
+			@Override
+			public void handle(JournalRecord record) throws Exception {
+				replay.replay(record);
+			}
+		});
+		long elapsed = System.nanoTime() - start;
+		replay.house.stop();
+		System.out.println(records + " records read");
+		replay.report(elapsed);
+	}
+
+	private void replay(JournalRecord record) throws InterruptedException {
+		if (print) {
+			System.out.println(record);
+		}
+		delay(record.getTime());
+		long start = System.nanoTime();
+		switch (record.getType()) {
+		case DEVICE_BOUND: {
+			String location = (String) record.getValue();
+			GenericDevice device = devices.get(record.getSubject());
+			if (device == null) {
+				device(record.getSubject(), record.getKind(), location);
+			} else if (location != null && !location.equals(InMemoryDevice.of(device).getProperty(
+					FollowMeImpl.LOCATION_PROPERTY_NAME))) {
+				house.moveDevice(device, location);
+			}
+			break;
+		}
+		case DEVICE_UNBOUND: {
+			GenericDevice device = devices.remove(record.getSubject());
+			if (device != null) {
+				house.removeDevice(device);
+			}
+			break;
+		}
+		case DEVICE_PROPERTY:
+			if (!replayProperty(record)) {
+				return;
+			}
+			break;
+		case PERSON_ADDED:
+		case PERSON_MOVED:
+			if (record.getName() == null) {
+				return;
+			}
+			if (house.getPerson(record.getSubject()) == null) {
+				house.addPerson(record.getSubject(), record.getName());
+			} else {
+				house.movePerson(record.getSubject(), record.getName());
+			}
+			break;
+		case PERSON_REMOVED:
+			house.removePerson(record.getSubject());
+			break;
+		case SETTINGS:
+			// the recorded goals, on top of the version of the replayed house
+			house.getFollowMe().applySettings(
+					record.getSettings().withVersion(house.getFollowMe().getSettings().getVersion()));
+			break;
+		case COMMAND:
+			recordedCommands++;
+			return;
+		default:
+			return;
+		}
+		house.awaitIdle(TIMEOUT);
+		record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Replay the change of a property of a device.
+	 *
+	 * @return false if the change is not replayed
+	 */
+	private boolean replayProperty(JournalRecord record) {
+		GenericDevice device = device(record.getSubject(), record.getKind(), null);
+		if (device == null || record.getValue() == null) {
+			return false;
+		}
+		String name = record.getName();
+		if (name.equals(FollowMeImpl.LOCATION_PROPERTY_NAME)) {
+			house.moveDevice(device, record.getValue().toString());
+		} else if (name.equals(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE)
+				|| name.equals(BinaryLight.BINARY_LIGHT_MAX_POWER_LEVEL)
+				|| name.equals(DimmerLight.DIMMER_LIGHT_MAX_POWER_LEVEL)) {
+			InMemoryDevice.of(device).setProperty(name, record.getValue());
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get a device of the journal, creating it if it is not known yet.
+	 *
+	 * @return the device, or null if its kind is unknown
+	 */
+	private GenericDevice device(String serialNumber, JournalRecord.DeviceKind kind, String location) {
+		GenericDevice device = devices.get(serialNumber);
+		if (device != null || kind == null) {
+			return device;
+		}
+		if (location == null) {
+			location = FollowMeImpl.LOCATION_UNKNOWN;
+		}
+		switch (kind) {
+		case PRESENCE_SENSOR:
+			device = house.addPresenceSensor(serialNumber, location);
+			break;
+		case BINARY_LIGHT:
+			device = house.addBinaryLight(serialNumber, location);
+			break;
+		case DIMMER_LIGHT:
+			device = house.addDimmerLight(serialNumber, location);
+			break;
+		}
+		devices.put(serialNumber, device);
+		return device;
+	}
+
+	/**
+	 * Wait for the time between two records, scaled by the clock factor.
+	 */
+	private void delay(long time) throws InterruptedException {
+		long previousTime = this.previousTime;
+		this.previousTime = time;
+		if (factor <= 0.0d || previousTime < 0L || time <= previousTime) {
+			return;
+		}
+		long start = System.nanoTime();
+		Thread.sleep((long) ((time - previousTime) / factor));
+		delayTime += System.nanoTime() - start;
+	}
+
+	private void record(long latency) {
+		if (numberOfEvents == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[numberOfEvents++] = latency;
+	}
+
+	private void report(long elapsed) {
+		long[] sorted = Arrays.copyOf(latencies, numberOfEvents);
+		Arrays.sort(sorted);
+		double seconds = (elapsed - delayTime) / 1.0e9d;
+		System.out.println(String.format("%d events in %.3f s (delays excluded): %.0f events/s", numberOfEvents,
+				seconds, numberOfEvents / seconds));
+		if (numberOfEvents > 0) {
+			System.out.println(String.format("event to actuation: p50 %.1f us, p99 %.1f us, max %.1f us",
+					percentile(sorted, 0.50d) / 1000.0d, percentile(sorted, 0.99d) / 1000.0d,
+					sorted[sorted.length - 1] / 1000.0d));
+		}
+		System.out.println(house.getCommands() + " commands sent to the lights, " + recordedCommands + " recorded");
+	}
+
+	private static long percentile(long[] sorted, double rank) {
+		int index = (int) Math.ceil(rank * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
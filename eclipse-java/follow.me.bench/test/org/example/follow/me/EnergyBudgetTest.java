@@ -0,0 +1,126 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The budget of the house shared among the occupied rooms as they change.
+ */
+public class EnergyBudgetTest {
+
+	private static final double DELTA = 1.0e-6d;
+
+	/** The change of share below which a room is not evaluated again */
+	private static final double SHARE_TOLERANCE = 0.5d;
+
+	@Test
+	public void whatARoomCannotUseGoesToTheOthers() {
+		EnergyBudget budget = new EnergyBudget();
+		Zone kitchen = new Zone("kitchen");
+		Zone bedroom = new Zone("bedroom");
+		List<Zone> changed = new ArrayList<Zone>();
+
+		assertEquals(300.0d, budget.update(kitchen, true, 1, 500.0d, 300.0d, changed), DELTA);
+		assertEquals(100.0d, budget.update(bedroom, true, 1, 100.0d, 300.0d, changed), DELTA);
+		assertEquals(1, changed.size());
+		assertEquals(kitchen, changed.get(0));
+
+		changed.clear();
+		assertEquals(0.0d, budget.update(bedroom, false, 0, 100.0d, 300.0d, changed), DELTA);
+		assertEquals(1, changed.size());
+		assertEquals(kitchen, changed.get(0));
+		assertEquals(300.0d, budget.update(kitchen, true, 1, 500.0d, 300.0d, changed), DELTA);
+	}
+
+	@Test
+	public void aRoomUnderTheLevelChangesNoOtherShare() {
+		EnergyBudget budget = new EnergyBudget();
+		List<Zone> changed = new ArrayList<Zone>();
+		for (int i = 0; i < 10; i++) {
+			budget.update(new Zone("room-" + i), true, 1, 100.0d, 5000.0d, changed);
+		}
+		changed.clear();
+
+		assertEquals(150.0d, budget.update(new Zone("room-10"), true, 1, 150.0d, 5000.0d, changed), DELTA);
+		assertTrue(changed.isEmpty());
+	}
+
+	/**
+	 * Random changes of the rooms and of the budget: the shares are those of
+	 * the budget shared again from scratch, and the rooms reported those whose
+	 * share changed.
+	 */
+	@Test
+	public void theSharesAreThoseOfAFullSharing() {
+		Random random = new Random(42L);
+		EnergyBudget budget = new EnergyBudget();
+		Zone[] zones = new Zone[12];
+		boolean[] occupied = new boolean[zones.length];
+		int[] weights = new int[zones.length];
+		double[] demands = new double[zones.length];
+		double[] shares = new double[zones.length];
+		for (int i = 0; i < zones.length; i++) {
+			zones[i] = new Zone("room-" + i);
+		}
+		double houseBudget = 1000.0d;
+		List<Zone> changed = new ArrayList<Zone>();
+		for (int step = 0; step < 5000; step++) {
+			int i = random.nextInt(zones.length);
+			occupied[i] = random.nextInt(4) != 0;
+			weights[i] = 1 + random.nextInt(3);
+			demands[i] = 100.0d * random.nextInt(6);
+			if (random.nextInt(20) == 0) {
+				houseBudget = 100.0d * random.nextInt(20);
+			}
+			changed.clear();
+			budget.update(zones[i], occupied[i], weights[i], demands[i], houseBudget, changed);
+
+			double[] expected = share(occupied, weights, demands, houseBudget);
+			for (int j = 0; j < zones.length; j++) {
+				// an unchanged room reads its current share
+				double actual = budget.update(zones[j], occupied[j], weights[j], demands[j], houseBudget,
+						new ArrayList<Zone>());
+				assertEquals("room " + j + " at step " + step, expected[j], actual, DELTA);
+				if (j != i) {
+					assertEquals("room " + j + " reported at step " + step,
+							Math.abs(expected[j] - shares[j]) > SHARE_TOLERANCE, changed.contains(zones[j]));
+				}
+				shares[j] = expected[j];
+			}
+		}
+	}
+
+	/**
+	 * The shares computed from scratch: the rooms needing the least power per
+	 * unit of weight are served first.
+	 */
+	private static double[] share(boolean[] occupied, int[] weights, double[] demands, double budget) {
+		double[] shares = new double[occupied.length];
+		List<Integer> byDemand = new ArrayList<Integer>();
+		long remainingWeight = 0L;
+		for (int i = 0; i < occupied.length; i++) {
+			if (occupied[i]) {
+				int position = 0;
+				while (position < byDemand.size()
+						&& demands[byDemand.get(position)] / weights[byDemand.get(position)] <= demands[i] / weights[i]) {
+					position++;
+				}
+				byDemand.add(position, i);
+				remainingWeight += weights[i];
+			}
+		}
+		double remainingBudget = budget;
+		for (int i : byDemand) {
+			shares[i] = Math.min(demands[i], remainingBudget * weights[i] / remainingWeight);
+			remainingBudget -= shares[i];
+			remainingWeight -= weights[i];
+		}
+		return shares;
+	}
+}
@@ -0,0 +1,91 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.example.follow.me.configuration.EnergyWindow;
+import org.junit.Test;
+
+/**
+ * The energy of the lights accrued per light, room and house.
+ */
+public class EnergyMeterTest {
+
+	private static final double DELTA = 1.0e-9d;
+
+	@Test
+	public void theEnergyIsAccruedWhileTheLightIsOn() {
+		EnergyMeter meter = new EnergyMeter();
+		meter.addDevice("light", "kitchen", 100.0d, 0.0d, 0L);
+		meter.setLevel("light", 1.0d, 1000L);
+		meter.setLevel("light", 0.5d, 3600000L + 1000L);
+
+		assertEquals(50.0d, meter.getPower("kitchen"), DELTA);
+		assertEquals(50.0d, meter.getPower(null), DELTA);
+		assertEquals(100.0d, meter.getDeviceEnergy("light", 3600000L + 1000L), DELTA);
+		assertEquals(150.0d, meter.getEnergy("kitchen", EnergyWindow.TOTAL, 2 * 3600000L + 1000L), DELTA);
+		assertEquals(150.0d, meter.getEnergy(null, EnergyWindow.TOTAL, 2 * 3600000L + 1000L), DELTA);
+	}
+
+	@Test
+	public void aMovedLightDrawsInItsNewRoom() {
+		EnergyMeter meter = new EnergyMeter();
+		meter.addDevice("light", "kitchen", 100.0d, 1.0d, 0L);
+		meter.moveDevice("light", "bedroom", 3600000L);
+		meter.removeDevice("light", 2 * 3600000L);
+
+		assertEquals(0.0d, meter.getPower(null), DELTA);
+		assertEquals(100.0d, meter.getEnergy("kitchen", EnergyWindow.TOTAL, 3 * 3600000L), DELTA);
+		assertEquals(100.0d, meter.getEnergy("bedroom", EnergyWindow.TOTAL, 3 * 3600000L), DELTA);
+		assertEquals(200.0d, meter.getEnergy(null, EnergyWindow.TOTAL, 3 * 3600000L), DELTA);
+		assertEquals(0.0d, meter.getDeviceEnergy("light", 3 * 3600000L), DELTA);
+	}
+
+	/**
+	 * Threads changing and moving the lights of several rooms at the same
+	 * time: the power of the house stays the sum of the power of the rooms.
+	 */
+	@Test(timeout = 30000L)
+	public void concurrentChangesKeepTheHouseTotal() throws InterruptedException {
+		final EnergyMeter meter = new EnergyMeter();
+		final String[] rooms = { "kitchen", "bedroom", "bathroom", "livingroom" };
+		for (int i = 0; i < 16; i++) {
+			meter.addDevice("light-" + i, rooms[i % rooms.length], 100.0d, 0.0d, 0L);
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 20000; i++) {
+						String light = "light-" + ((i + thread) % 16);
+						if (i % 7 == 0) {
+							meter.moveDevice(light, rooms[(i / 7 + thread) % rooms.length], i);
+						} else {
+							meter.setLevel(light, (i % 3) / 2.0d, i);
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		double sum = 0.0d;
+		for (String room : meter.getLocations()) {
+			sum += meter.getPower(room);
+		}
+		assertEquals(sum, meter.getPower(null), 1.0e-6d);
+	}
+}
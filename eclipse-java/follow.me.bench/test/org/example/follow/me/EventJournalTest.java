@@ -0,0 +1,150 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.example.follow.me.JournalRecord.DeviceKind;
+import org.example.follow.me.JournalRecord.Type;
+import org.example.follow.me.bench.InMemoryDevice;
+import org.example.follow.me.configuration.FollowMeSettings;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.service.log.LogService;
+
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * The records of a journal written by its thread and read back by a
+ * JournalReader.
+ */
+public class EventJournalTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	private EventJournal journal;
+
+	@Before
+	public void setUp() {
+		directory = new File(folder.getRoot(), "journal");
+		journal = new EventJournal(new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+			@Override
+			public LogService getLogService() {
+				return null;
+			}
+		}));
+		journal.setDirectory(directory);
+	}
+
+	private List<JournalRecord> readAll() throws Exception {
+		final List<JournalRecord> records = new ArrayList<JournalRecord>();
+		new JournalReader(directory).read(0L, Long.MAX_VALUE, new JournalReader.RecordHandler() {
+			@Override
+			public void handle(JournalRecord record) {
+				records.add(record);
+			}
+		});
+		return records;
+	}
+
+	@Test
+	public void nothingIsRecordedWhenStopped() throws Exception {
+		journal.command("light", DeviceKind.BINARY_LIGHT, 1.0d);
+		journal.start();
+		journal.stop();
+
+		assertTrue(readAll().isEmpty());
+		assertEquals(0L, journal.getWrittenRecords());
+	}
+
+	@Test
+	public void recordsAreReadAsWritten() throws Exception {
+		PresenceSensor sensor = InMemoryDevice.newPresenceSensor("sensor");
+		long before = System.currentTimeMillis();
+
+		journal.start();
+		journal.deviceBound("dimmer", DeviceKind.DIMMER_LIGHT, "kitchen");
+		journal.deviceProperty(sensor, PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE, Boolean.TRUE);
+		journal.deviceProperty(sensor, "name", "hall sensor");
+		journal.person(Type.PERSON_MOVED, "alice", "kitchen");
+		journal.settings(new FollowMeSettings(3, 150.0d, 2750.0d).withVersion(4L));
+		journal.command("dimmer", DeviceKind.DIMMER_LIGHT, 0.5d);
+		journal.deviceUnbound("dimmer", DeviceKind.DIMMER_LIGHT);
+		journal.stop();
+
+		List<JournalRecord> records = readAll();
+		assertEquals(7, records.size());
+		assertEquals(7L, journal.getWrittenRecords());
+		assertEquals(0L, journal.getDroppedRecords());
+		for (JournalRecord record : records) {
+			assertTrue(record.getTime() >= before);
+		}
+
+		JournalRecord bound = records.get(0);
+		assertEquals(Type.DEVICE_BOUND, bound.getType());
+		assertEquals("dimmer", bound.getSubject());
+		assertEquals(DeviceKind.DIMMER_LIGHT, bound.getKind());
+		assertEquals("kitchen", bound.getValue());
+
+		JournalRecord presence = records.get(1);
+		assertEquals(Type.DEVICE_PROPERTY, presence.getType());
+		assertEquals(DeviceKind.PRESENCE_SENSOR, presence.getKind());
+		assertEquals(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE, presence.getName());
+		assertEquals(Boolean.TRUE, presence.getValue());
+		assertEquals("hall sensor", records.get(2).getValue());
+
+		JournalRecord person = records.get(3);
+		assertEquals(Type.PERSON_MOVED, person.getType());
+		assertEquals("alice", person.getSubject());
+		assertEquals("kitchen", person.getName());
+
+		FollowMeSettings settings = records.get(4).getSettings();
+		assertEquals(3, settings.getMaximumNumberOfLightsToTurnOn());
+		assertEquals(150.0d, settings.getMaximumAllowedEnergyInRoom(), 0.0d);
+		assertEquals(2750.0d, settings.getTargetedIlluminance(), 0.0d);
+		assertEquals(4L, settings.getVersion());
+
+		JournalRecord command = records.get(5);
+		assertEquals(Type.COMMAND, command.getType());
+		assertEquals("dimmer", command.getSubject());
+		assertEquals(DeviceKind.DIMMER_LIGHT, command.getKind());
+		assertEquals(0.5d, ((Number) command.getValue()).doubleValue(), 0.0d);
+
+		JournalRecord unbound = records.get(6);
+		assertEquals(Type.DEVICE_UNBOUND, unbound.getType());
+		assertNull(unbound.getValue());
+	}
+
+	@Test
+	public void aTimeRangeSkipsTheOlderRecords() throws Exception {
+		journal.start();
+		journal.command("light", DeviceKind.BINARY_LIGHT, 1.0d);
+		journal.stop();
+		long restart = System.currentTimeMillis() + 1L;
+		Thread.sleep(5L);
+		journal.start();
+		journal.command("light", DeviceKind.BINARY_LIGHT, 0.0d);
+		journal.stop();
+
+		final List<JournalRecord> records = new ArrayList<JournalRecord>();
+		long count = new JournalReader(directory).read(restart, Long.MAX_VALUE, new JournalReader.RecordHandler() {
+			@Override
+			public void handle(JournalRecord record) {
+				records.add(record);
+			}
+		});
+
+		assertEquals(1L, count);
+		assertEquals(0.0d, ((Number) records.get(0).getValue()).doubleValue(), 0.0d);
+		assertEquals(2, readAll().size());
+	}
+}
@@ -0,0 +1,136 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.osgi.service.log.LogService;
+
+/**
+ * The shared workers stopped and started again.
+ */
+public class FollowMeEngineTest {
+
+	private final FollowMeLogger logger = new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+		@Override
+		public LogService getLogService() {
+			return null;
+		}
+	});
+
+	private static int countWorkers() {
+		int workers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("follow.me-shard-") && thread.isAlive()) {
+				workers++;
+			}
+		}
+		return workers;
+	}
+
+	@Test(timeout = 30000L)
+	public void aQuickRestartRunsOneWorkerPerShard() {
+		FollowMeEngine engine = FollowMeEngine.getInstance();
+		for (int i = 0; i < 10; i++) {
+			engine.start();
+			engine.stop();
+		}
+		assertEquals(0, countWorkers());
+
+		engine.start();
+		try {
+			assertEquals(FollowMeEngine.NUMBER_OF_SHARDS, countWorkers());
+		} finally {
+			engine.stop();
+		}
+	}
+
+	/**
+	 * A house whose evaluations hang stopped with rooms waiting in every
+	 * shard: the waiting rooms are dropped, so nothing keeps the house.
+	 */
+	@Test(timeout = 30000L)
+	public void theRoomsOfAStoppedHouseAreDropped() throws InterruptedException {
+		final CountDownLatch released = new CountDownLatch(1);
+		ZoneScheduler scheduler = new ZoneScheduler(FollowMeEngine.getInstance(), new ZoneScheduler.ZoneEvaluator() {
+			@Override
+			public int evaluate(Zone zone, long dirtySince) {
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return 0;
+			}
+		}, logger, new FollowMeStatistics());
+		Zone[] zones = new Zone[FollowMeEngine.NUMBER_OF_SHARDS * 16];
+		for (int i = 0; i < zones.length; i++) {
+			zones[i] = new Zone("room-" + i);
+		}
+
+		scheduler.start();
+		for (Zone zone : zones) {
+			scheduler.submit(zone);
+		}
+		scheduler.stop();
+
+		assertTrue(scheduler.awaitQuiescence(0L));
+		for (Zone zone : zones) {
+			assertTrue(zone.markDirty());
+		}
+		assertEquals(0, countWorkers());
+	}
+
+	/**
+	 * More rooms than the shards hold, submitted while the workers are busy:
+	 * the rooms beyond wait in the overflows and are all evaluated once, by
+	 * the workers and not by the submitting thread.
+	 */
+	@Test(timeout = 30000L)
+	public void theRoomsOverflowingTheirShardAreEvaluatedByItsWorker() throws InterruptedException {
+		final CountDownLatch released = new CountDownLatch(1);
+		final Set<Zone> evaluated = ConcurrentHashMap.newKeySet();
+		final Set<String> threads = ConcurrentHashMap.newKeySet();
+		FollowMeStatistics statistics = new FollowMeStatistics();
+		ZoneScheduler scheduler = new ZoneScheduler(FollowMeEngine.getInstance(), new ZoneScheduler.ZoneEvaluator() {
+			@Override
+			public int evaluate(Zone zone, long dirtySince) {
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				assertTrue(evaluated.add(zone));
+				threads.add(Thread.currentThread().getName());
+				return 0;
+			}
+		}, logger, statistics);
+		Zone[] zones = new Zone[FollowMeEngine.NUMBER_OF_SHARDS * FollowMeEngine.SHARD_CAPACITY * 4];
+		for (int i = 0; i < zones.length; i++) {
+			zones[i] = new Zone("room-" + i);
+		}
+
+		scheduler.start();
+		try {
+			for (Zone zone : zones) {
+				scheduler.submit(zone);
+			}
+			released.countDown();
+			assertTrue(scheduler.awaitQuiescence(20000L));
+		} finally {
+			scheduler.stop();
+		}
+
+		assertEquals(zones.length, evaluated.size());
+		assertTrue(statistics.getEventCount(FollowMeStatistics.EventType.SHARD_OVERFLOW) > 0L);
+		assertFalse(threads.contains(Thread.currentThread().getName()));
+		for (String thread : threads) {
+			assertTrue(thread.startsWith("follow.me-shard-"));
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+/**
+ * The levels of the logger and the records it writes.
+ */
+public class FollowMeLoggerTest {
+
+	private final FollowMeLogger logger = new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+		@Override
+		public LogService getLogService() {
+			return null;
+		}
+	});
+
+	@Test
+	public void anUnknownLevelKeepsThePreviousOne() {
+		assertTrue(logger.setLevel(" warning "));
+		assertFalse(logger.setLevel("VERBOSE"));
+		assertFalse(logger.setLevel(null));
+
+		assertTrue(logger.isWarningEnabled());
+		assertFalse(logger.isInfoEnabled());
+	}
+
+	/**
+	 * The records logged right before a stop are written before it returns,
+	 * and none of them is written again after the next start.
+	 */
+	@Test(timeout = 10000L)
+	public void theRecordsQueuedBeforeTheStopAreWritten() {
+		final List<String> messages = new CopyOnWriteArrayList<String>();
+		final LogService logService = new LogService() {
+			@Override
+			public void log(int level, String message) {
+				messages.add(message);
+			}
+
+			@Override
+			public void log(int level, String message, Throwable exception) {
+				messages.add(message);
+			}
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			public void log(ServiceReference reference, int level, String message) {
+				messages.add(message);
+			}
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			public void log(ServiceReference reference, int level, String message, Throwable exception) {
+				messages.add(message);
+			}
+		};
+		FollowMeLogger serviceLogger = new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+			@Override
+			public LogService getLogService() {
+				return logService;
+			}
+		});
+		serviceLogger.setLevel("INFO");
+		serviceLogger.start();
+		for (int i = 0; i < 100; i++) {
+			serviceLogger.info("record " + i);
+		}
+		serviceLogger.info("Component is stopping...");
+		serviceLogger.stop();
+
+		assertEquals(101, messages.size());
+		assertEquals("Component is stopping...", messages.get(100));
+
+		logger.start();
+		logger.stop();
+		assertEquals(101, messages.size());
+	}
+}
@@ -0,0 +1,141 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.example.follow.me.bench.InMemoryDevice;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.log.LogService;
+
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+
+/**
+ * The plans of a room with two binary lights and a dimmer light: only the
+ * lights whose state differs are commanded, and their known state follows.
+ */
+public class LightingPlanTest {
+
+	private final FollowMeLogger logger = new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+		@Override
+		public LogService getLogService() {
+			return null;
+		}
+	});
+
+	private final FollowMeStatistics statistics = new FollowMeStatistics();
+
+	private ZoneIndex index;
+
+	private Zone zone;
+
+	private BinaryLight first;
+	private BinaryLight second;
+	private DimmerLight dimmer;
+
+	@Before
+	public void setUp() {
+		index = new ZoneIndex();
+		first = InMemoryDevice.newBinaryLight("first", 100.0d);
+		second = InMemoryDevice.newBinaryLight("second", 100.0d);
+		dimmer = InMemoryDevice.newDimmerLight("dimmer", 100.0d);
+		index.add(first, "kitchen");
+		index.add(second, "kitchen");
+		index.add(dimmer, "kitchen");
+		zone = index.getZone("kitchen");
+	}
+
+	private static LightAllocation allocation(boolean first, boolean second, double dimmerLevel) {
+		return new LightAllocation(new boolean[] { first, second }, new double[] { dimmerLevel }, 0.0d, 0.0d);
+	}
+
+	private long commands() {
+		return InMemoryDevice.of(first).getCommands() + InMemoryDevice.of(second).getCommands()
+				+ InMemoryDevice.of(dimmer).getCommands();
+	}
+
+	@Test
+	public void onlyTheChangedLightsAreCommanded() {
+		Actuator actuator = new Actuator(FollowMeEngine.getInstance(), logger, statistics, 0L);
+
+		LightingPlan plan = new LightingPlan(zone).compute(true, allocation(true, false, 0.5d));
+		assertArrayEquals(new boolean[] { true, false }, plan.getDesiredBinaryStates());
+		assertEquals(1, plan.getNumberOfBinaryLightsOn());
+		assertEquals(1, plan.getNumberOfDimmerLightsOn());
+		assertEquals(2, plan.apply(actuator, null, null));
+		assertEquals(2L, commands());
+		assertTrue(first.getPowerStatus());
+		assertFalse(second.getPowerStatus());
+		assertEquals(0.5d, dimmer.getPowerLevel(), 0.0d);
+		assertTrue(index.getState(first).getPowerStatus());
+		assertEquals(0.5d, index.getState(dimmer).getPowerLevel(), 0.0d);
+
+		// the same goal again: nothing to send
+		assertEquals(0, new LightingPlan(zone).compute(true, allocation(true, false, 0.5d)).apply(actuator, null,
+				null));
+		assertEquals(2L, commands());
+
+		// one light swapped for the other, the dimmer unchanged
+		assertEquals(2, new LightingPlan(zone).compute(true, allocation(false, true, 0.5d)).apply(actuator, null,
+				null));
+		assertEquals(4L, commands());
+		assertFalse(first.getPowerStatus());
+		assertTrue(second.getPowerStatus());
+	}
+
+	@Test
+	public void aLevelRoundedByTheDimmerIsNotSentAgain() {
+		Actuator actuator = new Actuator(FollowMeEngine.getInstance(), logger, statistics, 0L);
+		new LightingPlan(zone).compute(true, allocation(false, false, 0.3d)).apply(actuator, null, null);
+		// the level notified back by the device
+		index.getState(dimmer).update(DimmerLight.DIMMER_LIGHT_POWER_LEVEL, 0.3004d);
+
+		assertEquals(0, new LightingPlan(zone).compute(true, allocation(false, false, 0.3d)).apply(actuator, null,
+				null));
+		assertEquals(1L, commands());
+		assertEquals(1, new LightingPlan(zone).compute(true, allocation(false, false, 0.4d)).apply(actuator, null,
+				null));
+	}
+
+	@Test
+	public void everyLightIsTurnedOffWithoutPresence() {
+		Actuator actuator = new Actuator(FollowMeEngine.getInstance(), logger, statistics, 0L);
+		new LightingPlan(zone).compute(true, allocation(true, true, 1.0d)).apply(actuator, null, null);
+
+		LightingPlan plan = new LightingPlan(zone).compute(false, null);
+
+		assertEquals(0, plan.getNumberOfBinaryLightsOn());
+		assertEquals(0, plan.getNumberOfDimmerLightsOn());
+		assertEquals(3, plan.apply(actuator, null, null));
+		assertFalse(first.getPowerStatus());
+		assertFalse(second.getPowerStatus());
+		assertEquals(0.0d, dimmer.getPowerLevel(), 0.0d);
+	}
+
+	/**
+	 * The commands sent by the actuator threads, one of them hung: the others
+	 * are done, and the hung one is neither counted nor taken as known.
+	 */
+	@Test(timeout = 30000L)
+	public void aHungLightIsLeftUnknown() {
+		FollowMeEngine engine = FollowMeEngine.getInstance();
+		Actuator actuator = new Actuator(engine, logger, statistics, 100L);
+		InMemoryDevice.of(second).setCommandDelay(1000000000L);
+
+		LightingPlan plan = new LightingPlan(zone).compute(true, allocation(true, true, 0.5d));
+
+		engine.start();
+		try {
+			assertEquals(2, plan.apply(actuator, null, null));
+		} finally {
+			engine.stop();
+		}
+		assertTrue(index.getState(first).getPowerStatus());
+		assertFalse(index.getState(second).getPowerStatus());
+		assertEquals(0.5d, index.getState(dimmer).getPowerLevel(), 0.0d);
+		assertEquals(1L, statistics.getEventCount(FollowMeStatistics.EventType.COMMAND_FAILED));
+	}
+}
@@ -0,0 +1,141 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.example.follow.me.bench.InMemoryDevice;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.log.LogService;
+
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * The presence of a room with one sensor, filtered with a debounce and a
+ * hold-off.
+ */
+public class PresenceFilterTest {
+
+	private TimerWheel timerWheel;
+
+	/** The zones reported by the filter, with their filtered presence */
+	private final BlockingQueue<Boolean> changes = new LinkedBlockingQueue<Boolean>();
+
+	private PresenceFilter filter;
+
+	private ZoneIndex index;
+
+	private Zone zone;
+
+	private PresenceSensor sensor;
+
+	@Before
+	public void setUp() {
+		timerWheel = new TimerWheel(1L, 64, new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+			@Override
+			public LogService getLogService() {
+				return null;
+			}
+		}));
+		timerWheel.start();
+		filter = new PresenceFilter(timerWheel, new PresenceFilter.Listener() {
+			@Override
+			public void presenceChanged(Zone zone) {
+				changes.add(zone.getPresenceState().getPresence());
+			}
+		});
+		index = new ZoneIndex();
+		sensor = InMemoryDevice.newPresenceSensor("sensor");
+		index.add(sensor, "kitchen");
+		zone = index.getZone("kitchen");
+	}
+
+	@After
+	public void tearDown() {
+		timerWheel.stop();
+	}
+
+	/**
+	 * Change the presence seen by the sensor and give it to the filter, as
+	 * the component does.
+	 */
+	private void sense(boolean presence) {
+		InMemoryDevice.of(sensor).setProperty(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE, presence);
+		DeviceState state = index.getState(sensor);
+		state.update(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE, presence);
+		zone.presenceSensed(state);
+		filter.sensed(zone);
+	}
+
+	@Test
+	public void withoutTimesEveryChangeIsReportedAtOnce() {
+		sense(true);
+		assertEquals(Boolean.TRUE, changes.poll());
+		sense(false);
+		assertEquals(Boolean.FALSE, changes.poll());
+		assertEquals(0, timerWheel.getPendingTimeouts());
+	}
+
+	@Test(timeout = 10000L)
+	public void aPulseShorterThanTheDebounceIsIgnored() throws InterruptedException {
+		filter.setDebounce(50L);
+
+		sense(true);
+		sense(false);
+
+		assertEquals(null, changes.poll(150L, TimeUnit.MILLISECONDS));
+		assertFalse(zone.getPresenceState().getPresence());
+		assertEquals(0, timerWheel.getPendingTimeouts());
+	}
+
+	@Test(timeout = 10000L)
+	public void aLastingPresenceIsReportedAfterTheDebounce() throws InterruptedException {
+		filter.setDebounce(30L);
+		long sensedAt = System.nanoTime();
+
+		sense(true);
+
+		assertFalse(zone.getPresenceState().getPresence());
+		assertEquals(Boolean.TRUE, changes.take());
+		assertTrue(System.nanoTime() - sensedAt >= TimeUnit.MILLISECONDS.toNanos(30L));
+	}
+
+	@Test(timeout = 10000L)
+	public void theRoomIsHeldAfterThePresenceDrops() throws InterruptedException {
+		filter.setHoldOff(50L);
+		sense(true);
+		assertEquals(Boolean.TRUE, changes.poll());
+
+		// back before the hold-off: nothing reported
+		sense(false);
+		sense(true);
+		assertEquals(null, changes.poll(100L, TimeUnit.MILLISECONDS));
+		assertTrue(zone.getPresenceState().getPresence());
+
+		sense(false);
+		assertTrue(zone.getPresenceState().getPresence());
+		assertEquals(Boolean.FALSE, changes.take());
+	}
+
+	@Test(timeout = 10000L)
+	public void theTimesOfARoomOverrideTheOnesOfTheHouse() throws InterruptedException {
+		filter.setDebounce(10000L);
+		filter.setTimes("kitchen", 0L, -1L);
+
+		sense(true);
+		assertEquals(Boolean.TRUE, changes.poll());
+
+		filter.setTimes("kitchen", -1L, -1L);
+		sense(false);
+		assertEquals(Boolean.FALSE, changes.poll());
+		sense(true);
+		assertEquals(null, changes.poll(50L, TimeUnit.MILLISECONDS));
+		assertEquals(1, timerWheel.getPendingTimeouts());
+	}
+}
@@ -0,0 +1,116 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.example.follow.me.StateSnapshot.ZoneState;
+import org.example.follow.me.bench.InMemoryDevice;
+import org.example.follow.me.configuration.FollowMeSettings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+
+/**
+ * The snapshots written and read back, and restored into the live zones.
+ */
+public class StateSnapshotTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void aMissingSnapshotIsNull() throws IOException {
+		assertNull(StateSnapshot.read(new File(folder.getRoot(), "missing")));
+	}
+
+	@Test(expected = IOException.class)
+	public void anInvalidSnapshotIsRefused() throws IOException {
+		StateSnapshot.read(folder.newFile("invalid"));
+	}
+
+	@Test
+	public void aSnapshotIsReadAsWritten() throws IOException {
+		FollowMeSettings settings = new FollowMeSettings(3, 150.0d, 2750.0d).withHouseEnergyBudget(400.0d)
+				.withVersion(7L);
+		Map<String, IlluminancePreference> preferences = new HashMap<String, IlluminancePreference>();
+		preferences.put("alice", IlluminancePreference.SOFT);
+		preferences.put("bob", IlluminancePreference.FULL);
+		Map<String, String> personLocations = new HashMap<String, String>();
+		personLocations.put("alice", "kitchen");
+		personLocations.put("bob", "bedroom");
+		List<ZoneState> zones = new ArrayList<ZoneState>();
+		zones.add(new ZoneState("kitchen", true, new String[] { "first", "second" }, new boolean[] { true, false },
+				new String[] { "dimmer" }, new double[] { 0.25d }));
+		zones.add(new ZoneState("bedroom", false, new String[0], new boolean[0], new String[0], new double[0]));
+		File file = new File(folder.getRoot(), "snapshot");
+
+		new StateSnapshot(settings, preferences, personLocations, zones).write(file);
+		StateSnapshot snapshot = StateSnapshot.read(file);
+
+		FollowMeSettings read = snapshot.getSettings();
+		assertEquals(3, read.getMaximumNumberOfLightsToTurnOn());
+		assertEquals(150.0d, read.getMaximumAllowedEnergyInRoom(), 0.0d);
+		assertEquals(2750.0d, read.getTargetedIlluminance(), 0.0d);
+		assertEquals(400.0d, read.getHouseEnergyBudget(), 0.0d);
+		assertEquals(7L, read.getVersion());
+		assertEquals(preferences, snapshot.getPreferences());
+		assertEquals(personLocations, snapshot.getPersonLocations());
+		assertEquals(2, snapshot.getZones().size());
+		assertEquals("kitchen", snapshot.getZones().get(0).getLocation());
+		assertEquals("bedroom", snapshot.getZones().get(1).getLocation());
+		assertFalse(new File(folder.getRoot(), "snapshot.tmp").exists());
+	}
+
+	@Test
+	public void aZoneIsRestoredOnlyWithTheSameLights() throws IOException {
+		ZoneIndex index = new ZoneIndex();
+		BinaryLight first = InMemoryDevice.newBinaryLight("first", 100.0d);
+		BinaryLight second = InMemoryDevice.newBinaryLight("second", 100.0d);
+		DimmerLight dimmer = InMemoryDevice.newDimmerLight("dimmer", 100.0d);
+		index.add(first, "kitchen");
+		index.add(second, "kitchen");
+		index.add(dimmer, "kitchen");
+		Zone kitchen = index.getZone("kitchen");
+		kitchen.setExpectedState(false, new boolean[] { true, false }, new double[] { 0.25d });
+		File file = new File(folder.getRoot(), "snapshot");
+		List<ZoneState> zones = new ArrayList<ZoneState>();
+		zones.add(ZoneState.of(kitchen));
+		new StateSnapshot(new FollowMeSettings(3, 150.0d, 2750.0d), new HashMap<String, IlluminancePreference>(),
+				new HashMap<String, String>(), zones).write(file);
+		ZoneState state = StateSnapshot.read(file).getZones().get(0);
+
+		Zone restarted = new ZoneIndex().getOrCreateZone("kitchen");
+		assertNull(ZoneState.of(restarted));
+		assertFalse(state.restoreInto(restarted));
+
+		ZoneIndex restartedIndex = new ZoneIndex();
+		restartedIndex.add(first, "kitchen");
+		restartedIndex.add(second, "kitchen");
+		restartedIndex.add(dimmer, "kitchen");
+		restarted = restartedIndex.getZone("kitchen");
+		assertTrue(restarted.hasDrifted());
+		assertTrue(state.restoreInto(restarted));
+		assertArrayEquals(new boolean[] { true, false }, restarted.getExpectedBinaryStates());
+		assertArrayEquals(new double[] { 0.25d }, restarted.getExpectedDimmerLevels(), 0.0d);
+
+		// the lights in another order: evaluated again
+		ZoneIndex reorderedIndex = new ZoneIndex();
+		reorderedIndex.add(second, "kitchen");
+		reorderedIndex.add(first, "kitchen");
+		reorderedIndex.add(dimmer, "kitchen");
+		assertFalse(state.restoreInto(reorderedIndex.getZone("kitchen")));
+	}
+}
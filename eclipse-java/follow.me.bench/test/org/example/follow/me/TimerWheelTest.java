@@ -0,0 +1,122 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.log.LogService;
+
+/**
+ * The timers of a wheel of 1 ms ticks and 8 buckets, so the longer delays
+ * take several turns.
+ */
+public class TimerWheelTest {
+
+	private TimerWheel timerWheel;
+
+	@Before
+	public void setUp() {
+		timerWheel = new TimerWheel(1L, 8, new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+			@Override
+			public LogService getLogService() {
+				return null;
+			}
+		}));
+		timerWheel.start();
+	}
+
+	@After
+	public void tearDown() {
+		timerWheel.stop();
+	}
+
+	@Test(timeout = 10000L)
+	public void aTimerNeverRunsEarly() throws InterruptedException {
+		final CountDownLatch expired = new CountDownLatch(1);
+		final long[] expiredAt = new long[1];
+		long scheduledAt = System.nanoTime();
+		timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expiredAt[0] = System.nanoTime();
+				expired.countDown();
+			}
+		}, 50L);
+
+		expired.await();
+
+		assertTrue(expiredAt[0] - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(50L));
+		assertEquals(0, timerWheel.getPendingTimeouts());
+	}
+
+	@Test(timeout = 10000L)
+	public void aCancelledTimerDoesNotRun() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		TimerWheel.Timeout timeout = timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 30L);
+		final CountDownLatch later = new CountDownLatch(1);
+		timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				later.countDown();
+			}
+		}, 60L);
+
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		later.await();
+
+		assertEquals(0, runs.get());
+		assertEquals(0, timerWheel.getPendingTimeouts());
+	}
+
+	@Test(timeout = 10000L)
+	public void timersRunDespiteAFailedOne() throws InterruptedException {
+		final CountDownLatch expired = new CountDownLatch(100);
+		timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("failed timer");
+			}
+		}, 0L);
+		for (int i = 0; i < 100; i++) {
+			timerWheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					expired.countDown();
+				}
+			}, i % 20);
+		}
+
+		expired.await();
+	}
+
+	@Test(timeout = 10000L)
+	public void pendingTimersRunOnceStartedAgain() throws InterruptedException {
+		timerWheel.stop();
+		final CountDownLatch expired = new CountDownLatch(1);
+		timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expired.countDown();
+			}
+		}, 5L);
+		Thread.sleep(20L);
+		assertEquals(1, timerWheel.getPendingTimeouts());
+
+		timerWheel.start();
+
+		expired.await();
+	}
+}
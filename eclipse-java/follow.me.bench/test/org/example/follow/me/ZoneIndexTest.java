@@ -0,0 +1,134 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.example.follow.me.bench.InMemoryDevice;
+import org.junit.Test;
+
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * The devices indexed and moved between the zones.
+ */
+public class ZoneIndexTest {
+
+	@Test
+	public void addPutsTheDeviceInTheZoneOfItsKind() {
+		ZoneIndex index = new ZoneIndex();
+		PresenceSensor sensor = InMemoryDevice.newPresenceSensor("sensor");
+		BinaryLight binaryLight = InMemoryDevice.newBinaryLight("binary", 100.0d);
+		DimmerLight dimmerLight = InMemoryDevice.newDimmerLight("dimmer", 100.0d);
+
+		DeviceState state = index.add(binaryLight, "kitchen");
+		index.add(dimmerLight, "kitchen");
+		index.add(sensor, "kitchen");
+
+		Zone kitchen = index.getZone("kitchen");
+		assertEquals("kitchen", index.getLocation(binaryLight));
+		assertSame(state, index.getState(binaryLight));
+		assertEquals(1, kitchen.getBinaryLights().size());
+		assertEquals(1, kitchen.getDimmerLights().size());
+		assertEquals(1, kitchen.getPresenceSensors().size());
+		assertSame(state, kitchen.getBinaryLightStates().get(0));
+		assertTrue(kitchen.hasLights());
+	}
+
+	@Test
+	public void moveLeavesTheOldZoneAndKeepsTheState() {
+		ZoneIndex index = new ZoneIndex();
+		BinaryLight light = InMemoryDevice.newBinaryLight("light", 100.0d);
+		DeviceState state = index.add(light, "kitchen");
+
+		assertEquals("kitchen", index.move(light, "bedroom"));
+
+		assertEquals("bedroom", index.getLocation(light));
+		assertSame(state, index.getState(light));
+		assertTrue(index.getZone("kitchen").getBinaryLights().isEmpty());
+		assertFalse(index.getZone("kitchen").hasLights());
+		assertEquals(1, index.getZone("bedroom").getBinaryLights().size());
+		assertSame(state, index.getZone("bedroom").getBinaryLightStates().get(0));
+	}
+
+	@Test
+	public void moveOfAnUnknownDeviceIsIgnored() {
+		ZoneIndex index = new ZoneIndex();
+		BinaryLight light = InMemoryDevice.newBinaryLight("light", 100.0d);
+
+		assertNull(index.move(light, "bedroom"));
+		assertNull(index.getLocation(light));
+	}
+
+	@Test
+	public void removeForgetsTheDevice() {
+		ZoneIndex index = new ZoneIndex();
+		PresenceSensor sensor = InMemoryDevice.newPresenceSensor("sensor");
+		index.add(sensor, "kitchen");
+
+		assertEquals("kitchen", index.remove(sensor));
+
+		assertNull(index.getLocation(sensor));
+		assertNull(index.getState(sensor));
+		assertTrue(index.getZone("kitchen").getPresenceSensors().isEmpty());
+		assertNull(index.remove(sensor));
+		assertNull(index.move(sensor, "bedroom"));
+	}
+
+	/**
+	 * Threads moving the same lights between two zones in opposite
+	 * directions, which locks the zones in both orders: each light must end
+	 * in exactly one zone, the one it is indexed at.
+	 */
+	@Test(timeout = 30000L)
+	public void concurrentMovesKeepEachDeviceInOneZone() throws InterruptedException {
+		final ZoneIndex index = new ZoneIndex();
+		final BinaryLight[] lights = new BinaryLight[8];
+		for (int i = 0; i < lights.length; i++) {
+			lights[i] = InMemoryDevice.newBinaryLight("light-" + i, 100.0d);
+			index.add(lights[i], i % 2 == 0 ? "kitchen" : "bedroom");
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean toKitchen = t % 2 == 0;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 10000; i++) {
+						BinaryLight light = lights[i % lights.length];
+						index.move(light, toKitchen == (i % 3 == 0) ? "kitchen" : "bedroom");
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Zone kitchen = index.getZone("kitchen");
+		Zone bedroom = index.getZone("bedroom");
+		assertEquals(lights.length, kitchen.getBinaryLights().size() + bedroom.getBinaryLights().size());
+		assertEquals(kitchen.getBinaryLights().size(), kitchen.getBinaryLightStates().size());
+		for (BinaryLight light : lights) {
+			Zone zone = index.getZone(index.getLocation(light));
+			Zone other = zone == kitchen ? bedroom : kitchen;
+			assertTrue(zone.getBinaryLights().contains(light));
+			assertFalse(other.getBinaryLights().contains(light));
+			assertSame(index.getState(light), zone.getBinaryLightStates().get(zone.getBinaryLights().indexOf(light)));
+		}
+	}
+}
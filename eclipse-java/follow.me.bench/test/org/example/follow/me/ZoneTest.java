@@ -0,0 +1,49 @@
+package org.example.follow.me;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.example.follow.me.bench.InMemoryDevice;
+import org.junit.Test;
+
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+
+/**
+ * The drift of the lights of a zone from the last evaluation.
+ */
+public class ZoneTest {
+
+	private static Zone kitchen(DimmerLight dimmer) {
+		ZoneIndex index = new ZoneIndex();
+		index.add(dimmer, "kitchen");
+		Zone kitchen = index.getZone("kitchen");
+		kitchen.setExpectedState(true, new boolean[0], new double[] { 0.3d });
+		return kitchen;
+	}
+
+	@Test
+	public void aDimmerLevelRoundedByTheDeviceHasNotDrifted() {
+		DimmerLight dimmer = InMemoryDevice.newDimmerLight("dimmer", 100.0d);
+		Zone kitchen = kitchen(dimmer);
+
+		dimmer.setPowerLevel(0.1d + 0.2d);
+		assertFalse(kitchen.hasDrifted());
+		dimmer.setPowerLevel(0.4d);
+		assertTrue(kitchen.hasDrifted());
+	}
+
+	@Test
+	public void theDriftsInARowAreCounted() {
+		Zone kitchen = kitchen(InMemoryDevice.newDimmerLight("dimmer", 100.0d));
+
+		assertEquals(1, kitchen.recordDriftCheck(true));
+		assertEquals(2, kitchen.recordDriftCheck(true));
+		assertEquals(0, kitchen.recordDriftCheck(false));
+		assertEquals(1, kitchen.recordDriftCheck(true));
+		assertEquals(3L, kitchen.getDriftRepairs());
+
+		kitchen.resetStatistics();
+		assertEquals(0L, kitchen.getDriftRepairs());
+	}
+}
@@ -0,0 +1,156 @@
+package org.example.follow.me.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.example.follow.me.FollowMeImpl;
+import org.example.follow.me.configuration.FollowMeSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+
+/**
+ * The whole component driven through an in-memory house of four rooms, each
+ * with two binary lights and a dimmer light.
+ */
+public class InMemoryHouseTest {
+
+	private static final long TIMEOUT = 10000L;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private InMemoryHouse house;
+
+	@Before
+	public void setUp() {
+		house = InMemoryHouse.withZones(4, 2, 1);
+	}
+
+	@After
+	public void tearDown() {
+		house.stop();
+	}
+
+	private int getLightsOn(String zone) {
+		int on = 0;
+		for (GenericDevice light : house.getLights()) {
+			if (!zone.equals(light.getPropertyValue(FollowMeImpl.LOCATION_PROPERTY_NAME))) {
+				continue;
+			}
+			if (isOn(light)) {
+				on++;
+			}
+		}
+		return on;
+	}
+
+	private static boolean isOn(GenericDevice light) {
+		return light instanceof DimmerLight ? ((DimmerLight) light).getPowerLevel() > 0.0d : ((BinaryLight) light)
+				.getPowerStatus();
+	}
+
+	@Test(timeout = 30000L)
+	public void theLightsFollowThePresence() throws InterruptedException {
+		String kitchen = house.getZones().get(0);
+		house.start();
+		assertTrue(house.awaitIdle(TIMEOUT));
+
+		house.setPresence(kitchen, true);
+		assertTrue(house.awaitIdle(TIMEOUT));
+		assertTrue(getLightsOn(kitchen) > 0);
+		assertEquals(0, getLightsOn(house.getZones().get(1)));
+
+		house.setPresence(kitchen, false);
+		assertTrue(house.awaitIdle(TIMEOUT));
+		assertEquals(0, getLightsOn(kitchen));
+	}
+
+	/**
+	 * A light whose location is cleared is parked in the unknown zone, which
+	 * is never lit nor turned off.
+	 */
+	@Test(timeout = 30000L)
+	public void aLightWhoseLocationIsClearedIsLeftAlone() throws InterruptedException {
+		String kitchen = house.getZones().get(0);
+		house.start();
+		house.setPresence(kitchen, true);
+		assertTrue(house.awaitIdle(TIMEOUT));
+		GenericDevice light = null;
+		for (GenericDevice device : house.getLights()) {
+			if (isOn(device) && kitchen.equals(device.getPropertyValue(FollowMeImpl.LOCATION_PROPERTY_NAME))) {
+				light = device;
+			}
+		}
+
+		house.getFollowMe().devicePropertyModified(light, FollowMeImpl.LOCATION_PROPERTY_NAME, kitchen, null);
+		house.setPresence(kitchen, false);
+		assertTrue(house.awaitIdle(TIMEOUT));
+
+		assertTrue(isOn(light));
+		assertFalse(house.getFollowMe().getStatisticsReport().contains("null"));
+	}
+
+	/**
+	 * The rooms lit by the reconciliation of the start follow no event: only
+	 * the presence change is timed to the actuation.
+	 */
+	@Test(timeout = 30000L)
+	public void onlyTheEventsAreTimedToTheActuation() throws InterruptedException {
+		String kitchen = house.getZones().get(0);
+		house.setPresence(kitchen, true);
+		house.start();
+		assertTrue(house.awaitIdle(TIMEOUT));
+		assertTrue(getLightsOn(kitchen) > 0);
+		assertTrue(house.getFollowMe().getStatisticsReport().contains("callback to actuation: count=0 "));
+
+		house.setPresence(kitchen, false);
+		assertTrue(house.awaitIdle(TIMEOUT));
+		assertTrue(house.getFollowMe().getStatisticsReport().contains("callback to actuation: count=1 "));
+	}
+
+	@Test(timeout = 30000L)
+	public void aWarmRestartSendsNoCommand() throws InterruptedException {
+		File snapshot = new File(folder.getRoot(), "snapshot");
+		house.addPerson("alice", house.getZones().get(2));
+		house.getFollowMe().setSnapshotFile(snapshot.getPath());
+		house.start();
+		assertTrue(house.awaitIdle(TIMEOUT));
+
+		house.replaceComponent();
+		assertTrue(snapshot.isFile());
+		house.getFollowMe().setSnapshotFile(snapshot.getPath());
+		long commands = house.getCommands();
+		house.start();
+		assertTrue(house.awaitIdle(TIMEOUT));
+
+		assertEquals(commands, house.getCommands());
+		assertFalse(house.getFollowMe().reconcile().getCommands() > 0);
+	}
+
+	@Test(timeout = 30000L)
+	public void settingsChangedMeanwhileAreNotOverwritten() throws InterruptedException {
+		house.start();
+		FollowMeImpl followMe = house.getFollowMe();
+		FollowMeSettings read = followMe.getSettings();
+		followMe.setTargetedIlluminance(500.0d);
+
+		FollowMeSettings current = followMe.applySettings(read.withMaximumNumberOfLightsToTurnOn(3));
+		assertEquals(500.0d, current.getTargetedIlluminance(), 0.0d);
+		assertEquals(read.getMaximumNumberOfLightsToTurnOn(), current.getMaximumNumberOfLightsToTurnOn());
+
+		FollowMeSettings applied = followMe.applySettings(current.withMaximumNumberOfLightsToTurnOn(3));
+		assertEquals(current.getVersion() + 1L, applied.getVersion());
+		assertEquals(3, followMe.getMaximumNumberOfLightsToTurnOn());
+		assertEquals(500.0d, followMe.getTargetedIlluminance(), 0.0d);
+	}
+}
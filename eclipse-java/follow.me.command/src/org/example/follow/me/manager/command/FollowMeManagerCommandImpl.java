@@ -1,11 +1,32 @@
 package org.example.follow.me.manager.command;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.felix.ipojo.annotations.Bind;
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
 import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Unbind;
+import org.example.follow.me.configuration.EnergyWindow;
+import org.example.follow.me.configuration.FollowMeDiagnostics;
+import org.example.follow.me.configuration.FollowMeEnergyAccounting;
 import org.example.follow.me.manager.EnergyGoal;
 import org.example.follow.me.manager.FollowMeAdministration;
 import org.example.follow.me.manager.IlluminanceGoal;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import fr.liglab.adele.icasa.command.handler.Command;
 import fr.liglab.adele.icasa.command.handler.CommandProvider;
@@ -20,13 +41,144 @@ import fr.liglab.adele.icasa.service.preferences.Preferences;
 @CommandProvider(namespace = "followme")
 public class FollowMeManagerCommandImpl {
 
-	// Declare a dependency to a FollowMeAdministration service
-	@Requires
-	private FollowMeAdministration m_administrationService;
-	
+	/** The key of the services published without house.id */
+	private static final String NO_HOUSE = "";
+
+	/** The name of the property giving the house of a service */
+	private static final String HOUSE_ID = "house.id";
+
 	@Requires
 	private Preferences PreferencesService;
 
+	// The services of each house, by house.id. They are optional, so the
+	// commands stay available while the Follow Me of a house is missing. A
+	// house.id published twice keeps every service in the order bound: the
+	// first one is used, the next takes over when it is unbound.
+	private final Map<String, List<FollowMeAdministration>> m_administrationServices = new HashMap<String, List<FollowMeAdministration>>();
+	private final Map<String, List<FollowMeDiagnostics>> m_diagnosticsServices = new HashMap<String, List<FollowMeDiagnostics>>();
+	private final Map<String, List<FollowMeEnergyAccounting>> m_energyServices = new HashMap<String, List<FollowMeEnergyAccounting>>();
+
+	/** The house the commands apply to, null for the default one */
+	private String m_house;
+
+	@Bind(id = "administration", aggregate = true, optional = true)
+	public synchronized void bindAdministration(FollowMeAdministration service, Map<String, Object> properties) {
+		bind(m_administrationServices, houseOf(properties), service);
+	}
+
+	@Unbind(id = "administration")
+	public synchronized void unbindAdministration(FollowMeAdministration service, Map<String, Object> properties) {
+		unbind(m_administrationServices, houseOf(properties), service);
+	}
+
+	@Bind(id = "diagnostics", aggregate = true, optional = true)
+	public synchronized void bindDiagnostics(FollowMeDiagnostics service, Map<String, Object> properties) {
+		bind(m_diagnosticsServices, houseOf(properties), service);
+	}
+
+	@Unbind(id = "diagnostics")
+	public synchronized void unbindDiagnostics(FollowMeDiagnostics service, Map<String, Object> properties) {
+		unbind(m_diagnosticsServices, houseOf(properties), service);
+	}
+
+	@Bind(id = "energy", aggregate = true, optional = true)
+	public synchronized void bindEnergy(FollowMeEnergyAccounting service, Map<String, Object> properties) {
+		bind(m_energyServices, houseOf(properties), service);
+	}
+
+	@Unbind(id = "energy")
+	public synchronized void unbindEnergy(FollowMeEnergyAccounting service, Map<String, Object> properties) {
+		unbind(m_energyServices, houseOf(properties), service);
+	}
+
+	private static String houseOf(Map<String, Object> properties) {
+		Object house = properties.get(HOUSE_ID);
+		return house == null ? NO_HOUSE : house.toString();
+	}
+
+	private static <T> void bind(Map<String, List<T>> services, String house, T service) {
+		List<T> bound = services.get(house);
+		if (bound == null) {
+			bound = new ArrayList<T>();
+			services.put(house, bound);
+		} else {
+			System.out.println("Warning: the house " + describe(house) + " is published by " + (bound.size() + 1)
+					+ " services, the first one bound is used");
+		}
+		bound.add(service);
+	}
+
+	private static <T> void unbind(Map<String, List<T>> services, String house, T service) {
+		List<T> bound = services.get(house);
+		if (bound != null && bound.remove(service) && bound.isEmpty()) {
+			services.remove(house);
+		}
+	}
+
+	/**
+	 * Felix shell command implementation to select the house the other
+	 * commands apply to.
+	 *
+	 * @param house the house.id of the house, or "-" for the default house
+	 */
+	@Command
+	public synchronized void setHouse(String house) {
+		m_house = house.equals("-") ? null : house;
+		getHouse();
+	}
+
+	/**
+	 * Felix shell command implementation to print the selected house and the
+	 * houses known.
+	 */
+	@Command
+	public synchronized void getHouse() {
+		Set<String> houses = new TreeSet<String>(m_administrationServices.keySet());
+		houses.addAll(m_diagnosticsServices.keySet());
+		houses.addAll(m_energyServices.keySet());
+		System.out.println("House = " + describe(getSelectedHouse()) + ", known houses = " + houses);
+	}
+
+	/**
+	 * Get the house the commands apply to: the selected one, else the only
+	 * house known, else the one published without house.id. All the services
+	 * are taken from the same house.
+	 */
+	private String getSelectedHouse() {
+		if (m_house != null) {
+			return m_house;
+		}
+		Set<String> houses = new HashSet<String>(m_administrationServices.keySet());
+		houses.addAll(m_diagnosticsServices.keySet());
+		houses.addAll(m_energyServices.keySet());
+		return houses.size() == 1 ? houses.iterator().next() : NO_HOUSE;
+	}
+
+	private static String describe(String house) {
+		return house.equals(NO_HOUSE) ? "(no house.id)" : house;
+	}
+
+	private <T> T getService(Map<String, List<T>> services, String name) {
+		String house = getSelectedHouse();
+		List<T> bound = services.get(house);
+		if (bound == null) {
+			throw new IllegalStateException("No " + name + " for the house " + describe(house));
+		}
+		return bound.get(0);
+	}
+
+	private FollowMeAdministration administration() {
+		return getService(m_administrationServices, "FollowMeAdministration");
+	}
+
+	private FollowMeDiagnostics diagnostics() {
+		return getService(m_diagnosticsServices, "FollowMeDiagnostics");
+	}
+
+	private FollowMeEnergyAccounting energyAccounting() {
+		return getService(m_energyServices, "FollowMeEnergyAccounting");
+	}
+
 	/**
 	 * Felix shell command implementation to sets the illuminance preference.
 	 *
@@ -56,13 +208,13 @@ public class FollowMeManagerCommandImpl {
 
 		}
 		//call the administration service to configure it :
-		m_administrationService.setIlluminancePreference(illuminanceGoal);
+		administration().setIlluminancePreference(illuminanceGoal);
 	}
 
 	@Command
 	public synchronized void getIlluminancePreference() {
 		//TODO : implement the command that print the current value of the goal
-		System.out.println("The illuminance goal is " + m_administrationService.getIlluminancePreference());
+		System.out.println("The illuminance goal is " + administration().getIlluminancePreference());
 	}
 	
 	@Command
@@ -84,13 +236,55 @@ public class FollowMeManagerCommandImpl {
 		default:
 			throw new IllegalArgumentException("Invalid energy goal !" + goal);
 		}
-		m_administrationService.setEnergySavingGoal(energyGoal);
+		administration().setEnergySavingGoal(energyGoal);
+	}
+
+	/**
+	 * Felix shell command implementation to set the illuminance and energy
+	 * goals at once.
+	 *
+	 * @param illuminance the new illuminance preference ("SOFT", "MEDIUM", "FULL"), or "-" to keep it
+	 * @param energy the new energy goal ("LOW", "MEDIUM", "HIGH"), or "-" to keep it
+	 */
+	@Command
+	public synchronized void setGoals(String illuminance, String energy) {
+		IlluminanceGoal illuminanceGoal = null;
+		if (!illuminance.equals("-")) {
+			illuminanceGoal = toIlluminanceGoal(illuminance);
+		}
+		EnergyGoal energyGoal = null;
+		if (!energy.equals("-")) {
+			try {
+				energyGoal = EnergyGoal.valueOf(energy);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid energy goal !" + energy);
+			}
+		}
+		administration().setGoals(illuminanceGoal, energyGoal);
+	}
+
+	/**
+	 * Felix shell command implementation to share a power budget among the
+	 * occupied rooms of the house.
+	 *
+	 * @param watts the budget of the house in Watts, 0 to cap each room with the energy goal
+	 */
+	@Command
+	public synchronized void setHouseBudget(double watts) {
+		administration().setHouseEnergyBudget(watts);
+	}
+
+	@Command
+	public synchronized void getHouseBudget() {
+		double watts = administration().getHouseEnergyBudget();
+		System.out.println(watts > 0.0d ? "HouseBudget = " + watts + "W" : "HouseBudget = none, EnergyMode = "
+				+ administration().getEnergyGoal());
 	}
 
 	@Command
 	public synchronized void getEnergyPreference() {
 		// TODO Auto-generated method stub
-		System.out.println("EnergyMode = " + m_administrationService.getEnergyGoal());
+		System.out.println("EnergyMode = " + administration().getEnergyGoal());
 	}
 	
 	@Command
@@ -113,13 +307,150 @@ public class FollowMeManagerCommandImpl {
 			throw new IllegalArgumentException("Invalid illuminance goal !" + goal);
 		}
 		//call the preferences service to configure it :
-		m_administrationService.setUserPreference(name,illuminanceGoal);
+		administration().setUserPreference(name,illuminanceGoal);
 	}
 
 	@Command
 	public synchronized void getUserPreference(String name) {
 		//TODO : implement the command that print the current value of the goal
-		System.out.println("The illuminance goal for the user "+ name + " is " + m_administrationService.getUserPreference(name)); 
+		System.out.println("The illuminance goal for the user "+ name + " is " + administration().getUserPreference(name)); 
+	}
+
+	/**
+	 * Felix shell command implementation to print the runtime statistics.
+	 */
+	@Command
+	public synchronized void stats() {
+		System.out.print(diagnostics().getStatisticsReport());
+	}
+
+	/**
+	 * Felix shell command implementation to reset the runtime statistics.
+	 */
+	@Command
+	public synchronized void resetStats() {
+		diagnostics().resetStatistics();
+		System.out.println("The statistics have been reset");
+	}
+
+	/**
+	 * Felix shell command implementation to re-evaluate every room at once.
+	 */
+	@Command
+	public synchronized void reconcile() {
+		System.out.println("Reconciliation: " + diagnostics().reconcile());
+	}
+
+	/**
+	 * Felix shell command implementation to import the illuminance preferences
+	 * of several users at once. A ".json" file holds an object mapping each
+	 * user to its goal, any other file holds "name,goal" lines.
+	 *
+	 * @param file the path of the file to import
+	 */
+	@Command
+	public synchronized void importPreferences(String file) throws IOException, JSONException {
+		String content = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+		Map<String, IlluminanceGoal> preferences = new LinkedHashMap<String, IlluminanceGoal>();
+		if (file.endsWith(".json")) {
+			JSONObject json = new JSONObject(content);
+			for (Iterator<?> names = json.keys(); names.hasNext();) {
+				String name = names.next().toString();
+				preferences.put(name, toIlluminanceGoal(json.getString(name)));
+			}
+		} else {
+			for (String line : content.split("\\r?\\n")) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split(",");
+				if (fields.length != 2) {
+					throw new IllegalArgumentException("Invalid line, expected name,goal : " + line);
+				}
+				preferences.put(fields[0].trim(), toIlluminanceGoal(fields[1].trim()));
+			}
+		}
+		administration().setUserPreferences(preferences);
+		System.out.println(preferences.size() + " user preferences imported from " + file);
+	}
+
+	/**
+	 * Felix shell command implementation to export the illuminance preferences
+	 * of the known users, in JSON for a ".json" file and in CSV otherwise.
+	 *
+	 * @param file the path of the file to write
+	 */
+	@Command
+	public synchronized void exportPreferences(String file) throws IOException, JSONException {
+		Map<String, IlluminanceGoal> preferences = administration().getUserPreferences();
+		List<String> lines = new ArrayList<String>();
+		if (file.endsWith(".json")) {
+			JSONObject json = new JSONObject();
+			for (Map.Entry<String, IlluminanceGoal> preference : preferences.entrySet()) {
+				json.put(preference.getKey(), preference.getValue().toString());
+			}
+			lines.add(json.toString(2));
+		} else {
+			for (Map.Entry<String, IlluminanceGoal> preference : preferences.entrySet()) {
+				lines.add(preference.getKey() + "," + preference.getValue());
+			}
+		}
+		Files.write(Paths.get(file), lines, StandardCharsets.UTF_8);
+		System.out.println(preferences.size() + " user preferences exported to " + file);
+	}
+
+	/**
+	 * Felix shell command implementation to print the power and the energy
+	 * consumed by the whole house and by each room.
+	 */
+	@Command
+	public synchronized void energy() {
+		System.out.println(energyLine("house", null));
+		for (String location : energyAccounting().getAccountedLocations()) {
+			System.out.println(energyLine(location, location));
+		}
+	}
+
+	/**
+	 * Felix shell command implementation to print the power and the energy
+	 * consumed by a room.
+	 *
+	 * @param location the room
+	 */
+	@Command
+	public synchronized void roomEnergy(String location) {
+		System.out.println(energyLine(location, location));
+	}
+
+	/**
+	 * Felix shell command implementation to print the energy consumed by a
+	 * light.
+	 *
+	 * @param serialNumber the serial number of the light
+	 */
+	@Command
+	public synchronized void deviceEnergy(String serialNumber) {
+		System.out.println(serialNumber + ": " + String.format("%.3f", energyAccounting().getDeviceEnergy(serialNumber))
+				+ "Wh");
+	}
+
+	private String energyLine(String name, String location) {
+		StringBuilder line = new StringBuilder(name).append(": ")
+				.append(String.format("%.1f", energyAccounting().getPower(location))).append('W');
+		for (EnergyWindow window : EnergyWindow.values()) {
+			line.append(' ').append(window.name().toLowerCase()).append('=')
+					.append(String.format("%.3f", energyAccounting().getEnergy(location, window))).append("Wh");
+		}
+		return line.toString();
+	}
+
+	private static IlluminanceGoal toIlluminanceGoal(String goal) {
+		try {
+			return IlluminanceGoal.valueOf(goal);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid illuminance goal !" + goal);
+		}
 	}
 
 }
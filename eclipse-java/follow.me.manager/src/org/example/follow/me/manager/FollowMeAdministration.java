@@ -1,5 +1,7 @@
 package org.example.follow.me.manager;
 
+import java.util.Map;
+
 /**
  * The Interface FollowMeAdministration allows the administrator to configure
  * its preference regarding the management of the Follow Me application.
@@ -34,9 +36,64 @@ public interface FollowMeAdministration {
      * @return the current energy goal.
      */
     public EnergyGoal getEnergyGoal();
+
+    /**
+     * Sets the illuminance and energy goals at once. The rooms are checked
+     * once with both goals applied.
+     * 
+     * @param illuminanceGoal
+     *            the new illuminance preference, or null to keep it
+     * @param energyGoal
+     *            the new energy goal, or null to keep it
+     */
+    public void setGoals(IlluminanceGoal illuminanceGoal, EnergyGoal energyGoal);
+
+    /**
+     * Sets the power budget of the whole house. When it is set, the budget is
+     * shared among the occupied rooms instead of capping each room with the
+     * energy goal.
+     * 
+     * @param watts
+     *            the budget in Watts, or 0 to cap each room with the energy
+     *            goal
+     */
+    public void setHouseEnergyBudget(double watts);
+
+    /**
+     * Gets the power budget of the whole house.
+     * 
+     * @return the budget in Watts, or 0 if each room is capped by the energy
+     *         goal
+     */
+    public double getHouseEnergyBudget();
     
+    /**
+     * Gets the illuminance preference of a user.
+     * 
+     * @param name
+     *            the name of the user
+     * @return the illuminance preference, or null if the user has none
+     */
     public IlluminanceGoal getUserPreference(String name);
 
 	public void setUserPreference(String name, IlluminanceGoal illuminanceGoal);
+
+    /**
+     * Sets the illuminance preferences of several users at once. Only the
+     * preferences which change are written, and the rooms of these users are
+     * checked once at the end.
+     * 
+     * @param preferences
+     *            the illuminance preference of each user
+     */
+    public void setUserPreferences(Map<String, IlluminanceGoal> preferences);
+
+    /**
+     * Gets the illuminance preferences of the users known by the manager: the
+     * users whose preference has been set or read through it.
+     * 
+     * @return the illuminance preference of each known user having one
+     */
+    public Map<String, IlluminanceGoal> getUserPreferences();
     
 }
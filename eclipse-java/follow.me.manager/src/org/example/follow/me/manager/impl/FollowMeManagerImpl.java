@@ -1,9 +1,15 @@
 package org.example.follow.me.manager.impl;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
 import org.example.follow.me.manager.EnergyGoal;
 import org.example.follow.me.manager.FollowMeAdministration;
 import org.example.follow.me.manager.IlluminanceGoal;
 import org.example.follow.me.configuration.FollowMeConfiguration;
+import org.example.follow.me.configuration.FollowMeSettings;
 import fr.liglab.adele.icasa.service.location.PersonLocationService;
 import fr.liglab.adele.icasa.service.preferences.Preferences;
 
@@ -12,6 +18,9 @@ public class FollowMeManagerImpl implements FollowMeAdministration {
 	/** Field for FollowMeConfiguration dependency */
 	private FollowMeConfiguration FollowMeConfiguration;
 
+	/** The house managed, published by the house.id property; null for a single house */
+	private String houseId;
+
 	/** Field for Location.Service dependency */
 	private PersonLocationService LocationService;
 	/** Field for Service.Preferences dependency */
@@ -25,13 +34,15 @@ public class FollowMeManagerImpl implements FollowMeAdministration {
 	public static final String USER_PROP_ILLUMINANCE_VALUE_MEDIUM = "MEDIUM";
 	public static final String USER_PROP_ILLUMINANCE_VALUE_FULL = "FULL";
 
+	/**
+	 * The users whose preference has been set or read through the manager
+	 */
+	private final Set<String> knownUsers = new TreeSet<String>();
+
 	@Override
 	public synchronized void setIlluminancePreference(IlluminanceGoal illuminanceGoal) {
 		// TODO Auto-generated method stub
-		int maximumNumberOfLightsToTurnOn = illuminanceGoal.getNumberOfLightsToTurnOn();
-		double targetedIlluminance = illuminanceGoal.getTargetedIlluminance();
-		FollowMeConfiguration.setMaximumNumberOfLightsToTurnOn(maximumNumberOfLightsToTurnOn);
-		FollowMeConfiguration.setTargetedIlluminance(targetedIlluminance);
+		setGoals(illuminanceGoal, null);
 	}
 
 	@Override
@@ -74,8 +85,40 @@ public class FollowMeManagerImpl implements FollowMeAdministration {
 
 	@Override
 	public synchronized void setEnergySavingGoal(EnergyGoal energyGoal) {
-		double maximumEnergyConsumptionAllowedInARoom = energyGoal.getMaximumEnergyInRoom();
-		FollowMeConfiguration.setMaximumAllowedEnergyInRoom(maximumEnergyConsumptionAllowedInARoom);
+		setGoals(null, energyGoal);
+	}
+
+	@Override
+	public synchronized void setGoals(IlluminanceGoal illuminanceGoal, EnergyGoal energyGoal) {
+		FollowMeSettings settings;
+		do {
+			settings = FollowMeConfiguration.getSettings();
+			if (illuminanceGoal != null) {
+				settings = settings.withMaximumNumberOfLightsToTurnOn(illuminanceGoal.getNumberOfLightsToTurnOn())
+						.withTargetedIlluminance(illuminanceGoal.getTargetedIlluminance());
+			}
+			if (energyGoal != null) {
+				settings = settings.withMaximumAllowedEnergyInRoom(energyGoal.getMaximumEnergyInRoom());
+			}
+			// one configuration change, so the rooms are checked once; derived
+			// again if the settings have changed meanwhile
+		} while (!FollowMeConfiguration.applySettings(settings).hasSameGoals(settings));
+	}
+
+	@Override
+	public synchronized void setHouseEnergyBudget(double watts) {
+		if (watts < 0.0d) {
+			throw new IllegalArgumentException("Invalid house energy budget !" + watts);
+		}
+		FollowMeSettings settings;
+		do {
+			settings = FollowMeConfiguration.getSettings().withHouseEnergyBudget(watts);
+		} while (!FollowMeConfiguration.applySettings(settings).hasSameGoals(settings));
+	}
+
+	@Override
+	public synchronized double getHouseEnergyBudget() {
+		return FollowMeConfiguration.getSettings().getHouseEnergyBudget();
 	}
 
 	@Override
@@ -106,34 +149,70 @@ public class FollowMeManagerImpl implements FollowMeAdministration {
 	}
 
 	public synchronized IlluminanceGoal getUserPreference(String name) {
-		
-		
-		String UserIllum = (String) PreferencesService.getUserPropertyValue(name, USER_PROP_ILLUMINANCE);
-		// The targeted goal
-		IlluminanceGoal illuminanceGoal;
-
-		switch (UserIllum) {
-		case USER_PROP_ILLUMINANCE_VALUE_SOFT:
-			illuminanceGoal = IlluminanceGoal.SOFT;
-			break;
-		case USER_PROP_ILLUMINANCE_VALUE_MEDIUM:
-			illuminanceGoal = IlluminanceGoal.MEDIUM;
-			break;
-		case USER_PROP_ILLUMINANCE_VALUE_FULL:
-			illuminanceGoal = IlluminanceGoal.FULL;
-			break;
-		default:
-			throw new IllegalArgumentException("Invalid illuminance goal !" + UserIllum);
+		IlluminanceGoal illuminanceGoal = toIlluminanceGoal(
+				PreferencesService.getUserPropertyValue(name, USER_PROP_ILLUMINANCE));
+		if (illuminanceGoal != null) {
+			knownUsers.add(name);
 		}
-
 		return illuminanceGoal;
 	}
 
 	public synchronized void setUserPreference(String name, IlluminanceGoal illuminanceGoal) {
 		PreferencesService.setUserPropertyValue(name, USER_PROP_ILLUMINANCE, illuminanceGoal.toString());
+		knownUsers.add(name);
 	}
-	
-	
-	
 
+	@Override
+	public synchronized void setUserPreferences(final Map<String, IlluminanceGoal> preferences) {
+		FollowMeConfiguration.runInBatch(new Runnable() {
+			@Override
+			public void run() {
+				for (Map.Entry<String, IlluminanceGoal> preference : preferences.entrySet()) {
+					String name = preference.getKey();
+					String value = preference.getValue().toString();
+					// only the preferences which change are written
+					if (!value.equals(PreferencesService.getUserPropertyValue(name, USER_PROP_ILLUMINANCE))) {
+						PreferencesService.setUserPropertyValue(name, USER_PROP_ILLUMINANCE, value);
+					}
+					knownUsers.add(name);
+				}
+			}
+		});
+	}
+
+	@Override
+	public synchronized Map<String, IlluminanceGoal> getUserPreferences() {
+		Map<String, IlluminanceGoal> preferences = new TreeMap<String, IlluminanceGoal>();
+		for (String name : knownUsers) {
+			IlluminanceGoal illuminanceGoal = toIlluminanceGoal(
+					PreferencesService.getUserPropertyValue(name, USER_PROP_ILLUMINANCE));
+			if (illuminanceGoal != null) {
+				preferences.put(name, illuminanceGoal);
+			}
+		}
+		return preferences;
+	}
+
+	/**
+	 * Convert the value of the illuminance property of a user.
+	 * 
+	 * @param value
+	 *            : the value stored in the Preferences service
+	 * @return the illuminance goal, or null if the user has none
+	 */
+	private static IlluminanceGoal toIlluminanceGoal(Object value) {
+		if (value == null) {
+			return null;
+		}
+		switch (value.toString()) {
+		case USER_PROP_ILLUMINANCE_VALUE_SOFT:
+			return IlluminanceGoal.SOFT;
+		case USER_PROP_ILLUMINANCE_VALUE_MEDIUM:
+			return IlluminanceGoal.MEDIUM;
+		case USER_PROP_ILLUMINANCE_VALUE_FULL:
+			return IlluminanceGoal.FULL;
+		default:
+			throw new IllegalArgumentException("Invalid illuminance goal !" + value);
+		}
+	}
 }
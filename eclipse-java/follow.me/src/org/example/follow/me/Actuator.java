@@ -0,0 +1,165 @@
+package org.example.follow.me;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.example.follow.me.FollowMeStatistics.EventType;
+
+/**
+ * The Actuator sends the commands of a room to its lights. With a timeout,
+ * the commands are sent at the same time by the actuator threads of the
+ * engine and the room waits for all of them, each for at most the timeout:
+ * the room is actuated in the time of its slowest light and a light that
+ * does not answer holds its worker for the timeout only. A command refused
+ * by the busy threads is sent by the calling thread. Without a timeout, the
+ * commands are sent one after the other by the calling thread.
+ */
+class Actuator {
+
+	private final FollowMeEngine engine;
+
+	private final FollowMeLogger logger;
+
+	private final FollowMeStatistics statistics;
+
+	/** The time each command is waited for, in milliseconds, 0 to send them in sequence */
+	private volatile long timeout;
+
+	Actuator(FollowMeEngine engine, FollowMeLogger logger, FollowMeStatistics statistics, long timeout) {
+		this.engine = engine;
+		this.logger = logger;
+		this.statistics = statistics;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            : the time each command is waited for, in milliseconds, 0 to
+	 *            send the commands in sequence
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = Math.max(0L, timeout);
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Send commands and wait for them.
+	 *
+	 * @param commands
+	 *            : the commands to send
+	 * @param count
+	 *            : the number of commands, from the first one
+	 * @param durations
+	 *            : receives the duration of each command in nanoseconds, or
+	 *            -1 for a command failed or not answered in time
+	 * @return the number of commands done
+	 */
+	public int send(Runnable[] commands, int count, long[] durations) {
+		long timeout = this.timeout;
+		ExecutorService actuators = timeout > 0L ? engine.getActuators() : null;
+		if (actuators == null) {
+			int done = 0;
+			for (int i = 0; i < count; i++) {
+				durations[i] = run(commands[i]);
+				if (durations[i] >= 0L) {
+					done++;
+				}
+			}
+			return done;
+		}
+		@SuppressWarnings("unchecked")
+		Future<Long>[] futures = new Future[count];
+		long[] deadlines = new long[count];
+		for (int i = 0; i < count; i++) {
+			final Runnable command = commands[i];
+			deadlines[i] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			try {
+				futures[i] = actuators.submit(new Callable<Long>() {
+					@Override
+					public Long call() {
+						long begin = System.nanoTime();
+						command.run();
+						return System.nanoTime() - begin;
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				durations[i] = run(command);
+			}
+		}
+		// the barrier: every command is done, has failed or is given up
+		int done = 0;
+		boolean interrupted = false;
+		for (int i = 0; i < count; i++) {
+			if (futures[i] != null) {
+				durations[i] = interrupted ? -1L : await(futures[i], deadlines[i], commands[i]);
+				if (durations[i] == -2L) {
+					interrupted = true;
+					durations[i] = -1L;
+				}
+			}
+			if (durations[i] >= 0L) {
+				done++;
+			}
+		}
+		if (interrupted) {
+			for (Future<Long> future : futures) {
+				if (future != null) {
+					future.cancel(true);
+				}
+			}
+			Thread.currentThread().interrupt();
+		}
+		return done;
+	}
+
+	/**
+	 * @return the duration of the command, -1 if it has failed or timed out,
+	 *         -2 if the calling thread has been interrupted
+	 */
+	private long await(Future<Long> future, long deadline, Runnable command) {
+		try {
+			return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			// the light may still apply it; its event or the maintenance
+			// task will tell
+			future.cancel(true);
+			statistics.event(EventType.COMMAND_FAILED);
+			if (logger.isWarningEnabled()) {
+				logger.warning("The command " + command + " has not been answered within " + timeout + " ms");
+			}
+			return -1L;
+		} catch (ExecutionException e) {
+			failed(command, e.getCause());
+			return -1L;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			return -2L;
+		}
+	}
+
+	private long run(Runnable command) {
+		long begin = System.nanoTime();
+		try {
+			command.run();
+		} catch (RuntimeException e) {
+			failed(command, e);
+			return -1L;
+		}
+		return System.nanoTime() - begin;
+	}
+
+	private void failed(Runnable command, Throwable exception) {
+		statistics.event(EventType.COMMAND_FAILED);
+		if (logger.isErrorEnabled()) {
+			logger.error("The command " + command + " has failed", exception);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.example.follow.me;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The AntiEntropy task walks the zones round-robin, a bounded number of zones
+ * per tick, so every zone is checked again regularly without sweeping the
+ * whole house at each period. The cursor survives between the ticks; the
+ * zones created meanwhile are met on the next round.
+ */
+class AntiEntropy {
+
+	/** The zones to walk */
+	private final Collection<Zone> zones;
+
+	/** The maximum number of zones checked per tick */
+	private volatile int budget;
+
+	/** The position of the walk, null at the beginning of a round */
+	private Iterator<Zone> cursor;
+
+	AntiEntropy(Collection<Zone> zones, int budget) {
+		this.zones = zones;
+		this.budget = budget;
+	}
+
+	public void setBudget(int budget) {
+		this.budget = Math.max(1, budget);
+	}
+
+	/**
+	 * Get the zones to check during this tick.
+	 * 
+	 * @return at most budget zones, following the ones of the last tick
+	 */
+	public synchronized List<Zone> nextZones() {
+		int budget = Math.min(this.budget, zones.size());
+		List<Zone> next = new ArrayList<Zone>(budget);
+		boolean restarted = false;
+		while (next.size() < budget) {
+			if (cursor == null || !cursor.hasNext()) {
+				if (restarted) {
+					break;
+				}
+				cursor = zones.iterator();
+				restarted = true;
+				if (!cursor.hasNext()) {
+					break;
+				}
+			}
+			next.add(cursor.next());
+		}
+		return next;
+	}
+}
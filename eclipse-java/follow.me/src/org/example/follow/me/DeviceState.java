@@ -0,0 +1,159 @@
+package org.example.follow.me;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * The DeviceState is the last known state of a device: the presence sensed by
+ * a sensor, the power status of a binary light, the power level of a dimmer
+ * light and the maximum power of a light. It is read from the device once
+ * when the device is bound, then kept up to date from the property events and
+ * from the commands sent, so the evaluations never call the device to read
+ * it. The maintenance task reads the devices again when it finds a room that
+ * has drifted.
+ */
+class DeviceState {
+
+	/**
+	 * The difference of power level below which a dimmer light is at the
+	 * level commanded, the devices rounding the levels they are given
+	 */
+	static final double DIMMER_LEVEL_TOLERANCE = 1.0e-3d;
+
+	private volatile boolean sensedPresence;
+
+	private volatile boolean powerStatus;
+
+	private volatile double powerLevel;
+
+	private volatile double maxPower;
+
+	/** The index of a presence sensor in the presence bits of its zone */
+	private volatile int presenceSlot = -1;
+
+	/**
+	 * Read the state of a device.
+	 *
+	 * @param device
+	 *            : the given device
+	 * @return its state
+	 */
+	static DeviceState read(GenericDevice device) {
+		DeviceState state = new DeviceState();
+		state.refresh(device);
+		return state;
+	}
+
+	/**
+	 * Read the state of a device again, after a property has been added or an
+	 * event may have been missed.
+	 *
+	 * @param device
+	 *            : the device this state is kept for
+	 */
+	void refresh(GenericDevice device) {
+		if (device instanceof PresenceSensor) {
+			sensedPresence = ((PresenceSensor) device).getSensedPresence();
+		} else if (device instanceof BinaryLight) {
+			powerStatus = ((BinaryLight) device).getPowerStatus();
+			maxPower = ((BinaryLight) device).getMaxPowerLevel();
+		} else if (device instanceof DimmerLight) {
+			powerLevel = ((DimmerLight) device).getPowerLevel();
+			maxPower = ((DimmerLight) device).getMaxPowerLevel();
+		}
+	}
+
+	/**
+	 * Apply the change of a property notified by the device.
+	 *
+	 * @param propertyName
+	 *            : the name of the property
+	 * @param value
+	 *            : its new value, null if the property has been removed
+	 * @return true if the property is part of the state
+	 */
+	boolean update(String propertyName, Object value) {
+		if (propertyName.equals(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE)) {
+			sensedPresence = toBoolean(value);
+		} else if (propertyName.equals(BinaryLight.BINARY_LIGHT_POWER_STATUS)) {
+			powerStatus = toBoolean(value);
+		} else if (propertyName.equals(DimmerLight.DIMMER_LIGHT_POWER_LEVEL)) {
+			powerLevel = toDouble(value);
+		} else if (propertyName.equals(BinaryLight.BINARY_LIGHT_MAX_POWER_LEVEL)
+				|| propertyName.equals(DimmerLight.DIMMER_LIGHT_MAX_POWER_LEVEL)) {
+			maxPower = toDouble(value);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	public boolean getSensedPresence() {
+		return sensedPresence;
+	}
+
+	public boolean getPowerStatus() {
+		return powerStatus;
+	}
+
+	void setPowerStatus(boolean powerStatus) {
+		this.powerStatus = powerStatus;
+	}
+
+	public double getPowerLevel() {
+		return powerLevel;
+	}
+
+	void setPowerLevel(double powerLevel) {
+		this.powerLevel = powerLevel;
+	}
+
+	public double getMaxPower() {
+		return maxPower;
+	}
+
+	int getPresenceSlot() {
+		return presenceSlot;
+	}
+
+	void setPresenceSlot(int presenceSlot) {
+		this.presenceSlot = presenceSlot;
+	}
+
+	/**
+	 * Tell whether a dimmer light is at a level, within the rounding of the
+	 * devices.
+	 *
+	 * @param powerLevel
+	 *            : the level of the light
+	 * @param commandedLevel
+	 *            : the level commanded
+	 * @return true if no command is needed to reach the level commanded
+	 */
+	static boolean isSameLevel(double powerLevel, double commandedLevel) {
+		return Math.abs(powerLevel - commandedLevel) <= DIMMER_LEVEL_TOLERANCE;
+	}
+
+	private static boolean toBoolean(Object value) {
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue();
+		}
+		return value != null && Boolean.parseBoolean(value.toString());
+	}
+
+	private static double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (value == null) {
+			return 0.0d;
+		}
+		try {
+			return Double.parseDouble(value.toString());
+		} catch (NumberFormatException e) {
+			return 0.0d;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package org.example.follow.me;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The EnergyBudget shares the power budget of the whole house among the
+ * occupied rooms. Each room gets a part proportional to its weight, never more
+ * than its lights can draw; what a room cannot use goes to the others (water
+ * filling). When a room changes, the rooms whose share actually changes are
+ * reported, so only them are evaluated again.
+ *
+ * The rooms are kept ordered by their demand per unit of weight, split by the
+ * water level: the rooms below it get their demand, the others their weight
+ * times the level. A change moves only the rooms crossing the level.
+ */
+class EnergyBudget {
+
+	/** The change of share, in Watt, below which a room is not evaluated again */
+	private static final double SHARE_TOLERANCE = 0.5d;
+
+	/** The occupied rooms */
+	private final Map<Zone, Room> rooms = new HashMap<Zone, Room>();
+
+	/** The occupied rooms by demand per unit of weight */
+	private final TreeSet<Room> byDemand = new TreeSet<Room>(new Comparator<Room>() {
+		@Override
+		public int compare(Room first, Room second) {
+			int compare = Double.compare(first.ratio, second.ratio);
+			return compare != 0 ? compare : Long.compare(first.order, second.order);
+		}
+	});
+
+	/** The budget of the house in Watt */
+	private double budget;
+
+	/** The share per unit of weight of the rooms not getting their demand */
+	private double level = Double.POSITIVE_INFINITY;
+
+	/** The last room getting its demand, null if none */
+	private Room lastSaturated;
+
+	/** The demand of the rooms getting their demand, in Watt */
+	private double saturatedDemand;
+
+	/** The weight of the rooms not getting their demand */
+	private long unsaturatedWeight;
+
+	/** The order of the next room, to tell the rooms with the same ratio apart */
+	private long nextOrder;
+
+	private static final class Room {
+		final Zone zone;
+		final long order;
+		int weight;
+		double demand;
+		double ratio;
+		boolean saturated;
+		double share;
+
+		Room(Zone zone, long order) {
+			this.zone = zone;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * Update the state of a room and share the budget again.
+	 *
+	 * @param zone
+	 *            : the room
+	 * @param occupied
+	 *            : whether someone is in the room
+	 * @param weight
+	 *            : the weight of the room, at least 1 when occupied
+	 * @param demand
+	 *            : the power drawn by all the lights of the room in Watt
+	 * @param budget
+	 *            : the budget of the house in Watt
+	 * @param changedZones
+	 *            : receives the other rooms whose share has changed
+	 * @return the share of the room in Watt
+	 */
+	public synchronized double update(Zone zone, boolean occupied, int weight, double demand, double budget,
+			List<Zone> changedZones) {
+		boolean changed = budget != this.budget;
+		this.budget = budget;
+		Room room = rooms.get(zone);
+		if (!occupied) {
+			if (room == null && !changed) {
+				return 0.0d;
+			}
+			if (room != null) {
+				rooms.remove(zone);
+				remove(room);
+			}
+			room = null;
+		} else {
+			if (room == null) {
+				room = new Room(zone, nextOrder++);
+				rooms.put(zone, room);
+			} else if (!changed && room.weight == weight && room.demand == demand) {
+				return room.share;
+			} else {
+				remove(room);
+			}
+			room.weight = Math.max(1, weight);
+			room.demand = demand;
+			room.ratio = demand / room.weight;
+			insert(room);
+		}
+
+		double previousLevel = level;
+		List<Room> crossed = new ArrayList<Room>();
+		fill(crossed);
+		if (room != null) {
+			room.share = shareOf(room);
+		}
+		for (Room other : crossed) {
+			report(other, room, changedZones);
+		}
+		if (level != previousLevel) {
+			// the share of every room above the level follows the level
+			for (Room other : lastSaturated == null ? byDemand : byDemand.tailSet(lastSaturated, false)) {
+				report(other, room, changedZones);
+			}
+		}
+		return room == null ? 0.0d : room.share;
+	}
+
+	public synchronized void clear() {
+		rooms.clear();
+		byDemand.clear();
+		lastSaturated = null;
+		saturatedDemand = 0.0d;
+		unsaturatedWeight = 0L;
+		level = Double.POSITIVE_INFINITY;
+	}
+
+	private double shareOf(Room room) {
+		return room.saturated ? room.demand : room.weight * level;
+	}
+
+	private void report(Room other, Room room, List<Zone> changedZones) {
+		double share = shareOf(other);
+		if (other != room && Math.abs(share - other.share) > SHARE_TOLERANCE) {
+			changedZones.add(other.zone);
+		}
+		other.share = share;
+	}
+
+	private void remove(Room room) {
+		if (room == lastSaturated) {
+			lastSaturated = byDemand.lower(room);
+		}
+		byDemand.remove(room);
+		if (room.saturated) {
+			saturatedDemand -= room.demand;
+		} else {
+			unsaturatedWeight -= room.weight;
+		}
+		if (byDemand.isEmpty()) {
+			// no rounding left over from the rooms gone
+			saturatedDemand = 0.0d;
+			unsaturatedWeight = 0L;
+		}
+	}
+
+	/**
+	 * Insert a room on its side of the level, the level is fixed afterwards.
+	 */
+	private void insert(Room room) {
+		byDemand.add(room);
+		room.saturated = lastSaturated != null && byDemand.comparator().compare(room, lastSaturated) < 0;
+		if (room.saturated) {
+			saturatedDemand += room.demand;
+		} else {
+			unsaturatedWeight += room.weight;
+		}
+	}
+
+	/**
+	 * Move the level until the rooms below it are exactly those whose demand
+	 * per unit of weight is under it: the rooms needing the least power are
+	 * served first, the others share what is left by weight.
+	 *
+	 * @param crossed
+	 *            : receives the rooms which crossed the level
+	 */
+	private void fill(List<Room> crossed) {
+		while (true) {
+			level = unsaturatedWeight == 0L ? (saturatedDemand <= budget ? Double.POSITIVE_INFINITY
+					: Double.NEGATIVE_INFINITY) : (budget - saturatedDemand) / unsaturatedWeight;
+			Room next = lastSaturated == null ? (byDemand.isEmpty() ? null : byDemand.first()) : byDemand
+					.higher(lastSaturated);
+			if (next != null && next.ratio <= level) {
+				next.saturated = true;
+				saturatedDemand += next.demand;
+				unsaturatedWeight -= next.weight;
+				lastSaturated = next;
+				crossed.add(next);
+			} else if (lastSaturated != null && lastSaturated.ratio > level) {
+				Room last = lastSaturated;
+				last.saturated = false;
+				saturatedDemand -= last.demand;
+				unsaturatedWeight += last.weight;
+				lastSaturated = byDemand.lower(last);
+				crossed.add(last);
+			} else {
+				if (unsaturatedWeight == 0L) {
+					level = Double.POSITIVE_INFINITY;
+				}
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package org.example.follow.me;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import org.example.follow.me.configuration.EnergyWindow;
+
+/**
+ * The EnergyMeter integrates the power of the lights over time, for each
+ * light, each room and the whole house. The power of an account is constant
+ * between two changes, so the energy is accrued only when the power changes
+ * or when it is read. The rolling windows are fixed-size rings of primitive
+ * values: the memory used does not grow with the running time.
+ * 
+ * Each room is guarded by its own monitor, which also guards the lights in
+ * it, so the changes of distinct rooms never contend. The power of the house
+ * is an adder of the changes of all the rooms, and its energy is the sum of
+ * the energy of the rooms, which keep the energy of the lights removed.
+ */
+class EnergyMeter {
+
+	/** The number of milliseconds in an hour */
+	private static final double MILLIS_PER_HOUR = 3600000.0d;
+
+	/** The lights, by serial number */
+	private final ConcurrentMap<String, DeviceAccount> devices = new ConcurrentHashMap<String, DeviceAccount>();
+
+	/** The rooms, by location */
+	private final ConcurrentMap<String, Account> rooms = new ConcurrentHashMap<String, Account>();
+
+	/** The power of the whole house, in Watt */
+	private final DoubleAdder housePower = new DoubleAdder();
+
+	/**
+	 * Start accounting a light.
+	 * 
+	 * @param serialNumber
+	 *            : the serial number of the light
+	 * @param location
+	 *            : its location
+	 * @param maxPower
+	 *            : its maximum power in Watt
+	 * @param level
+	 *            : its power level, between 0 and 1
+	 * @param now
+	 *            : the current time in milliseconds
+	 */
+	public void addDevice(String serialNumber, String location, double maxPower, double level, long now) {
+		DeviceAccount device = devices.get(serialNumber);
+		if (device == null) {
+			DeviceAccount created = new DeviceAccount(now, location);
+			device = devices.putIfAbsent(serialNumber, created);
+			if (device == null) {
+				device = created;
+			}
+		}
+		moveDevice(device, location, now);
+		while (true) {
+			String current = device.location;
+			Account room = getRoom(current, now);
+			synchronized (room) {
+				if (device.removed) {
+					return;
+				}
+				if (device.location.equals(current)) {
+					device.maxPower = maxPower;
+					changePower(device, room, maxPower * level, now);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop accounting a light. Its energy is kept in its room and the house.
+	 * 
+	 * @param serialNumber
+	 *            : the serial number of the light
+	 * @param now
+	 *            : the current time in milliseconds
+	 */
+	public void removeDevice(String serialNumber, long now) {
+		DeviceAccount device = devices.remove(serialNumber);
+		if (device == null) {
+			return;
+		}
+		while (true) {
+			String current = device.location;
+			Account room = getRoom(current, now);
+			synchronized (room) {
+				if (device.location.equals(current)) {
+					changePower(device, room, 0.0d, now);
+					device.removed = true;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Change the power level of a light.
+	 * 
+	 * @param serialNumber
+	 *            : the serial number of the light
+	 * @param level
+	 *            : the new power level, between 0 and 1
+	 * @param now
+	 *            : the current time in milliseconds
+	 */
+	public void setLevel(String serialNumber, double level, long now) {
+		DeviceAccount device = devices.get(serialNumber);
+		if (device == null) {
+			return;
+		}
+		while (true) {
+			String current = device.location;
+			Account room = getRoom(current, now);
+			synchronized (room) {
+				if (device.removed) {
+					return;
+				}
+				// retry if the light has moved meanwhile
+				if (device.location.equals(current)) {
+					changePower(device, room, device.maxPower * level, now);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Change the maximum power of a light, keeping its power level.
+	 * 
+	 * @param serialNumber
+	 *            : the serial number of the light
+	 * @param maxPower
+	 *            : the new maximum power in Watt
+	 * @param now
+	 *            : the current time in milliseconds
+	 */
+	public void setMaxPower(String serialNumber, double maxPower, long now) {
+		DeviceAccount device = devices.get(serialNumber);
+		if (device == null) {
+			return;
+		}
+		while (true) {
+			String current = device.location;
+			Account room = getRoom(current, now);
+			synchronized (room) {
+				if (device.removed) {
+					return;
+				}
+				if (device.location.equals(current)) {
+					double level = device.maxPower > 0.0d ? device.power / device.maxPower : 0.0d;
+					device.maxPower = maxPower;
+					changePower(device, room, maxPower * level, now);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move a light to another room: its power is drawn in the new room from
+	 * now on.
+	 * 
+	 * @param serialNumber
+	 *            : the serial number of the light
+	 * @param location
+	 *            : the new location
+	 * @param now
+	 *            : the current time in milliseconds
+	 */
+	public void moveDevice(String serialNumber, String location, long now) {
+		DeviceAccount device = devices.get(serialNumber);
+		if (device != null) {
+			moveDevice(device, location, now);
+		}
+	}
+
+	/**
+	 * Move a light holding the monitors of both rooms, always taken in the
+	 * order of their locations.
+	 */
+	private void moveDevice(DeviceAccount device, String location, long now) {
+		Account newRoom = getRoom(location, now);
+		while (true) {
+			String oldLocation = device.location;
+			if (oldLocation.equals(location)) {
+				return;
+			}
+			Account oldRoom = getRoom(oldLocation, now);
+			boolean oldFirst = oldLocation.compareTo(location) < 0;
+			synchronized (oldFirst ? oldRoom : newRoom) {
+				synchronized (oldFirst ? newRoom : oldRoom) {
+					if (device.removed) {
+						return;
+					}
+					if (!device.location.equals(oldLocation)) {
+						// moved meanwhile
+						continue;
+					}
+					double power = device.power;
+					changePower(device, oldRoom, 0.0d, now);
+					device.location = location;
+					changePower(device, newRoom, power, now);
+					return;
+				}
+			}
+		}
+	}
+
+	private Account getRoom(String location, long now) {
+		Account room = rooms.get(location);
+		if (room == null) {
+			Account created = new Account(now, true);
+			room = rooms.putIfAbsent(location, created);
+			if (room == null) {
+				room = created;
+			}
+		}
+		return room;
+	}
+
+	/**
+	 * Change the power of a light, the monitor of its room being held.
+	 */
+	private void changePower(DeviceAccount device, Account room, double power, long now) {
+		double delta = power - device.power;
+		if (delta == 0.0d) {
+			return;
+		}
+		device.setPower(power, now);
+		double roomPower = Math.max(0.0d, room.power + delta);
+		housePower.add(roomPower - room.power);
+		room.setPower(roomPower, now);
+	}
+
+	public double getPower(String location) {
+		if (location == null) {
+			return Math.max(0.0d, housePower.sum());
+		}
+		Account room = rooms.get(location);
+		if (room == null) {
+			return 0.0d;
+		}
+		synchronized (room) {
+			return room.power;
+		}
+	}
+
+	/**
+	 * Get the energy consumed in a room over a period.
+	 * 
+	 * @param location
+	 *            : the room, or null for the whole house
+	 * @param window
+	 *            : the period
+	 * @param now
+	 *            : the current time in milliseconds
+	 * @return the energy in Watt-hours
+	 */
+	public double getEnergy(String location, EnergyWindow window, long now) {
+		if (location == null) {
+			double energy = 0.0d;
+			for (Account room : rooms.values()) {
+				synchronized (room) {
+					energy += room.getEnergy(window, now);
+				}
+			}
+			return energy / MILLIS_PER_HOUR;
+		}
+		Account room = rooms.get(location);
+		if (room == null) {
+			return 0.0d;
+		}
+		synchronized (room) {
+			return room.getEnergy(window, now) / MILLIS_PER_HOUR;
+		}
+	}
+
+	public double getDeviceEnergy(String serialNumber, long now) {
+		DeviceAccount device = devices.get(serialNumber);
+		if (device == null) {
+			return 0.0d;
+		}
+		while (true) {
+			String current = device.location;
+			Account room = getRoom(current, now);
+			synchronized (room) {
+				if (device.removed || device.location.equals(current)) {
+					return device.getEnergy(EnergyWindow.TOTAL, now) / MILLIS_PER_HOUR;
+				}
+			}
+		}
+	}
+
+	public Set<String> getLocations() {
+		return new TreeSet<String>(rooms.keySet());
+	}
+
+	/**
+	 * The power and the energy of a light, a room or the house. The energy is
+	 * kept in Watt-milliseconds.
+	 */
+	private static class Account {
+		/** The current power in Watt */
+		double power;
+		/** The time of the last accrual */
+		long since;
+		/** The energy since the creation of the account */
+		double total;
+		/** The rolling windows, null for a light */
+		final RollingWindow[] windows;
+
+		Account(long now, boolean withWindows) {
+			since = now;
+			if (withWindows) {
+				windows = new RollingWindow[] { new RollingWindow(EnergyWindow.LAST_MINUTE, now),
+						new RollingWindow(EnergyWindow.LAST_HOUR, now), new RollingWindow(EnergyWindow.LAST_DAY, now) };
+			} else {
+				windows = null;
+			}
+		}
+
+		void accrue(long now) {
+			if (now <= since) {
+				return;
+			}
+			if (power > 0.0d) {
+				total += power * (now - since);
+				if (windows != null) {
+					for (RollingWindow window : windows) {
+						window.add(since, now, power);
+					}
+				}
+			}
+			since = now;
+		}
+
+		void setPower(double power, long now) {
+			accrue(now);
+			this.power = power;
+		}
+
+		double getEnergy(EnergyWindow window, long now) {
+			accrue(now);
+			if (window == EnergyWindow.TOTAL) {
+				return total;
+			}
+			for (RollingWindow rollingWindow : windows) {
+				if (rollingWindow.window == window) {
+					return rollingWindow.sum(now);
+				}
+			}
+			return 0.0d;
+		}
+	}
+
+	/** A light, guarded by the monitor of its room */
+	private static final class DeviceAccount extends Account {
+		/** Its room, changed holding the monitors of both rooms */
+		volatile String location;
+		double maxPower;
+		/** Whether it is no longer accounted */
+		volatile boolean removed;
+
+		DeviceAccount(long now, String location) {
+			super(now, false);
+			this.location = location;
+		}
+	}
+
+	/**
+	 * The energy of the last steps of a window, in a ring indexed by the
+	 * absolute step number modulo the number of steps.
+	 */
+	private static final class RollingWindow {
+		final EnergyWindow window;
+		final long stepMillis;
+		final double[] steps;
+		/** The absolute number of the last step written */
+		long lastStep;
+
+		RollingWindow(EnergyWindow window, long now) {
+			this.window = window;
+			this.stepMillis = window.getStepMillis();
+			this.steps = new double[window.getNumberOfSteps()];
+			this.lastStep = now / stepMillis;
+		}
+
+		/**
+		 * Clear the steps between the last step written and the step of now.
+		 */
+		void advance(long now) {
+			long step = now / stepMillis;
+			if (step <= lastStep) {
+				return;
+			}
+			long cleared = Math.min(step - lastStep, steps.length);
+			for (long i = 1; i <= cleared; i++) {
+				steps[(int) ((lastStep + i) % steps.length)] = 0.0d;
+			}
+			lastStep = step;
+		}
+
+		/**
+		 * Add a constant power drawn between two times, split over the steps
+		 * they cover. What is older than the window is dropped.
+		 */
+		void add(long from, long to, double power) {
+			advance(to);
+			long oldest = (lastStep - steps.length + 1) * stepMillis;
+			for (long time = Math.max(from, oldest); time < to;) {
+				long step = time / stepMillis;
+				long end = Math.min((step + 1) * stepMillis, to);
+				steps[(int) (step % steps.length)] += power * (end - time);
+				time = end;
+			}
+		}
+
+		double sum(long now) {
+			advance(now);
+			double sum = 0.0d;
+			for (double step : steps) {
+				sum += step;
+			}
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,456 @@
+package org.example.follow.me;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.example.follow.me.JournalRecord.DeviceKind;
+import org.example.follow.me.JournalRecord.Type;
+import org.example.follow.me.configuration.FollowMeSettings;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * The EventJournal appends the events seen by the component and the commands
+ * it sends to the lights to binary segment files. The callers only queue the
+ * records, never waiting: a record is dropped when the queue is full. A
+ * background thread encodes the queued records and writes them through a
+ * FileChannel, forcing them to the disk once per batch (group commit). A new
+ * segment is started when the current one is full, and the oldest segments are
+ * deleted to keep the journal under its maximum size.
+ *
+ * A segment is a header (magic number and format version) followed by the
+ * records: the length of the rest of the record, its type, its time in
+ * milliseconds and its fields. Strings are stored as their UTF-8 length
+ * followed by their bytes, -1 for null. JournalReader reads them back.
+ */
+class EventJournal {
+
+	/** The first bytes of a segment: "FMJL" */
+	static final int MAGIC = 0x464d4a4c;
+
+	/** The version of the format, changed with any incompatible change */
+	static final int FORMAT_VERSION = 1;
+
+	/** The size of the header of a segment */
+	static final int HEADER_SIZE = 8;
+
+	static final String SEGMENT_PREFIX = "journal-";
+	static final String SEGMENT_SUFFIX = ".bin";
+
+	/** The tags of the values of the device properties */
+	static final byte VALUE_NULL = 0;
+	static final byte VALUE_FALSE = 1;
+	static final byte VALUE_TRUE = 2;
+	static final byte VALUE_NUMBER = 3;
+	static final byte VALUE_STRING = 4;
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The default maximum size of the journal in bytes */
+	public static final long DEFAULT_MAX_SIZE = 64L * 1024L * 1024L;
+
+	/** The number of segments the journal is split into */
+	private static final int SEGMENTS = 8;
+
+	/** The maximum number of records waiting to be written */
+	private static final int QUEUE_CAPACITY = 65536;
+
+	/** The maximum number of records written by one commit */
+	private static final int BATCH_SIZE = 4096;
+
+	/** The size of the encoding buffer, also the minimum size of a segment */
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/** The record asking the writer to stop */
+	private static final JournalRecord STOP = new JournalRecord(null, 0L, null, null, null, null);
+
+	/** The records waiting to be written */
+	private final BlockingQueue<JournalRecord> records = new ArrayBlockingQueue<JournalRecord>(QUEUE_CAPACITY);
+
+	/** The number of records dropped because the queue was full or a write failed */
+	private final AtomicLong droppedRecords = new AtomicLong();
+
+	private final AtomicLong writtenRecords = new AtomicLong();
+
+	private final AtomicLong commits = new AtomicLong();
+
+	private final FollowMeLogger logger;
+
+	/** The directory of the segments, null if the journal is off */
+	private volatile File directory;
+
+	private volatile long maxSize = DEFAULT_MAX_SIZE;
+
+	/** Whether the records are queued */
+	private volatile boolean enabled;
+
+	private Thread writer;
+
+	/** The state of the writer thread */
+	private FileChannel channel;
+	private long segmentSize;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	EventJournal(FollowMeLogger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the directory of the segments, used from the next start.
+	 *
+	 * @param directory
+	 *            : the directory, null to turn the journal off
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the maximum size of the journal, used from the next start. A
+	 * segment is never smaller than the encoding buffer, so the journal may
+	 * take up to 2 MB whatever this size.
+	 *
+	 * @param maxSize
+	 *            : the size in bytes
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long getDroppedRecords() {
+		return droppedRecords.get();
+	}
+
+	public long getWrittenRecords() {
+		return writtenRecords.get();
+	}
+
+	public long getCommits() {
+		return commits.get();
+	}
+
+	/**
+	 * Get the kind of a device.
+	 *
+	 * @param device
+	 *            : the given device
+	 * @return its kind, or null if it is not followed by the component
+	 */
+	static DeviceKind kindOf(GenericDevice device) {
+		if (device instanceof PresenceSensor) {
+			return DeviceKind.PRESENCE_SENSOR;
+		} else if (device instanceof DimmerLight) {
+			return DeviceKind.DIMMER_LIGHT;
+		} else if (device instanceof BinaryLight) {
+			return DeviceKind.BINARY_LIGHT;
+		}
+		return null;
+	}
+
+	public void deviceBound(String serialNumber, DeviceKind kind, String location) {
+		record(Type.DEVICE_BOUND, serialNumber, kind, null, location);
+	}
+
+	public void deviceUnbound(String serialNumber, DeviceKind kind) {
+		record(Type.DEVICE_UNBOUND, serialNumber, kind, null, null);
+	}
+
+	public void deviceProperty(GenericDevice device, String propertyName, Object value) {
+		if (enabled) {
+			record(Type.DEVICE_PROPERTY, device.getSerialNumber(), kindOf(device), propertyName, value);
+		}
+	}
+
+	public void person(Type type, String person, String location) {
+		record(type, person, null, location, null);
+	}
+
+	public void settings(FollowMeSettings settings) {
+		record(Type.SETTINGS, null, null, null, settings);
+	}
+
+	public void command(String serialNumber, DeviceKind kind, double value) {
+		record(Type.COMMAND, serialNumber, kind, null, Double.valueOf(value));
+	}
+
+	private void record(Type type, String subject, DeviceKind kind, String name, Object value) {
+		if (!enabled) {
+			return;
+		}
+		if (!records.offer(new JournalRecord(type, System.currentTimeMillis(), subject, kind, name, value))) {
+			droppedRecords.incrementAndGet();
+		}
+	}
+
+	public synchronized void start() {
+		File directory = this.directory;
+		if (writer != null || directory == null) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			logger.error("The journal directory " + directory + " cannot be created", null);
+			return;
+		}
+		segmentSize = Math.max(BUFFER_SIZE, maxSize / SEGMENTS);
+		records.clear();
+		enabled = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "follow.me-journal-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop queuing the records, then wait for the writer to write the queued
+	 * ones.
+	 */
+	public synchronized void stop() {
+		if (writer == null) {
+			return;
+		}
+		enabled = false;
+		try {
+			// a writer that has failed to open its segment is already gone
+			if (writer.isAlive()) {
+				records.put(STOP);
+				writer.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+	}
+
+	private void write() {
+		List<JournalRecord> batch = new ArrayList<JournalRecord>(BATCH_SIZE);
+		boolean stopping = false;
+		try {
+			openNextSegment();
+			while (!stopping) {
+				batch.add(records.take());
+				records.drainTo(batch, BATCH_SIZE - 1);
+				int stop = batch.indexOf(STOP);
+				if (stop >= 0) {
+					batch.subList(stop, batch.size()).clear();
+					stopping = true;
+				}
+				try {
+					commit(batch);
+				} catch (IOException e) {
+					droppedRecords.addAndGet(batch.size());
+					logger.error("The journal cannot be written", e);
+				}
+				batch.clear();
+			}
+		} catch (IOException e) {
+			enabled = false;
+			logger.error("The journal cannot be opened in " + directory, e);
+		} catch (InterruptedException e) {
+			enabled = false;
+		} finally {
+			closeSegment();
+		}
+	}
+
+	/**
+	 * Write a batch of records and force them to the disk.
+	 */
+	private void commit(List<JournalRecord> batch) throws IOException {
+		for (JournalRecord record : batch) {
+			int position = buffer.position();
+			try {
+				encode(record);
+			} catch (BufferOverflowException e) {
+				buffer.position(position);
+				flush();
+				try {
+					encode(record);
+				} catch (BufferOverflowException tooLarge) {
+					buffer.clear();
+					droppedRecords.incrementAndGet();
+					continue;
+				}
+			}
+			writtenRecords.incrementAndGet();
+		}
+		flush();
+		channel.force(false);
+		commits.incrementAndGet();
+	}
+
+	private void encode(JournalRecord record) {
+		int start = buffer.position();
+		buffer.putInt(0);
+		buffer.put((byte) record.getType().ordinal());
+		buffer.putLong(record.getTime());
+		switch (record.getType()) {
+		case DEVICE_BOUND:
+			putString(record.getSubject());
+			putKind(record.getKind());
+			putString((String) record.getValue());
+			break;
+		case DEVICE_UNBOUND:
+			putString(record.getSubject());
+			putKind(record.getKind());
+			break;
+		case DEVICE_PROPERTY:
+			putString(record.getSubject());
+			putKind(record.getKind());
+			putString(record.getName());
+			putValue(record.getValue());
+			break;
+		case PERSON_ADDED:
+		case PERSON_MOVED:
+		case PERSON_REMOVED:
+			putString(record.getSubject());
+			putString(record.getName());
+			break;
+		case SETTINGS:
+			FollowMeSettings settings = record.getSettings();
+			buffer.putInt(settings.getMaximumNumberOfLightsToTurnOn());
+			buffer.putDouble(settings.getMaximumAllowedEnergyInRoom());
+			buffer.putDouble(settings.getTargetedIlluminance());
+			buffer.putDouble(settings.getHouseEnergyBudget());
+			buffer.putLong(settings.getVersion());
+			break;
+		case COMMAND:
+			putString(record.getSubject());
+			putKind(record.getKind());
+			buffer.putDouble(((Double) record.getValue()).doubleValue());
+			break;
+		}
+		buffer.putInt(start, buffer.position() - start - 4);
+	}
+
+	private void putString(String string) {
+		if (string == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes(UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private void putKind(DeviceKind kind) {
+		buffer.put((byte) (kind == null ? -1 : kind.ordinal()));
+	}
+
+	private void putValue(Object value) {
+		if (value == null) {
+			buffer.put(VALUE_NULL);
+		} else if (value instanceof Boolean) {
+			buffer.put(((Boolean) value).booleanValue() ? VALUE_TRUE : VALUE_FALSE);
+		} else if (value instanceof Number) {
+			buffer.put(VALUE_NUMBER);
+			buffer.putDouble(((Number) value).doubleValue());
+		} else {
+			buffer.put(VALUE_STRING);
+			putString(value.toString());
+		}
+	}
+
+	/**
+	 * Write the encoded records to the current segment, starting a new segment
+	 * first if they do not fit in it.
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		if (channel.position() > HEADER_SIZE && channel.position() + buffer.remaining() > segmentSize) {
+			closeSegment();
+			openNextSegment();
+		}
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void openNextSegment() throws IOException {
+		File[] segments = getSegments(directory);
+		long sequence = 0L;
+		if (segments.length > 0) {
+			sequence = getSequence(segments[segments.length - 1]) + 1L;
+		}
+		// the oldest segments are deleted, the new one included in the count
+		for (int i = 0; i <= segments.length - SEGMENTS; i++) {
+			if (!segments[i].delete()) {
+				logger.error("The journal segment " + segments[i] + " cannot be deleted", null);
+			}
+		}
+		File segment = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+		channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+	}
+
+	private void closeSegment() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("The journal segment cannot be closed", e);
+		}
+		channel = null;
+	}
+
+	/**
+	 * Get the segments of a journal.
+	 *
+	 * @param directory
+	 *            : the directory of the journal
+	 * @return the segments, the oldest first
+	 */
+	static File[] getSegments(File directory) {
+		File[] segments = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		// the sequence numbers have a fixed width: the names sort by age
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static long getSequence(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0L;
+		}
+	}
+}
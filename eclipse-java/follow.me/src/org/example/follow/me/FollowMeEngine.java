@@ -0,0 +1,320 @@
+package org.example.follow.me;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * The FollowMeEngine holds the threads shared by all the Follow Me instances
+ * of the process, one per house: a fixed set of worker shards evaluating the
+ * dirty rooms, the timer wheel, the fork/join pools of the reconciliations
+ * and the threads sending the commands to the lights. A room is always routed to the same shard
+ * by its house and its location, so thousands of houses share a bounded
+ * number of threads and queues. The threads run while at least one instance
+ * is started.
+ */
+final class FollowMeEngine {
+
+	/**
+	 * The number of worker shards, set by the follow.me.shards system
+	 * property; one per processor by default
+	 */
+	static final int NUMBER_OF_SHARDS = Math.max(1,
+			Integer.getInteger("follow.me.shards", Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * The maximum number of rooms waiting in each shard, set by the
+	 * follow.me.shard.capacity system property; the rooms beyond wait in the
+	 * overflow of the shard
+	 */
+	static final int SHARD_CAPACITY = Math.max(1, Integer.getInteger("follow.me.shard.capacity", 65536));
+
+	/**
+	 * The period of the timer wheel, in milliseconds: the precision of the
+	 * presence times
+	 */
+	static final long TIMER_TICK = 10L;
+
+	/**
+	 * The number of buckets of the timer wheel, a turn of about 5 seconds
+	 */
+	static final int TIMER_WHEEL_SIZE = 512;
+
+	/**
+	 * The maximum number of commands sent at the same time, set by the
+	 * follow.me.actuators system property
+	 */
+	static final int ACTUATOR_THREADS = Math.max(1, Integer.getInteger("follow.me.actuators", 64));
+
+	/** The time an idle actuator thread is kept, in seconds */
+	private static final long ACTUATOR_KEEP_ALIVE = 30L;
+
+	/** The time a stop waits for each worker to end, in milliseconds */
+	private static final long WORKER_STOP_TIMEOUT = 5000L;
+
+	private static final FollowMeEngine INSTANCE = new FollowMeEngine();
+
+	/**
+	 * A room waiting in a shard, with the scheduler of its house
+	 */
+	private static final class Task {
+		private final ZoneScheduler scheduler;
+		private final Zone zone;
+
+		Task(ZoneScheduler scheduler, Zone zone) {
+			this.scheduler = scheduler;
+			this.zone = zone;
+		}
+	}
+
+	/**
+	 * The task waking up the worker of a shard to take the rooms of its
+	 * overflow
+	 */
+	private static final Task WAKE_UP = new Task(null, null);
+
+	/** The logger of the shared threads, writing the errors to the console */
+	private final FollowMeLogger logger = new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+		@Override
+		public LogService getLogService() {
+			return null;
+		}
+	});
+
+	private final BlockingQueue<Task>[] shards;
+
+	/**
+	 * The rooms which did not fit in each shard, taken first by its worker.
+	 * A room waits at most once, so they are bounded by the number of rooms.
+	 */
+	private final ConcurrentLinkedQueue<Task>[] overflows;
+
+	private final Thread[] workers;
+
+	private final TimerWheel timerWheel = new TimerWheel(TIMER_TICK, TIMER_WHEEL_SIZE, logger);
+
+	/** The pools of the reconciliations, by parallelism, created on demand */
+	private final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+	/** The threads sending the commands, created on demand */
+	private volatile ThreadPoolExecutor actuators;
+
+	/** The number of started instances */
+	private int users;
+
+	/**
+	 * Incremented at each stop, so a worker still ending its evaluation
+	 * after the timeout of the stop never takes another room
+	 */
+	private volatile int generation;
+
+	@SuppressWarnings("unchecked")
+	private FollowMeEngine() {
+		logger.setLevel("ERROR");
+		shards = new BlockingQueue[NUMBER_OF_SHARDS];
+		overflows = new ConcurrentLinkedQueue[NUMBER_OF_SHARDS];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new ArrayBlockingQueue<Task>(SHARD_CAPACITY);
+			overflows[i] = new ConcurrentLinkedQueue<Task>();
+		}
+		workers = new Thread[NUMBER_OF_SHARDS];
+	}
+
+	static FollowMeEngine getInstance() {
+		return INSTANCE;
+	}
+
+	TimerWheel getTimerWheel() {
+		return timerWheel;
+	}
+
+	/**
+	 * @return the executor sending the commands, or null if no instance is
+	 *         started
+	 */
+	ExecutorService getActuators() {
+		return actuators;
+	}
+
+	/**
+	 * Give the pool shared by the reconciliations of the given parallelism.
+	 *
+	 * @param parallelism
+	 *            : the maximum number of threads of a reconciliation
+	 * @return the pool, or null if no instance is started
+	 */
+	synchronized ForkJoinPool getPool(int parallelism) {
+		if (users == 0) {
+			return null;
+		}
+		ForkJoinPool pool = pools.get(parallelism);
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+			pools.put(parallelism, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Start the shared threads if this is the first started instance.
+	 */
+	public synchronized void start() {
+		if (users++ > 0) {
+			return;
+		}
+		logger.start();
+		timerWheel.start();
+		final AtomicInteger actuatorNumber = new AtomicInteger();
+		// no queue: a command is either given to a thread or refused, and the
+		// refused commands are sent by the evaluating thread itself
+		actuators = new ThreadPoolExecutor(0, ACTUATOR_THREADS, ACTUATOR_KEEP_ALIVE, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "follow.me-actuator-" + actuatorNumber.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		final int workerGeneration = generation;
+		for (int i = 0; i < workers.length; i++) {
+			final BlockingQueue<Task> shard = shards[i];
+			final ConcurrentLinkedQueue<Task> overflow = overflows[i];
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain(shard, overflow, workerGeneration);
+				}
+			}, "follow.me-shard-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Stop the shared threads if this is the last started instance. The
+	 * workers are waited for, so a start never runs two workers on a shard,
+	 * and the rooms still waiting are dropped: each instance evaluates all its
+	 * rooms when it starts again.
+	 */
+	public synchronized void stop() {
+		if (users == 0 || --users > 0) {
+			return;
+		}
+		generation++;
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].interrupt();
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WORKER_STOP_TIMEOUT);
+		for (int i = 0; i < workers.length; i++) {
+			try {
+				workers[i].join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (workers[i].isAlive() && logger.isErrorEnabled()) {
+				logger.error("The worker " + workers[i].getName() + " is still evaluating a room after "
+						+ WORKER_STOP_TIMEOUT + "ms; it ends once its room is evaluated", null);
+			}
+			workers[i] = null;
+		}
+		for (int i = 0; i < shards.length; i++) {
+			Task task;
+			while ((task = overflows[i].poll()) != null) {
+				task.scheduler.drop(task.zone);
+			}
+			while ((task = shards[i].poll()) != null) {
+				if (task != WAKE_UP) {
+					task.scheduler.drop(task.zone);
+				}
+			}
+		}
+		for (ForkJoinPool pool : pools.values()) {
+			pool.shutdownNow();
+		}
+		pools.clear();
+		actuators.shutdownNow();
+		actuators = null;
+		timerWheel.stop();
+		logger.stop();
+	}
+
+	/**
+	 * Enqueue a room on the shard of its house and location. When the shard
+	 * is full, the room waits in the overflow of the shard: it is still
+	 * evaluated by the worker of its shard, and the caller never blocks.
+	 *
+	 * @param scheduler
+	 *            : the scheduler of the house
+	 * @param zone
+	 *            : the room
+	 * @return false if the room waits in the overflow of the shard
+	 */
+	boolean offer(ZoneScheduler scheduler, Zone zone) {
+		int hash = scheduler.getHouseHash() * 31 + zone.getLocation().hashCode();
+		hash ^= hash >>> 16;
+		int index = (hash & Integer.MAX_VALUE) % shards.length;
+		Task task = new Task(scheduler, zone);
+		if (shards[index].offer(task)) {
+			return true;
+		}
+		overflows[index].add(task);
+		// the worker may have emptied the shard meanwhile and wait on it; if
+		// the shard is still full, the worker looks at the overflow before
+		// taking its next room
+		shards[index].offer(WAKE_UP);
+		return false;
+	}
+
+	/**
+	 * Drop the rooms of a stopped instance still waiting in the shards, so the
+	 * shared queues do not keep the instance.
+	 *
+	 * @param scheduler
+	 *            : the scheduler of the stopped instance
+	 */
+	void cancel(ZoneScheduler scheduler) {
+		for (int i = 0; i < shards.length; i++) {
+			cancel(shards[i], scheduler);
+			cancel(overflows[i], scheduler);
+		}
+	}
+
+	private static void cancel(Iterable<Task> queue, ZoneScheduler scheduler) {
+		for (Iterator<Task> tasks = queue.iterator(); tasks.hasNext();) {
+			Task task = tasks.next();
+			if (task.scheduler == scheduler) {
+				tasks.remove();
+				scheduler.drop(task.zone);
+			}
+		}
+	}
+
+	private void drain(BlockingQueue<Task> shard, ConcurrentLinkedQueue<Task> overflow, int workerGeneration) {
+		while (!Thread.currentThread().isInterrupted() && generation == workerGeneration) {
+			Task task = overflow.poll();
+			if (task == null) {
+				try {
+					task = shard.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			if (task != WAKE_UP) {
+				task.scheduler.evaluate(task.zone);
+			}
+		}
+	}
+}
@@ -6,21 +6,41 @@ import fr.liglab.adele.icasa.location.Position;
 import fr.liglab.adele.icasa.service.location.PersonLocationService;
 import fr.liglab.adele.icasa.service.preferences.PreferenceChangeListener;
 import fr.liglab.adele.icasa.service.preferences.Preferences;
+import fr.liglab.adele.icasa.service.scheduler.PeriodicRunnable;
 import fr.liglab.adele.icasa.simulator.Person;
 import fr.liglab.adele.icasa.simulator.listener.PersonListener;
 import fr.liglab.adele.icasa.device.DeviceListener;
 import fr.liglab.adele.icasa.device.GenericDevice;
 import fr.liglab.adele.icasa.device.light.BinaryLight;
+import org.example.follow.me.FollowMeStatistics.EventType;
+import org.example.follow.me.JournalRecord.DeviceKind;
 import org.example.follow.me.configuration.FollowMeConfiguration;
-
+import org.example.follow.me.configuration.EnergyWindow;
+import org.example.follow.me.configuration.FollowMeDiagnostics;
+import org.example.follow.me.configuration.FollowMeEnergyAccounting;
+import org.example.follow.me.configuration.FollowMeSettings;
+import org.example.follow.me.configuration.ReconciliationSummary;
+import org.osgi.service.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import fr.liglab.adele.icasa.device.light.DimmerLight;
 
-public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,PersonListener,PreferenceChangeListener {
+public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,PersonListener,PreferenceChangeListener,PeriodicRunnable,
+		FollowMeDiagnostics, FollowMeEnergyAccounting {
 
 	/** Field for presenceSensors dependency */
 	private PresenceSensor[] presenceSensors;
@@ -30,6 +50,12 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 	/** Field for dimmerLights dependency */
 	private DimmerLight[] dimmerLights;
 
+	/**
+	 * The house of this instance, published with its services by the house.id
+	 * property; null when the process runs a single house
+	 */
+	private String houseId;
+
 	/**
 	 * The name of the LOCATION property
 	 */
@@ -40,20 +66,14 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 	 */
 	public static final String LOCATION_UNKNOWN = "unknown";
 
-	/** 
-	* The maximum number of lights to turn on when a user enters the room :
-	**/
-	private int maxLightsToTurnOnPerRoom = 1;
-
-	/**
-	* The maximum energy consumption allowed in a room in Watt:
-	**/
-	private double maximumEnergyConsumptionAllowedInARoom = 100.0d;
-
 	/**
-	* The targeted illuminance in each room
-	**/
-	private double targetedIlluminance = 4000.0d;
+	 * The settings of the application: the maximum number of lights to turn on
+	 * when a user enters a room, the maximum energy consumption allowed in a
+	 * room in Watt and the targeted illuminance in each room. They are replaced
+	 * as a whole, so an evaluation always sees one consistent version.
+	 */
+	private final AtomicReference<FollowMeSettings> settings = new AtomicReference<FollowMeSettings>(
+			new FollowMeSettings(1, 100.0d, 4000.0d).withVersion(1L));
 
 	/** Field for Location.Service dependency */
 	private PersonLocationService LocationService;
@@ -78,50 +98,537 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 	/** Field for PersonLocationService dependency */
 	private PersonLocationService PersonLocationService;
 
+	/**
+	 * The devices indexed by location, maintained by the bind/unbind callbacks
+	 * and by the Location property changes
+	 */
+	private final ZoneIndex zoneIndex = new ZoneIndex();
+
+	/** Field for the optional LogService dependency */
+	private LogService logService;
+
+	/**
+	 * The logging facade, off unless the log.level property says otherwise
+	 */
+	private final FollowMeLogger logger = new FollowMeLogger(new FollowMeLogger.LogServiceProvider() {
+		@Override
+		public LogService getLogService() {
+			return logService;
+		}
+	});
+
+	/**
+	 * The illuminance preferences of the users, kept up to date by listeners on
+	 * the Preferences service
+	 */
+	private final UserPreferenceCache userPreferences = new UserPreferenceCache(
+			new UserPreferenceCache.PreferenceObserver() {
+				@Override
+				public void preferenceChanged(String user) {
+					userPreferenceChanged(user);
+				}
+			});
+
+	/**
+	 * The persons in each room, maintained from the PersonListener callbacks
+	 */
+	private final ZoneOccupancy occupancy = new ZoneOccupancy();
+
+	/**
+	 * The event counters and latency histograms, on unless the
+	 * statistics.enabled property says otherwise
+	 */
+	private final FollowMeStatistics statistics = new FollowMeStatistics();
+
+	/**
+	 * The power and the energy of the lights, maintained from the bind/unbind
+	 * callbacks and from the power changes of the lights
+	 */
+	private final EnergyMeter energyMeter = new EnergyMeter();
+
+	/**
+	 * The shares of the house budget among the occupied rooms, in house budget
+	 * mode
+	 */
+	private final EnergyBudget energyBudget = new EnergyBudget();
+
+	/**
+	 * The moves of each person, learned from the personMoved callbacks
+	 */
+	private final TransitionModel transitionModel = new TransitionModel();
+
+	/**
+	 * Whether the most likely next room of a person is lit ahead of its
+	 * arrival, configured by the prelight.enabled property
+	 */
+	private volatile boolean prelightEnabled;
+
+	/**
+	 * The longest expected stay in a room for which the next room is lit
+	 * ahead, in milliseconds: beyond, the prediction is too uncertain
+	 */
+	public static final long PRELIGHT_HORIZON = 60000L;
+
+	/**
+	 * The time a predicted room is lit before the expected arrival, in
+	 * milliseconds
+	 */
+	public static final long PRELIGHT_LEAD = 5000L;
+
+	/**
+	 * The time a prelit room stays lit after the expected arrival, in
+	 * milliseconds
+	 */
+	public static final long PRELIGHT_GRACE = 15000L;
+
+	/**
+	 * The prelight of each person waiting on the timer wheel for the expected
+	 * arrival, cancelled when the person moves again
+	 */
+	private final ConcurrentHashMap<String, TimerWheel.Timeout> pendingPrelights = new ConcurrentHashMap<String, TimerWheel.Timeout>();
+
+	/**
+	 * The rooms lit ahead of a predicted arrival, switched off by the
+	 * maintenance task once the prediction expires
+	 */
+	private final Set<Zone> prelitZones = Collections.newSetFromMap(new ConcurrentHashMap<Zone, Boolean>());
+
+	/**
+	 * The precision of the presence times, in milliseconds
+	 */
+	public static final long TIMER_TICK = FollowMeEngine.TIMER_TICK;
+
+	/**
+	 * The worker shards and the timer wheel, shared by all the houses of the
+	 * process
+	 */
+	private final FollowMeEngine engine = FollowMeEngine.getInstance();
+
+	/**
+	 * The presence each room is lit for, debounced and held off from the
+	 * sensed one as configured by the presence.debounce and presence.hold
+	 * properties
+	 */
+	private final PresenceFilter presenceFilter = new PresenceFilter(engine.getTimerWheel(),
+			new PresenceFilter.Listener() {
+				@Override
+				public void presenceChanged(Zone zone) {
+					zoneScheduler.submit(zone);
+				}
+			});
+
+	/**
+	 * The number of batches running; while there is one, the rooms affected by
+	 * a preference change are only collected
+	 */
+	private final AtomicInteger batchDepth = new AtomicInteger();
+
+	/**
+	 * The locations affected by the preference changes of the running batches
+	 */
+	private final Set<String> batchedLocations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * The default number of rooms checked by each run of the maintenance task
+	 */
+	public static final int DEFAULT_ANTI_ENTROPY_BUDGET = 256;
+
+	/**
+	 * The maintenance task checks a few rooms at each period, in turn
+	 */
+	private final AntiEntropy antiEntropy = new AntiEntropy(zoneIndex.getZones(), DEFAULT_ANTI_ENTROPY_BUDGET);
+
+	/**
+	 * The period of the maintenance task in milliseconds
+	 */
+	public static final long MAINTENANCE_PERIOD = 10000L;
+
+	/**
+	 * The file the state of the component is saved to on stop and
+	 * periodically, and loaded from on start, configured by the snapshot.file
+	 * property; null if the state is not saved
+	 */
+	private volatile File snapshotFile;
+
+	/**
+	 * The number of runs of the maintenance task between two saves of the
+	 * state
+	 */
+	public static final int SNAPSHOT_PERIOD = 6;
+
+	/**
+	 * The runs of the maintenance task since the last save of the state
+	 */
+	private int runsSinceSnapshot;
+
+	/**
+	 * The events and the commands of the component, appended to the directory
+	 * set by the journal.directory property; off if there is none
+	 */
+	private final EventJournal journal = new EventJournal(logger);
+
+	/**
+	 * The evaluation of a room, shared by the scheduler and the reconciler
+	 */
+	private final ZoneScheduler.ZoneEvaluator zoneEvaluator = new ZoneScheduler.ZoneEvaluator() {
+		@Override
+		public int evaluate(Zone zone, long dirtySince) {
+			return evaluateZone(zone, dirtySince);
+		}
+	};
+
+	/**
+	 * The callbacks only mark the rooms as dirty; the rooms are evaluated
+	 * asynchronously by the workers of the engine
+	 */
+	private final ZoneScheduler zoneScheduler = new ZoneScheduler(engine, zoneEvaluator, logger,
+			statistics);
+
+	/**
+	 * Every room is evaluated at once by the reconciler when the component
+	 * starts, when the goals change and on demand
+	 */
+	private final Reconciler reconciler = new Reconciler(engine, zoneEvaluator, logger,
+			Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The default time each command to a light is waited for, in milliseconds
+	 */
+	public static final long DEFAULT_ACTUATION_TIMEOUT = 1000L;
+
+	/**
+	 * The commands of a room are sent at the same time, each waited for the
+	 * time set by the actuation.timeout property
+	 */
+	private final Actuator actuator = new Actuator(engine, logger, statistics, DEFAULT_ACTUATION_TIMEOUT);
+
+	/**
+	 * Wait until every room marked dirty has been evaluated. This is used by
+	 * the headless harness to measure the evaluations.
+	 * 
+	 * @param timeoutMillis
+	 *            : the maximum time to wait
+	 * @return true if no room is waiting any more
+	 */
+	boolean awaitQuiescence(long timeoutMillis) throws InterruptedException {
+		return zoneScheduler.awaitQuiescence(timeoutMillis);
+	}
+
+	/**
+	 * Evaluate a room on the calling thread. This is used by the headless
+	 * harness to measure the evaluations without the scheduler.
+	 * 
+	 * @param location
+	 *            : the room to evaluate
+	 */
+	void evaluateNow(String location) {
+		Zone zone = zoneIndex.getZone(location);
+		if (zone != null) {
+			evaluateZone(zone, 0L);
+		}
+	}
+
+	/**
+	 * Sets the house of this instance, configured by the house.id property.
+	 * Several instances, one per house, share the threads of the process.
+	 * 
+	 * @param houseId
+	 *            : the identifier of the house
+	 */
+	public void setHouseId(String houseId) {
+		this.houseId = houseId;
+		zoneScheduler.setHouseId(houseId);
+	}
+
+	public String getHouseId() {
+		return houseId;
+	}
+
+	/**
+	 * Sets the level of the logs, configured by the log.level property.
+	 * 
+	 * @param level
+	 *            : "NONE", "ERROR", "WARNING", "INFO" or "DEBUG"
+	 */
+	public void setLogLevel(String level) {
+		if (!logger.setLevel(level)) {
+			keepPrevious("log.level", level);
+		}
+	}
+
+	/**
+	 * Parse the value of a numeric property. A value which is not a number in
+	 * the range of the property is reported, and the property keeps its
+	 * previous value.
+	 * 
+	 * @param property
+	 *            : the name of the property
+	 * @param value
+	 *            : its new value, may be null
+	 * @param maximum
+	 *            : the largest magnitude of the value
+	 * @return the number, or null to keep the previous value
+	 */
+	private Long parseOrKeep(String property, String value, long maximum) {
+		if (value != null) {
+			try {
+				long number = Long.parseLong(value.trim());
+				if (number >= -maximum && number <= maximum) {
+					return number;
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+		}
+		keepPrevious(property, value);
+		return null;
+	}
+
+	/**
+	 * Report an invalid value of a property, which keeps its previous value
+	 * instead of failing the configuration.
+	 * 
+	 * @param property
+	 *            : the name of the property
+	 * @param value
+	 *            : the invalid value
+	 */
+	private void keepPrevious(String property, String value) {
+		if (logger.isErrorEnabled()) {
+			logger.error("The " + property + " " + value + " is not valid. So we keep the previous one", null);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of threads of a reconciliation, configured by the
+	 * reconcile.parallelism property. It is used from the next start.
+	 * 
+	 * @param parallelism
+	 *            : the number of threads
+	 */
+	public void setReconcileParallelism(String parallelism) {
+		Long number = parseOrKeep("reconcile.parallelism", parallelism, Integer.MAX_VALUE);
+		if (number != null) {
+			reconciler.setParallelism(number.intValue());
+		}
+	}
+
+	/**
+	 * Sets the time each command to a light is waited for, configured by the
+	 * actuation.timeout property.
+	 * 
+	 * @param timeout
+	 *            : the time in milliseconds, 0 to send the commands of a room
+	 *            one after the other
+	 */
+	public void setActuationTimeout(String timeout) {
+		Long number = parseOrKeep("actuation.timeout", timeout, Long.MAX_VALUE);
+		if (number != null) {
+			actuator.setTimeout(number);
+		}
+	}
+
+	/**
+	 * Sets the number of rooms checked by each run of the maintenance task,
+	 * configured by the anti.entropy.budget property.
+	 * 
+	 * @param budget
+	 *            : the number of rooms
+	 */
+	public void setAntiEntropyBudget(String budget) {
+		Long number = parseOrKeep("anti.entropy.budget", budget, Integer.MAX_VALUE);
+		if (number != null) {
+			antiEntropy.setBudget(number.intValue());
+		}
+	}
+
+	/**
+	 * Sets whether the next room of a person is lit ahead of its arrival,
+	 * configured by the prelight.enabled property.
+	 * 
+	 * @param enabled
+	 *            : "true" to light the next room ahead
+	 */
+	public void setPrelightEnabled(String enabled) {
+		prelightEnabled = Boolean.parseBoolean(enabled);
+	}
+
+	/**
+	 * Sets the time a presence must last before its room is lit, configured
+	 * by the presence.debounce property.
+	 * 
+	 * @param debounce
+	 *            : the time in milliseconds
+	 */
+	public void setPresenceDebounce(String debounce) {
+		Long number = parseOrKeep("presence.debounce", debounce, Long.MAX_VALUE);
+		if (number != null) {
+			presenceFilter.setDebounce(number);
+		}
+	}
+
+	/**
+	 * Sets the time a room stays lit after its presence drops, configured by
+	 * the presence.hold property.
+	 * 
+	 * @param holdOff
+	 *            : the time in milliseconds
+	 */
+	public void setPresenceHold(String holdOff) {
+		Long number = parseOrKeep("presence.hold", holdOff, Long.MAX_VALUE);
+		if (number != null) {
+			presenceFilter.setHoldOff(number);
+		}
+	}
+
+	/**
+	 * Sets the number of presence sensors of a room needed for a presence,
+	 * configured by the presence.quorum property.
+	 * 
+	 * @param quorum
+	 *            : the number of sensors, 1 for any of them
+	 */
+	public void setPresenceQuorum(String quorum) {
+		Long number = parseOrKeep("presence.quorum", quorum, Integer.MAX_VALUE);
+		if (number == null) {
+			return;
+		}
+		zoneIndex.setPresenceQuorum(number.intValue());
+		for (Zone zone : zoneIndex.getZones()) {
+			presenceFilter.sensed(zone);
+		}
+	}
+
+	/**
+	 * Sets the file the state of the component is saved to, configured by the
+	 * snapshot.file property.
+	 * 
+	 * @param path
+	 *            : the path of the file, empty not to save the state
+	 */
+	public void setSnapshotFile(String path) {
+		snapshotFile = path == null || path.trim().isEmpty() ? null : new File(path.trim());
+	}
+
+	/**
+	 * Sets the directory of the event journal, configured by the
+	 * journal.directory property. It is used from the next start.
+	 * 
+	 * @param path
+	 *            : the path of the directory, empty to turn the journal off
+	 */
+	public void setJournalDirectory(String path) {
+		journal.setDirectory(path == null || path.trim().isEmpty() ? null : new File(path.trim()));
+	}
+
+	/**
+	 * Sets the maximum size of the event journal, configured by the
+	 * journal.max.size property. It is used from the next start.
+	 * 
+	 * @param size
+	 *            : the size in bytes
+	 */
+	public void setJournalMaxSize(String size) {
+		Long number = parseOrKeep("journal.max.size", size, Long.MAX_VALUE);
+		if (number != null) {
+			journal.setMaxSize(number);
+		}
+	}
+
+	/**
+	 * Sets whether the statistics are recorded, configured by the
+	 * statistics.enabled property.
+	 * 
+	 * @param enabled
+	 *            : "true" to record the statistics
+	 */
+	public void setStatisticsEnabled(String enabled) {
+		statistics.setEnabled(Boolean.parseBoolean(enabled));
+	}
+
 	/** 
 	 * Bind Method for presenceSensors dependency 
 	 * This method will be used to manage device listener
 	 * */
-	public synchronized void bindPresenceSensor(PresenceSensor presenceSensor, Map properties) {
+	public void bindPresenceSensor(PresenceSensor presenceSensor, Map properties) {
+		statistics.event(EventType.DEVICE_BOUND);
 		presenceSensor.addListener(this);
-		System.out.println("bind presence sensor " + presenceSensor.getSerialNumber());
+		String location = getDeviceLocation(presenceSensor);
+		zoneIndex.add(presenceSensor, location);
+		journal.deviceBound(presenceSensor.getSerialNumber(), DeviceKind.PRESENCE_SENSOR, location);
+		if (logger.isInfoEnabled()) {
+			logger.info("bind presence sensor " + presenceSensor.getSerialNumber());
+		}
 	}
 
 	/** Unbind Method for presenceSensors dependency */
-	public synchronized void unbindPresenceSensor(PresenceSensor presenceSensor, Map properties) {
+	public void unbindPresenceSensor(PresenceSensor presenceSensor, Map properties) {
+		statistics.event(EventType.DEVICE_UNBOUND);
 		presenceSensor.removeListener(this);
-		System.out.println("unbind presence sensor " + presenceSensor.getSerialNumber());
+		zoneIndex.remove(presenceSensor);
+		journal.deviceUnbound(presenceSensor.getSerialNumber(), DeviceKind.PRESENCE_SENSOR);
+		if (logger.isInfoEnabled()) {
+			logger.info("unbind presence sensor " + presenceSensor.getSerialNumber());
+		}
 	}
 
 	/** Bind Method for binaryLights dependency */
-	public synchronized void bindBinaryLight(BinaryLight binaryLight, Map properties) {
+	public void bindBinaryLight(BinaryLight binaryLight, Map properties) {
+		statistics.event(EventType.DEVICE_BOUND);
 		binaryLight.addListener(this);
-		System.out.println("bind binary light " + binaryLight.getSerialNumber());
+		String location = getDeviceLocation(binaryLight);
+		DeviceState state = zoneIndex.add(binaryLight, location);
+		journal.deviceBound(binaryLight.getSerialNumber(), DeviceKind.BINARY_LIGHT, location);
+		energyMeter.addDevice(binaryLight.getSerialNumber(), location, state.getMaxPower(),
+				state.getPowerStatus() ? 1.0d : 0.0d, System.currentTimeMillis());
+		if (logger.isInfoEnabled()) {
+			logger.info("bind binary light " + binaryLight.getSerialNumber());
+		}
 	}
 
 	/** 
 	 * Unbind Method for binaryLights dependency 
 	 * This method is not mandatory and implemented for debug purpose only.
 	 * */
-	public synchronized void unbindBinaryLight(BinaryLight binaryLight, Map properties) {
+	public void unbindBinaryLight(BinaryLight binaryLight, Map properties) {
+		statistics.event(EventType.DEVICE_UNBOUND);
 		binaryLight.removeListener(this);
-		System.out.println("unbind binary light " + binaryLight.getSerialNumber());
+		zoneIndex.remove(binaryLight);
+		journal.deviceUnbound(binaryLight.getSerialNumber(), DeviceKind.BINARY_LIGHT);
+		energyMeter.removeDevice(binaryLight.getSerialNumber(), System.currentTimeMillis());
+		if (logger.isInfoEnabled()) {
+			logger.info("unbind binary light " + binaryLight.getSerialNumber());
+		}
 	}
 
 	/** Bind Method for dimmerLights dependency */
 	public void bindDimmerLight(DimmerLight dimmerLight, Map properties) {
+		statistics.event(EventType.DEVICE_BOUND);
 		dimmerLight.addListener(this);
-		System.out.println("bind dimmer light " + dimmerLight.getSerialNumber());
+		String location = getDeviceLocation(dimmerLight);
+		DeviceState state = zoneIndex.add(dimmerLight, location);
+		journal.deviceBound(dimmerLight.getSerialNumber(), DeviceKind.DIMMER_LIGHT, location);
+		energyMeter.addDevice(dimmerLight.getSerialNumber(), location, state.getMaxPower(),
+				state.getPowerLevel(), System.currentTimeMillis());
+		if (logger.isInfoEnabled()) {
+			logger.info("bind dimmer light " + dimmerLight.getSerialNumber());
+		}
 	}
 
 	/** Unbind Method for dimmerLights dependency */
 	public void unbindDimmerLight(DimmerLight dimmerLight, Map properties) {
+		statistics.event(EventType.DEVICE_UNBOUND);
 		dimmerLight.removeListener(this);
-		System.out.println("unbind dimmer light " + dimmerLight.getSerialNumber());
+		zoneIndex.remove(dimmerLight);
+		journal.deviceUnbound(dimmerLight.getSerialNumber(), DeviceKind.DIMMER_LIGHT);
+		energyMeter.removeDevice(dimmerLight.getSerialNumber(), System.currentTimeMillis());
+		if (logger.isInfoEnabled()) {
+			logger.info("unbind dimmer light " + dimmerLight.getSerialNumber());
+		}
 	}
 
 	/** Component Lifecycle Method */
-	public synchronized void stop() {
+	public void stop() {
 		for (PresenceSensor sensor : presenceSensors) {
 			sensor.removeListener(this);
 		}
@@ -131,50 +638,178 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 		for (DimmerLight dlight : dimmerLights) {
 			dlight.removeListener(this);
 		}
-		System.out.println("Component is stopping...");
+		for (String person : pendingPrelights.keySet()) {
+			cancelPrelight(person);
+		}
+		zoneScheduler.stop();
+		reconciler.stop();
+		saveSnapshot();
+		journal.stop();
+		userPreferences.clear(preferencesService);
+		logger.info("Component is stopping...");
+		logger.stop();
 	}
 
 	/** Component Lifecycle Method */
-	public synchronized void start() {
-		System.out.println("Component is starting...");
+	public void start() {
+		logger.start();
+		journal.start();
+		zoneScheduler.start();
+		reconciler.start();
+		// with a snapshot, only the rooms it does not cover are evaluated now;
+		// the others are verified in turn by the maintenance task
+		Collection<Zone> zonesToEvaluate = restoreSnapshot();
+		if (zonesToEvaluate == null) {
+			checkOccupancy();
+			zonesToEvaluate = zoneIndex.getZones();
+		}
+		if (journal.isEnabled()) {
+			recordInventory();
+		}
+		ReconciliationSummary summary = reconciler.reconcile(zonesToEvaluate);
+		if (logger.isInfoEnabled()) {
+			logger.info("Component is starting... " + summary);
+		}
 	}
 
 	/**
-	 * Return all BinaryLight from the given location
-	 * 
-	 * @param location
-	 *            : the given location
-	 * @return the list of matching BinaryLights
+	 * Record the settings, the devices and the occupancy to the journal when
+	 * it starts, so a replay knows the house the next events happen in.
 	 */
-
-	private synchronized List<BinaryLight> getBinaryLightsFromLocation(String location) {
-		List<BinaryLight> binaryLightsLocation = new ArrayList<BinaryLight>();
-		for (BinaryLight binLight : binaryLights) {
-			if (binLight.getPropertyValue(LOCATION_PROPERTY_NAME).equals(location)) {
-				binaryLightsLocation.add(binLight);
+	private void recordInventory() {
+		journal.settings(settings.get());
+		for (Zone zone : zoneIndex.getZones()) {
+			zone.lock();
+			try {
+				for (PresenceSensor sensor : zone.getPresenceSensors()) {
+					journal.deviceBound(sensor.getSerialNumber(), DeviceKind.PRESENCE_SENSOR, zone.getLocation());
+				}
+				for (BinaryLight light : zone.getBinaryLights()) {
+					journal.deviceBound(light.getSerialNumber(), DeviceKind.BINARY_LIGHT, zone.getLocation());
+				}
+				for (DimmerLight light : zone.getDimmerLights()) {
+					journal.deviceBound(light.getSerialNumber(), DeviceKind.DIMMER_LIGHT, zone.getLocation());
+				}
+			} finally {
+				zone.unlock();
 			}
 		}
-		return binaryLightsLocation;
+		for (Map.Entry<String, String> personLocation : occupancy.getLocations().entrySet()) {
+			journal.person(JournalRecord.Type.PERSON_ADDED, personLocation.getKey(), personLocation.getValue());
+		}
 	}
 
-	private synchronized PresenceSensor getPresenceSensorsFromLocation(String location) {
-		PresenceSensor presenceSensorLocation = null;
-		for (PresenceSensor presenceSensor : presenceSensors) {
-			if (presenceSensor.getPropertyValue(LOCATION_PROPERTY_NAME).equals(location)) {
-				return presenceSensor;
+	/**
+	 * Load the snapshot saved by the last stop, if any, and restore the
+	 * settings, the preferences, the occupancy and the state commanded in the
+	 * rooms whose lights have not changed.
+	 * 
+	 * @return the rooms whose state has not been restored, or null if there is
+	 *         no usable snapshot
+	 */
+	private Collection<Zone> restoreSnapshot() {
+		File file = snapshotFile;
+		if (file == null) {
+			return null;
+		}
+		long begin = System.nanoTime();
+		StateSnapshot snapshot;
+		try {
+			snapshot = StateSnapshot.read(file);
+		} catch (IOException e) {
+			logger.error("The snapshot " + file + " is ignored", e);
+			return null;
+		}
+		if (snapshot == null) {
+			return null;
+		}
+		settings.set(snapshot.getSettings());
+		for (Map.Entry<String, IlluminancePreference> preference : snapshot.getPreferences().entrySet()) {
+			userPreferences.restore(preferencesService, preference.getKey(), preference.getValue());
+		}
+		for (Map.Entry<String, String> personLocation : snapshot.getPersonLocations().entrySet()) {
+			occupancy.move(personLocation.getKey(), personLocation.getValue());
+		}
+		Set<Zone> zonesToEvaluate = new HashSet<Zone>(zoneIndex.getZones());
+		// the shares of the house budget are not saved: every room is
+		// evaluated again to compute them
+		if (!snapshot.getSettings().isHouseBudgetMode()) {
+			for (StateSnapshot.ZoneState state : snapshot.getZones()) {
+				Zone zone = zoneIndex.getZone(state.getLocation());
+				if (zone == null) {
+					continue;
+				}
+				zone.lock();
+				try {
+					if (state.restoreInto(zone)) {
+						zonesToEvaluate.remove(zone);
+					}
+				} finally {
+					zone.unlock();
+				}
 			}
 		}
-		return presenceSensorLocation;
+		if (logger.isInfoEnabled()) {
+			logger.info("Snapshot " + file + " restored in " + (System.nanoTime() - begin) / 1000L + "us: "
+					+ (zoneIndex.getZones().size() - zonesToEvaluate.size()) + " rooms restored, "
+					+ zonesToEvaluate.size() + " to evaluate");
+		}
+		return zonesToEvaluate;
 	}
 
-	private synchronized List<DimmerLight> getDimmerLightsFromLocation(String location) {
-		List<DimmerLight> dimmerLightsLocation = new ArrayList<DimmerLight>();
-		for (DimmerLight dimLight : dimmerLights) {
-			if (dimLight.getPropertyValue(LOCATION_PROPERTY_NAME).equals(location)) {
-				dimmerLightsLocation.add(dimLight);
+	/**
+	 * Save the settings, the cached preferences, the occupancy and the state
+	 * commanded in each room to the snapshot file, if there is one.
+	 */
+	private void saveSnapshot() {
+		File file = snapshotFile;
+		if (file == null) {
+			return;
+		}
+		List<StateSnapshot.ZoneState> states = new ArrayList<StateSnapshot.ZoneState>();
+		for (Zone zone : zoneIndex.getZones()) {
+			StateSnapshot.ZoneState state;
+			zone.lock();
+			try {
+				state = StateSnapshot.ZoneState.of(zone);
+			} finally {
+				zone.unlock();
 			}
+			if (state != null) {
+				states.add(state);
+			}
+		}
+		try {
+			new StateSnapshot(settings.get(), userPreferences.getCachedPreferences(), occupancy.getLocations(),
+					states).write(file);
+		} catch (IOException e) {
+			logger.error("The snapshot " + file + " cannot be saved", e);
+		}
+	}
+
+	/**
+	 * Return the current location of a device
+	 * 
+	 * @param device
+	 *            : the given device
+	 * @return its location, or LOCATION_UNKNOWN if it has none
+	 */
+	private String getDeviceLocation(GenericDevice device) {
+		return toLocation(device.getPropertyValue(LOCATION_PROPERTY_NAME));
+	}
+
+	/**
+	 * Return the location given by a value of the Location property
+	 * 
+	 * @param location
+	 *            : the value, null if the location is cleared
+	 * @return the location, or LOCATION_UNKNOWN if there is none
+	 */
+	private static String toLocation(Object location) {
+		if (location == null) {
+			return LOCATION_UNKNOWN;
 		}
-		return dimmerLightsLocation;
+		return location.toString();
 	}
 
 	/**
@@ -191,424 +826,309 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 	 *            is the new value of the property
 	 */
 
-	public synchronized void devicePropertyModified(GenericDevice device, String propertyName, Object oldValue, Object newValue) {
+	public void devicePropertyModified(GenericDevice device, String propertyName, Object oldValue, Object newValue) {
+		statistics.event(EventType.DEVICE_PROPERTY_MODIFIED);
+		journal.deviceProperty(device, propertyName, newValue);
+		DeviceState state = zoneIndex.getState(device);
+		if (state != null) {
+			state.update(propertyName, newValue);
+		}
 
 		if (device instanceof PresenceSensor) {
 			PresenceSensor changingSensor = (PresenceSensor) device;
 
 			// check the change is related to presence sensing
 			if (propertyName.equals(PresenceSensor.PRESENCE_SENSOR_SENSED_PRESENCE)) {
-				// get the location where the sensor is:
-				String detectorLocation = (String) changingSensor.getPropertyValue(LOCATION_PROPERTY_NAME);
-
-				// initialize the number of the lights
-
-				// if the location is known :
-				if (!detectorLocation.equals(LOCATION_UNKNOWN)) {
-
-					checkingAndChangingLightsStates(changingSensor, detectorLocation);
-
-					System.out.println("----------------------------print part------------------------------");
-					System.out.println("The device with the serial number" + changingSensor.getSerialNumber()
-							+ " has changed" + propertyName);
-					System.out.println("This sensor is in the room :" + detectorLocation);
-					System.out.println("----------------------------end print part---------------------------");
-				}
-			}
-
-		} else if (device instanceof BinaryLight) {
-
-			String oldLocation = oldValue.toString();
-			String newLocation = newValue.toString();
-			BinaryLight changingLight = (BinaryLight) device;
-		
-
-			if (propertyName.equals(LOCATION_PROPERTY_NAME)) {
-				// get the location where the binary light is:
-				String detectorLocation = (String) changingLight.getPropertyValue(LOCATION_PROPERTY_NAME);
-
-				if (!detectorLocation.equals(LOCATION_UNKNOWN)) {
-					// get the states of presence sensors of two locations 
-					PresenceSensor oldPresenceSensor = getPresenceSensorsFromLocation(oldLocation);
-					PresenceSensor newPresenceSensor = getPresenceSensorsFromLocation(newLocation);
-
-					if (oldPresenceSensor != null) {
-						checkingAndChangingLightsStates(oldPresenceSensor, oldLocation);
+				// get the location where the sensor is:
+				String detectorLocation = zoneIndex.getLocation(changingSensor);
+
+				// if the location is known and the presence of the room has
+				// changed, the room is checked once the change has lasted its
+				// debounce or hold-off
+				if (state != null && detectorLocation != null && !detectorLocation.equals(LOCATION_UNKNOWN)) {
+					Zone zone = zoneIndex.getZone(detectorLocation);
+					if (zone.presenceSensed(state)) {
+						presenceFilter.sensed(zone);
 					}
+				}
+			} else if (propertyName.equals(LOCATION_PROPERTY_NAME)) {
+				// keep the index up to date, then check both rooms
+				String newLocation = toLocation(newValue);
+				String oldLocation = zoneIndex.move(changingSensor, newLocation);
+				if (oldLocation != null) {
+					zoneScheduler.submit(zoneIndex.getZone(oldLocation));
+				}
+				zoneScheduler.submit(zoneIndex.getZone(newLocation));
+			}
 
-					if (newPresenceSensor == null) {
-						changingLight.turnOff();
-					} else {
-						changingLight.turnOff();
-						checkingAndChangingLightsStates(newPresenceSensor, newLocation);
-					}
-					/*
-					if (newPresenceSensor.getSensedPresence()) {
-						int numberOfLightsTurnOnAtLocation = getNumberOfLightsTurnOn(newLocation);
-						if (numberOfLightsTurnOnAtLocation < maxLightsToTurnOnPerRoom) {
-							changingLight.turnOn();
-						} else {
-							changingLight.turnOff();
-						}
-					} else {
-						changingLight.turnOff();
-					}
-					*/
-					System.out.println("----------------------------print part------------------------------");
-					System.out.println("The device with the serial number" + changingLight.getSerialNumber()
-							+ " has changed" + propertyName);
-					System.out.println("This light is in the room :" + detectorLocation);
-					System.out.println("----------------------------end print part---------------------------");
+		} else if (device instanceof BinaryLight || device instanceof DimmerLight) {
 
+			if (state == null) {
+				return;
+			}
+			if (propertyName.equals(BinaryLight.BINARY_LIGHT_POWER_STATUS)) {
+				energyMeter.setLevel(device.getSerialNumber(), state.getPowerStatus() ? 1.0d : 0.0d,
+						System.currentTimeMillis());
+			} else if (propertyName.equals(DimmerLight.DIMMER_LIGHT_POWER_LEVEL)) {
+				energyMeter.setLevel(device.getSerialNumber(), state.getPowerLevel(), System.currentTimeMillis());
+			} else if (propertyName.equals(BinaryLight.BINARY_LIGHT_MAX_POWER_LEVEL)
+					|| propertyName.equals(DimmerLight.DIMMER_LIGHT_MAX_POWER_LEVEL)) {
+				energyMeter.setMaxPower(device.getSerialNumber(), state.getMaxPower(), System.currentTimeMillis());
+				maxPowerChanged(device);
+			} else if (propertyName.equals(LOCATION_PROPERTY_NAME)) {
+				String newLocation = toLocation(newValue);
+				String oldLocation = zoneIndex.move(device, newLocation);
+				energyMeter.moveDevice(device.getSerialNumber(), newLocation, System.currentTimeMillis());
+
+				// both rooms are checked again: the plan of the new room decides
+				// whether the light stays on
+				if (oldLocation != null) {
+					zoneScheduler.submit(zoneIndex.getZone(oldLocation));
 				}
+				zoneScheduler.submit(zoneIndex.getZone(newLocation));
 			}
-		} else if (device instanceof DimmerLight) {
-			DimmerLight changingLight = (DimmerLight) device;
-			String oldLocation = oldValue.toString();
-			String newLocation = newValue.toString();
-			if (propertyName.equals(LOCATION_PROPERTY_NAME)) {
-
-				// get the location where the dimmer light is:
-				String detectorLocation = (String) changingLight.getPropertyValue(LOCATION_PROPERTY_NAME);
-				// if the location is known :
-
-				if (!detectorLocation.equals(LOCATION_UNKNOWN)) {
-					// get the states of presence sensors of two locations 
-					PresenceSensor oldPresenceSensor = getPresenceSensorsFromLocation(oldLocation);
-					PresenceSensor newPresenceSensor = getPresenceSensorsFromLocation(newLocation);
-
-					if (oldPresenceSensor != null) {
-						checkingAndChangingLightsStates(oldPresenceSensor, oldLocation);
-					}
+		}
+	}
 
-					if (newPresenceSensor == null) {
-						changingLight.setPowerLevel(0.0);
-					} else {
-						changingLight.setPowerLevel(0.0);
-						checkingAndChangingLightsStates(newPresenceSensor, newLocation);
-					}
+	/**
+	 * Solve the room of a light again after its maximum power has changed.
+	 * 
+	 * @param device
+	 *            : the given light
+	 */
+	private void maxPowerChanged(GenericDevice device) {
+		String location = zoneIndex.getLocation(device);
+		if (location == null) {
+			return;
+		}
+		Zone zone = zoneIndex.getZone(location);
+		zone.lock();
+		try {
+			zone.maxPowerChanged();
+		} finally {
+			zone.unlock();
+		}
+		zoneScheduler.submit(zone);
+	}
 
-					/*
-					if (newPresenceSensor.getSensedPresence()) {
-						int numberOfLightsTurnOnAtLocation = getNumberOfLightsTurnOn(newLocation);
-						if (numberOfLightsTurnOnAtLocation < maxLightsToTurnOnPerRoom) {
-							changingLight.setPowerLevel(1.0);
-						} else {
-							changingLight.setPowerLevel(0.0);
-						}
-					} else {
-						changingLight.setPowerLevel(0.0);
-					}
-					*/
-					System.out.println("----------------------------print part------------------------------");
-					System.out.println("The device with the serial number" + changingLight.getSerialNumber()
-							+ " has changed" + propertyName);
-					System.out.println("This light is in the room :" + detectorLocation);
-					System.out.println("----------------------------end print part---------------------------");
+	/**
+	 * Evaluate a zone. This is run by the workers of the zone scheduler and by
+	 * the reconciler.
+	 * 
+	 * @param zone
+	 *            : the zone to evaluate
+	 * @param dirtySince
+	 *            : the time of the event the evaluation follows, as given by
+	 *            System.nanoTime(), 0 if it does not follow an event
+	 * @return the number of commands sent to the lights
+	 */
+	private int evaluateZone(Zone zone, long dirtySince) {
+		String location = zone.getLocation();
+		if (location.equals(LOCATION_UNKNOWN)) {
+			return 0;
+		}
+		boolean recording = statistics.isEnabled();
+		long begin = recording ? System.nanoTime() : 0L;
+		FollowMeSettings settings = this.settings.get();
+		List<Zone> changedShares = settings.isHouseBudgetMode() ? new ArrayList<Zone>() : null;
+		zone.lock();
+		try {
+			// a room without presence sensor is considered empty, unless it is
+			// lit ahead of a predicted arrival
+			boolean presence = zone.getPresenceState().getPresence();
+			int commands = checkingAndChangingLightsStates(zone, presence,
+					presence || zone.isPrelit(System.currentTimeMillis()), settings, changedShares);
+			if (recording) {
+				long end = System.nanoTime();
+				zone.recordEvaluation(commands);
+				statistics.getEvaluations().record(end - begin);
+				// only an event has a time to measure the reaction from
+				if (commands > 0 && dirtySince != 0L) {
+					statistics.getCallbackToActuation().record(end - dirtySince);
+				}
+			}
+			return commands;
+		} finally {
+			zone.unlock();
+			// the rooms whose share of the house budget has changed, checked
+			// once this room is released
+			if (changedShares != null) {
+				for (Zone changedZone : changedShares) {
+					zoneScheduler.submit(changedZone);
 				}
 			}
 		}
 	}
 
-	private synchronized Set<String> getUserAtLocation(String location) {
-		return LocationService.getPersonInZone(location);
+	private Set<String> getUserAtLocation(String location) {
+		return occupancy.getPersons(location);
 	}
 
-	private int getUserPreferenceAtLocation(String location) {
+	private int getUserPreferenceAtLocation(String location, int maxLightsToTurnOnPerRoom) {
 		Set<String> usersAtLocation = getUserAtLocation(location);
-		if (usersAtLocation == null)
+		if (usersAtLocation == null || usersAtLocation.isEmpty()) {
 			return maxLightsToTurnOnPerRoom;
-		int numberOfUsers = usersAtLocation.size();
+		}
+		int numberOfUsers = 0;
 		int illuminanceByUsersAtLocation = 0;
-		if (usersAtLocation.isEmpty())  return maxLightsToTurnOnPerRoom;
 		for (String user : usersAtLocation) {
-			if (preferencesService.getUserPropertyValue(user, USER_PROP_ILLUMINANCE) == null) {
+			numberOfUsers++;
+			IlluminancePreference preference = userPreferences.get(preferencesService, user);
+			if (preference == null) {
 				illuminanceByUsersAtLocation += maxLightsToTurnOnPerRoom;
-				continue;
-			}
-			String property = preferencesService.getUserPropertyValue(user, USER_PROP_ILLUMINANCE).toString();
-			switch (property) {
-			case USER_PROP_ILLUMINANCE_VALUE_SOFT:
-				illuminanceByUsersAtLocation += 1;
-				break;
-			case USER_PROP_ILLUMINANCE_VALUE_MEDIUM:
-				illuminanceByUsersAtLocation += 2;
-				break;
-			case USER_PROP_ILLUMINANCE_VALUE_FULL:
-				illuminanceByUsersAtLocation += 3;
-				break;
-			default:
-				throw new IllegalArgumentException("Invalid user preference !" + property);
+			} else {
+				illuminanceByUsersAtLocation += preference.getNumberOfLightsToTurnOn();
 			}
 		}
+		if (numberOfUsers == 0) {
+			return maxLightsToTurnOnPerRoom;
+		}
 		illuminanceByUsersAtLocation = illuminanceByUsersAtLocation / numberOfUsers;
-		System.out.println("***************************User Pereference***********************");
-		System.out.println("--->Users : " + usersAtLocation +" is/are in " + location + ", the preference is :"+ illuminanceByUsersAtLocation);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Users : " + usersAtLocation + " is/are in " + location + ", the preference is :"
+					+ illuminanceByUsersAtLocation);
+		}
 
 		//illuminanceByUsersAtLocation = maxLightsToTurnOnPerRoom;
 		return illuminanceByUsersAtLocation;
 	}
 
-	private synchronized void checkingAndChangingLightsStates(PresenceSensor presenceSensor, String location) {
-		List<BinaryLight> binaryLightsAtLocation = getBinaryLightsFromLocation(location);
-		List<DimmerLight> dimmerLightsAtLocation = getDimmerLightsFromLocation(location);
-
-		// count the number of lights
-		int numberOfBinaryLightsTurnOn = getNumberOfBinaryLightsTurnOn(location);
-		int numberOfDimmerLightsTurnOn = getNumberOfDimmerLightsTurnOn(location);
-
-		// define the number of lights limited by the user preference
-		int maximumNumberOfLightsByUserPreference = getUserPreferenceAtLocation(location);
-
-		int numberOfLightsTurnOn = numberOfBinaryLightsTurnOn + numberOfDimmerLightsTurnOn;
-		/*
-		double energyUsing;
-		*/
-
-		System.out.println("----------------------------print part------------------------------");
-
-		System.out.println("In this location " + location + " we have");
-		System.out.println("sensor " + presenceSensor.getSerialNumber());
-		System.out.println("binarylights " + binaryLightsAtLocation.size());
-		System.out.println("dimmerlights " + dimmerLightsAtLocation.size());
-		System.out.println("with number of lights which have turned on : " + numberOfLightsTurnOn);
-		System.out.println("The maximum number of lights are : " + maxLightsToTurnOnPerRoom);
-		System.out.println("The maximum number of lights defined by users in this room are : "
-				+ maximumNumberOfLightsByUserPreference);
-		System.out.println("The maximum energy per room is : " + maximumEnergyConsumptionAllowedInARoom);
-
-		List<Integer> assignmentOfLightsTurnOn = getAssignmentOfLightsTurnOn(location);
-
-		int allDimmerLights = dimmerLightsAtLocation.size();
-
-		if (binaryLightsAtLocation.size() > assignmentOfLightsTurnOn.get(0)
-				&& numberOfBinaryLightsTurnOn < assignmentOfLightsTurnOn.get(0)) {
-			for (DimmerLight dimLight : dimmerLightsAtLocation) {
-				if (dimLight.getPowerLevel() == 0.0)
-					continue;
-				dimLight.setPowerLevel(0.0);
-				numberOfLightsTurnOn = numberOfLightsTurnOn - 1;
-				numberOfDimmerLightsTurnOn = numberOfDimmerLightsTurnOn - 1;
-			}
+	/**
+	 * Get the weight of an occupied room in the sharing of the house budget:
+	 * the number of lights preferred by each of its users, at least 1 for a
+	 * room where only the presence sensors see someone.
+	 * 
+	 * @param location
+	 *            : the location of the room
+	 * @param maxLightsToTurnOnPerRoom
+	 *            : the preference of the users without one
+	 * @return the weight of the room
+	 */
+	private int getBudgetWeight(String location, int maxLightsToTurnOnPerRoom) {
+		int weight = 0;
+		for (String user : getUserAtLocation(location)) {
+			IlluminancePreference preference = userPreferences.get(preferencesService, user);
+			weight += preference == null ? maxLightsToTurnOnPerRoom : preference.getNumberOfLightsToTurnOn();
 		}
+		return Math.max(1, weight);
+	}
 
-		if (presenceSensor.getSensedPresence()) {
-			double maximumOfDimmerLightsTurnOnfinal;
-			double maximumOfBinaryLightsTurnOnfinal;
-
-			// define a value of dimmer light power
-			double dimmerLightPower = 0.0;
-			double dimmerLightPowerExpected;
-			if (dimmerLightsAtLocation.isEmpty()) {
-				dimmerLightPower = 0.0;
-			} else {
-				for (DimmerLight dimLight : dimmerLightsAtLocation) {
-					if (dimLight.getPowerLevel() > 0.0) {
-						dimmerLightPower = dimLight.getPowerLevel();
-						break;
-					}
-				}
-
-			}
-
-			// control the maximum number of lights turned on by the global preference and user preference
-			int maxNumberLightsByAllPreferences;
-			if (maximumNumberOfLightsByUserPreference < maxLightsToTurnOnPerRoom) {
-				maxNumberLightsByAllPreferences = maximumNumberOfLightsByUserPreference;
-			} else {
-				maxNumberLightsByAllPreferences = maxLightsToTurnOnPerRoom;
-			}
-
-			if (assignmentOfLightsTurnOn.get(0) > maxNumberLightsByAllPreferences) {
-				maximumOfBinaryLightsTurnOnfinal = maxNumberLightsByAllPreferences;
-			} else {
-				maximumOfBinaryLightsTurnOnfinal = assignmentOfLightsTurnOn.get(0);
-			}
-
-			if (assignmentOfLightsTurnOn.get(1) == 0) {
-				maximumOfDimmerLightsTurnOnfinal = 0;
-			} else if (allDimmerLights > maxNumberLightsByAllPreferences - assignmentOfLightsTurnOn.get(0)) {
-				maximumOfDimmerLightsTurnOnfinal = maxNumberLightsByAllPreferences - assignmentOfLightsTurnOn.get(0);
-			} else {
-				maximumOfDimmerLightsTurnOnfinal = allDimmerLights;
-			}
-			System.out.println("--->REQUIREMENT1: We need binary lights: " + maximumOfBinaryLightsTurnOnfinal
-					+ " and dimmer lights(idealy): " + maximumOfDimmerLightsTurnOnfinal);
-			System.out.println("--->STATE1: Now We have binary lights: " + numberOfBinaryLightsTurnOn
-					+ " and dimmer lights: " + numberOfDimmerLightsTurnOn);
-			System.out.println("--->REQUIREMENT2: And the assignment according to energy is like: "
-					+ assignmentOfLightsTurnOn.get(0) * 100 + "W for binary lights ; "
-					+ assignmentOfLightsTurnOn.get(1) * 100 + "W for dimmer lights!");
-			System.out.println("--->STATE2: The dimmer light power is : " + dimmerLightPower * 100 + "W; ");
-
-			if (maximumOfDimmerLightsTurnOnfinal != 0) {
-				dimmerLightPowerExpected = ((double) assignmentOfLightsTurnOn.get(1)
-						/ (double) maximumOfDimmerLightsTurnOnfinal);
-			} else {
-				dimmerLightPowerExpected = 0.0;
-			}
-
-			System.out.println("--->REQUIREMENT3: The assignment power of dimmer light should be "
-					+ dimmerLightPowerExpected * 100 + "W!");
-			if (numberOfBinaryLightsTurnOn < maximumOfBinaryLightsTurnOnfinal
-					|| numberOfDimmerLightsTurnOn < maximumOfDimmerLightsTurnOnfinal
-					|| dimmerLightPower != dimmerLightPowerExpected) {
-				System.out.println("--->So, we should turn on more lights or change the lights arrangement.");
-				for (BinaryLight binLight : binaryLightsAtLocation) {
-					if (numberOfBinaryLightsTurnOn < maximumOfBinaryLightsTurnOnfinal/* && numberOfLightsTurnOn < maxLightsToTurnOnPerRoom*/) {
-						if (binLight.getPowerStatus())
-							continue;
-						binLight.turnOn();
-						numberOfLightsTurnOn = numberOfLightsTurnOn + 1;
-						numberOfBinaryLightsTurnOn = numberOfBinaryLightsTurnOn + 1;
-						System.out.println("with number of lights is :" + numberOfLightsTurnOn);
-					} else if (numberOfBinaryLightsTurnOn == maximumOfBinaryLightsTurnOnfinal) {
-						continue;
-					} else {
-						if (binLight.getPowerStatus()) {
-							binLight.turnOff();
-							numberOfLightsTurnOn = numberOfLightsTurnOn - 1;
-							numberOfBinaryLightsTurnOn = numberOfBinaryLightsTurnOn - 1;
-						}
-						System.out.println("with number of lights is :" + numberOfLightsTurnOn);
-					}
-				}
-				// count the number of dimmer light
-				for (DimmerLight dimLight : dimmerLightsAtLocation) {
-
-					if (numberOfDimmerLightsTurnOn < maximumOfDimmerLightsTurnOnfinal) {
-
-						System.out.println("######################## Need dimmer light######################");
-						System.out.println("all number of dimmer lights :" + allDimmerLights
-								+ "; dimmer lights have turned on: " + numberOfDimmerLightsTurnOn);
-
-						//System.out.println("powerlevel is " + assignmentOfLightsTurnOn.get(1)/maximumOfDimmerLightsTurnOnfinal + "because of the rest assignment light number is :" + assignmentOfLightsTurnOn.get(1));
-						
-						double numDim = (double)assignmentOfLightsTurnOn.get(1)/(double)maximumOfDimmerLightsTurnOnfinal;
-						if (numDim > 1.0) {
-							numDim = 1.0;
-						}
-						if (dimLight.getPowerLevel() > 0.0) {
-							dimLight.setPowerLevel(numDim);
-							continue;
-						}
-						
-						dimLight.setPowerLevel(numDim);
-						numberOfLightsTurnOn = numberOfLightsTurnOn + 1;
-						numberOfDimmerLightsTurnOn = numberOfDimmerLightsTurnOn + 1;
-						System.out.println("with number of lights is :" + numberOfLightsTurnOn);
-					} else if (numberOfDimmerLightsTurnOn == maximumOfDimmerLightsTurnOnfinal /*&& dimmerLightsAtLocation.size()*/) {
-						
-						double numDim = (double)assignmentOfLightsTurnOn.get(1)/(double)maximumOfDimmerLightsTurnOnfinal;
-						if (numDim > 1.0) {
-							numDim = 1.0;
-						}
-						if (maximumOfDimmerLightsTurnOnfinal == 0 || dimLight.getPowerLevel() == 0.0)
-							continue;
-						dimLight.setPowerLevel(numDim);
-						//continue;
-					} else {
-						if (dimLight.getPowerLevel() > 0.0) {
-							dimLight.setPowerLevel(0.0);
-							numberOfLightsTurnOn = numberOfLightsTurnOn - 1;
-							numberOfDimmerLightsTurnOn = numberOfDimmerLightsTurnOn - 1;
-						}
-						System.out.println("with number of lights is :" + numberOfLightsTurnOn);
-					}
-				}
+	/**
+	 * Get the illuminance targeted in a room: the average of the preferences of
+	 * the users in it, never above the global targeted illuminance.
+	 * 
+	 * @param location
+	 *            : the location of the room
+	 * @param targetedIlluminance
+	 *            : the global targeted illuminance
+	 * @return the targeted illuminance in lumens
+	 */
+	private double getTargetedIlluminanceAtLocation(String location, double targetedIlluminance) {
+		Set<String> usersAtLocation = getUserAtLocation(location);
+		if (usersAtLocation == null || usersAtLocation.isEmpty()) {
+			return targetedIlluminance;
+		}
+		int numberOfUsers = 0;
+		double illuminanceByUsersAtLocation = 0.0d;
+		for (String user : usersAtLocation) {
+			numberOfUsers++;
+			IlluminancePreference preference = userPreferences.get(preferencesService, user);
+			if (preference == null) {
+				illuminanceByUsersAtLocation += targetedIlluminance;
 			} else {
-				System.out.println("--->We don't need to turn on more lights.");
-			}
-
-		} else {
-			System.out.println("However, we need to turn off all lights because the sensor is off.");
-			// turn off all the lights
-			for (BinaryLight binLight : binaryLightsAtLocation) {
-				binLight.turnOff();
-			}
-			// count the number of dimmer light
-			for (DimmerLight dimLight : dimmerLightsAtLocation) {
-				dimLight.setPowerLevel(0.0);
+				illuminanceByUsersAtLocation += preference.getTargetedIlluminance();
 			}
 		}
-
-		System.out.println("----------------------------end print part---------------------------");
-
-	}
-
-	public synchronized double illuminancePerRoom(String location) {
-		List<DimmerLight> dimmerLightsAtLocation = getDimmerLightsFromLocation(location);
-		double illuminancePerRoom = 0.0;
-		for (DimmerLight dimLight : dimmerLightsAtLocation) {
-			illuminancePerRoom += dimLight.getPowerLevel() * dimLight.getMaxPowerLevel() * ONE_WATT_TO_ONE_LUMEN;
+		if (numberOfUsers == 0) {
+			return targetedIlluminance;
 		}
-		System.out.println("The room of " + location + " has the illuminance : " + illuminancePerRoom
-				+ "lumens.(Assuming that the area is unity)");
-		return illuminancePerRoom;
-
+		return Math.min(targetedIlluminance, illuminanceByUsersAtLocation / numberOfUsers);
 	}
 
-	private synchronized List<Integer> getAssignmentOfLightsTurnOn(String location) {
-
-		List<Integer> assignmentLightsNumbers = new ArrayList<Integer>();
-		int maximumNumberOfLightsByEnergy = (int) (maximumEnergyConsumptionAllowedInARoom / 100);
-		List<BinaryLight> binaryLightsAtLocation = getBinaryLightsFromLocation(location);
-		List<DimmerLight> dimmerLightsAtLocation = getDimmerLightsFromLocation(location);
-		int NumberOfBinaryLights = binaryLightsAtLocation.size();
-		int NumberOfDimmerLights = dimmerLightsAtLocation.size();
-
-		if (NumberOfBinaryLights >= maximumNumberOfLightsByEnergy) {
-			assignmentLightsNumbers.clear();
-			assignmentLightsNumbers.add(maximumNumberOfLightsByEnergy);
-			assignmentLightsNumbers.add(0);
-		} else {
-			assignmentLightsNumbers.clear();
-			assignmentLightsNumbers.add(NumberOfBinaryLights);
-			assignmentLightsNumbers.add(maximumNumberOfLightsByEnergy - NumberOfBinaryLights);
+	/**
+	 * Check and change the lights of a room, the lock of the zone being held by
+	 * the caller. The desired state of the room is computed first, then only
+	 * the lights whose state differs are actuated, all at the same time.
+	 * 
+	 * @param presence
+	 *            : whether the presence sensors of the room see someone
+	 * @param lit
+	 *            : whether the room must be lit, someone being in it or
+	 *            predicted to arrive
+	 * @param settings
+	 *            : the settings read once for the whole evaluation
+	 * @param changedShares
+	 *            : receives the other rooms whose share of the house budget
+	 *            has changed, null if not in house budget mode
+	 * @return the number of commands sent to the lights
+	 */
+	private int checkingAndChangingLightsStates(Zone zone, boolean presence, boolean lit, FollowMeSettings settings,
+			List<Zone> changedShares) {
+		String location = zone.getLocation();
+		int maxLightsToTurnOnPerRoom = settings.getMaximumNumberOfLightsToTurnOn();
+		double maximumEnergyConsumptionAllowedInARoom = settings.getMaximumAllowedEnergyInRoom();
+		if (settings.isHouseBudgetMode()) {
+			// the share of the house budget replaces the cap of the room,
+			// rounded down to the Watt to bound the allocations of the zone
+			int weight = lit ? getBudgetWeight(location, maxLightsToTurnOnPerRoom) : 0;
+			maximumEnergyConsumptionAllowedInARoom = Math.floor(energyBudget.update(zone, lit, weight,
+					zone.getMaxPower(), settings.getHouseEnergyBudget(), changedShares));
+		}
+		// define the number of lights limited by the global preference and the user preference
+		int maxNumberLightsByAllPreferences = 0;
+		double targetedIlluminanceAtLocation = 0.0d;
+		LightAllocation allocation = null;
+		if (lit) {
+			maxNumberLightsByAllPreferences = Math.min(getUserPreferenceAtLocation(location, maxLightsToTurnOnPerRoom),
+					maxLightsToTurnOnPerRoom);
+			targetedIlluminanceAtLocation = getTargetedIlluminanceAtLocation(location,
+					settings.getTargetedIlluminance());
+			allocation = zone.getAllocation(targetedIlluminanceAtLocation, maximumEnergyConsumptionAllowedInARoom,
+					maxNumberLightsByAllPreferences);
 		}
-		return assignmentLightsNumbers;
 
+		LightingPlan plan = new LightingPlan(zone).compute(lit, allocation);
+		int commands = plan.apply(actuator, statistics.isEnabled() ? statistics.getDeviceCalls() : null,
+				journal.isEnabled() ? journal : null);
+		zone.setExpectedState(presence, plan.getDesiredBinaryStates(), plan.getDesiredDimmerLevels());
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("In this location " + location + " we have binarylights " + zone.getBinaryLights().size()
+					+ ", dimmerlights " + zone.getDimmerLights().size() + ", presence " + presence
+					+ ", the maximum number of lights by all preferences " + maxNumberLightsByAllPreferences
+					+ ", the targeted illuminance " + targetedIlluminanceAtLocation + "lm and the maximum energy "
+					+ maximumEnergyConsumptionAllowedInARoom + "W. We keep binary lights: "
+					+ plan.getNumberOfBinaryLightsOn() + " and dimmer lights: " + plan.getNumberOfDimmerLightsOn()
+					+ " on, with " + commands + " commands sent.");
+		}
+		return commands;
 	}
 
-	// count the number of lights which turn on at the location specific
-	/*
-	private synchronized int getNumberOfLightsTurnOn(String location) {
-		List<BinaryLight> binaryLightsAtLocation = getBinaryLightsFromLocation(location);
-		List<DimmerLight> dimmerLightsAtLocation = getDimmerLightsFromLocation(location);
-		int numberOfLightsTurnOn = 0;
-		for (BinaryLight binLight : binaryLightsAtLocation) {
-			if (binLight.getPowerStatus()) {
-				numberOfLightsTurnOn++;
-			}
+	public double illuminancePerRoom(String location) {
+		Zone zone = zoneIndex.getZone(location);
+		if (zone == null) {
+			return 0.0;
 		}
-		for (DimmerLight dimLight : dimmerLightsAtLocation) {
-			if (dimLight.getPowerLevel() > 0.0) {
-				numberOfLightsTurnOn++;
+		double illuminancePerRoom = 0.0;
+		zone.lock();
+		try {
+			for (DeviceState binaryLight : zone.getBinaryLightStates()) {
+				if (binaryLight.getPowerStatus()) {
+					illuminancePerRoom += binaryLight.getMaxPower() * ONE_WATT_TO_ONE_LUMEN;
+				}
 			}
-		}
-		return numberOfLightsTurnOn;
-	}*/
-
-	private synchronized int getNumberOfBinaryLightsTurnOn(String location) {
-		List<BinaryLight> binaryLightsAtLocation = getBinaryLightsFromLocation(location);
-		int numberOfLightsTurnOn = 0;
-		for (BinaryLight binLight : binaryLightsAtLocation) {
-			if (binLight.getPowerStatus()) {
-				numberOfLightsTurnOn++;
+			for (DeviceState dimLight : zone.getDimmerLightStates()) {
+				illuminancePerRoom += dimLight.getPowerLevel() * dimLight.getMaxPower() * ONE_WATT_TO_ONE_LUMEN;
 			}
+		} finally {
+			zone.unlock();
 		}
-		return numberOfLightsTurnOn;
-	}
-
-	private synchronized int getNumberOfDimmerLightsTurnOn(String location) {
-		List<DimmerLight> dimmerLightsAtLocation = getDimmerLightsFromLocation(location);
-		int numberOfLightsTurnOn = 0;
-		for (DimmerLight dimLight : dimmerLightsAtLocation) {
-			if (dimLight.getPowerLevel() > 0.0) {
-				numberOfLightsTurnOn++;
-			}
+		if (logger.isDebugEnabled()) {
+			logger.debug("The room of " + location + " has the illuminance : " + illuminancePerRoom
+					+ "lumens.(Assuming that the area is unity)");
 		}
-		return numberOfLightsTurnOn;
+		return illuminancePerRoom;
+
 	}
 
 	@Override
@@ -623,16 +1143,23 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 
 	}
 
+	/**
+	 * A property added to a device is read once into its state, then followed
+	 * by the modification events.
+	 */
 	@Override
-	public void devicePropertyAdded(GenericDevice arg0, String arg1) {
-		// TODO Auto-generated method stub
-
+	public void devicePropertyAdded(GenericDevice device, String propertyName) {
+		devicePropertyModified(device, propertyName, null, device.getPropertyValue(propertyName));
 	}
 
+	/**
+	 * A removed property is seen as a property without value: the device is
+	 * then in an unknown location, or off.
+	 */
 	@Override
-	public void devicePropertyRemoved(GenericDevice arg0, String arg1) {
-		// TODO Auto-generated method stub
-
+	public void devicePropertyRemoved(GenericDevice device, String propertyName) {
+		devicePropertyModified(device, propertyName, null,
+				propertyName.equals(LOCATION_PROPERTY_NAME) ? LOCATION_UNKNOWN : null);
 	}
 
 	@Override
@@ -642,47 +1169,115 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 	}
 
 	@Override
-	public synchronized int getMaximumNumberOfLightsToTurnOn() {
-		// TODO Auto-generated method stub
-		return maxLightsToTurnOnPerRoom;
+	public int getMaximumNumberOfLightsToTurnOn() {
+		return settings.get().getMaximumNumberOfLightsToTurnOn();
 	}
 
 	@Override
-	public synchronized void setMaximumNumberOfLightsToTurnOn(int maximumNumberOfLightsToTurnOn) {
-		// TODO Auto-generated method stub
-		maxLightsToTurnOnPerRoom = maximumNumberOfLightsToTurnOn;
+	public void setMaximumNumberOfLightsToTurnOn(int maximumNumberOfLightsToTurnOn) {
+		FollowMeSettings current;
+		do {
+			current = settings.get();
+		} while (changeSettings(current,
+				current.withMaximumNumberOfLightsToTurnOn(maximumNumberOfLightsToTurnOn)) == null);
+	}
 
+	@Override
+	public double getMaximumAllowedEnergyInRoom() {
+		return settings.get().getMaximumAllowedEnergyInRoom();
 	}
 
 	@Override
-	public synchronized double getMaximumAllowedEnergyInRoom() {
-		// TODO Auto-generated method stub
-		return maximumEnergyConsumptionAllowedInARoom;
+	public void setMaximumAllowedEnergyInRoom(double maximumEnergy) {
+		FollowMeSettings current;
+		do {
+			current = settings.get();
+		} while (changeSettings(current, current.withMaximumAllowedEnergyInRoom(maximumEnergy)) == null);
 	}
 
 	@Override
-	public synchronized void setMaximumAllowedEnergyInRoom(double maximumEnergy) {
-		// TODO Auto-generated method stub
-		maximumEnergyConsumptionAllowedInARoom = maximumEnergy;
+	public double getTargetedIlluminance() {
+		return settings.get().getTargetedIlluminance();
 	}
 
 	@Override
-	public synchronized double getTargetedIlluminance() {
-		// TODO Auto-generated method stub
-		return targetedIlluminance;
+	public void setTargetedIlluminance(double illuminance) {
+		FollowMeSettings current;
+		do {
+			current = settings.get();
+		} while (changeSettings(current, current.withTargetedIlluminance(illuminance)) == null);
 	}
 
 	@Override
-	public synchronized void setTargetedIlluminance(double illuminance) {
-		// TODO Auto-generated method stub
-		targetedIlluminance = illuminance;
+	public FollowMeSettings getSettings() {
+		return settings.get();
+	}
 
+	@Override
+	public FollowMeSettings applySettings(FollowMeSettings newSettings) {
+		FollowMeSettings current = settings.get();
+		if (newSettings.getVersion() != current.getVersion()) {
+			// derived from settings changed meanwhile: never overwrite that change
+			return current;
+		}
+		FollowMeSettings applied = changeSettings(current, newSettings);
+		return applied == null ? settings.get() : applied;
+	}
+
+	/**
+	 * Replace the settings if they have not changed meanwhile, then reconcile
+	 * once every room having lights.
+	 * 
+	 * @param expected
+	 *            : the settings the change is based on
+	 * @param wanted
+	 *            : the new goals
+	 * @return the settings in use after the change, or null if the settings
+	 *         changed meanwhile and the change must be retried
+	 */
+	private FollowMeSettings changeSettings(FollowMeSettings expected, FollowMeSettings wanted) {
+		if (wanted.hasSameGoals(expected)) {
+			return expected;
+		}
+		FollowMeSettings next = wanted.withVersion(expected.getVersion() + 1L);
+		if (!settings.compareAndSet(expected, next)) {
+			return null;
+		}
+		statistics.event(EventType.CONFIGURATION_CHANGED);
+		journal.settings(next);
+		if (logger.isInfoEnabled()) {
+			logger.info("The settings changed to " + next + ". So we check the rooms");
+		}
+		if (!next.isHouseBudgetMode()) {
+			energyBudget.clear();
+		}
+		List<Zone> zonesWithLights = new ArrayList<Zone>();
+		for (Zone zone : zoneIndex.getZones()) {
+			zone.lock();
+			try {
+				if (zone.hasLights()) {
+					zonesWithLights.add(zone);
+				}
+			} finally {
+				zone.unlock();
+			}
+		}
+		ReconciliationSummary summary = reconciler.reconcile(zonesWithLights);
+		if (logger.isInfoEnabled()) {
+			logger.info("Settings " + next.getVersion() + " applied: " + summary);
+		}
+		return next;
 	}
 
 	@Override
-	public void personAdded(Person arg0) {
-		// TODO Auto-generated method stub
-		
+	public void personAdded(Person person) {
+		statistics.event(EventType.PERSON_ADDED);
+		String location = person.getLocation();
+		journal.person(JournalRecord.Type.PERSON_ADDED, person.getName(), location);
+		if (location != null) {
+			occupancy.move(person.getName(), location);
+			zoneScheduler.submit(zoneIndex.getZone(location));
+		}
 	}
 
 	@Override
@@ -699,24 +1294,352 @@ public class FollowMeImpl implements DeviceListener, FollowMeConfiguration,Perso
 
 	@Override
 	public void personMoved(Person name, Position oldposition) {
+		statistics.event(EventType.PERSON_MOVED);
 		String location = name.getLocation();
-		System.out.println(name.getName() + " changed his/her position. So we check the states and preferences");
-		PresenceSensor presenceSensor =  getPresenceSensorsFromLocation(location);
-		checkingAndChangingLightsStates(presenceSensor,location);
+		journal.person(JournalRecord.Type.PERSON_MOVED, name.getName(), location);
+		if (location == null) {
+			return;
+		}
+		// both rooms are checked: the preferences of their users have changed
+		String oldLocation = occupancy.move(name.getName(), location);
+		if (oldLocation != null && !oldLocation.equals(location)) {
+			zoneScheduler.submit(zoneIndex.getZone(oldLocation));
+		}
+		zoneScheduler.submit(zoneIndex.getZone(location));
+
+		long now = System.currentTimeMillis();
+		TransitionModel.Prediction prediction = transitionModel.recordMove(name.getName(), oldLocation, location,
+				now);
+		cancelPrelight(name.getName());
+		if (prelightEnabled && prediction != null && !prediction.getLocation().equals(location)
+				&& prediction.getExpectedDwell() <= PRELIGHT_HORIZON) {
+			schedulePrelight(name.getName(), prediction.getLocation(), prediction.getExpectedDwell(), now);
+		}
+	}
+
+	/**
+	 * Light a room shortly before the expected arrival of a person, so the
+	 * room is lit only from PRELIGHT_LEAD before the arrival to PRELIGHT_GRACE
+	 * after it.
+	 * 
+	 * @param person
+	 *            : the person expected
+	 * @param location
+	 *            : the room
+	 * @param expectedDwell
+	 *            : the expected stay of the person in its current room, in
+	 *            milliseconds
+	 * @param now
+	 *            : the current time in milliseconds
+	 */
+	private void schedulePrelight(String person, final String location, long expectedDwell, long now) {
+		final long until = now + expectedDwell + PRELIGHT_GRACE;
+		long delay = expectedDwell - PRELIGHT_LEAD;
+		if (delay <= 0L) {
+			prelight(location, until);
+			return;
+		}
+		TimerWheel.Timeout timeout = engine.getTimerWheel().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (prelightEnabled) {
+					prelight(location, until);
+				}
+			}
+		}, delay);
+		TimerWheel.Timeout previous = pendingPrelights.put(person, timeout);
+		if (previous != null) {
+			previous.cancel();
+		}
+	}
+
+	/**
+	 * Cancel the prelight waiting for the arrival of a person, if any.
+	 * 
+	 * @param person
+	 *            : the person
+	 */
+	private void cancelPrelight(String person) {
+		TimerWheel.Timeout timeout = pendingPrelights.remove(person);
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	/**
+	 * Light a room ahead of a predicted arrival.
+	 * 
+	 * @param location
+	 *            : the room
+	 * @param until
+	 *            : the time the prediction expires, in milliseconds
+	 */
+	private void prelight(String location, long until) {
+		Zone zone = zoneIndex.getZone(location);
+		if (zone == null) {
+			return;
+		}
+		statistics.event(EventType.PRELIGHT);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Someone is expected in " + location + ". So we light it ahead");
+		}
+		zone.prelight(until);
+		prelitZones.add(zone);
+		zoneScheduler.submit(zone);
 	}
 
 	@Override
-	public void personRemoved(Person arg0) {
-		// TODO Auto-generated method stub
-		
+	public void personRemoved(Person person) {
+		statistics.event(EventType.PERSON_REMOVED);
+		journal.person(JournalRecord.Type.PERSON_REMOVED, person.getName(), null);
+		String oldLocation = occupancy.remove(person.getName());
+		transitionModel.forget(person.getName());
+		cancelPrelight(person.getName());
+		if (oldLocation != null) {
+			zoneScheduler.submit(zoneIndex.getZone(oldLocation));
+		}
+	}
+
+	/**
+	 * The maintenance task, run periodically by the iCasa scheduler. The next
+	 * rooms in turn have their occupancy checked against the
+	 * PersonLocationService and their devices against the state commanded by
+	 * their last evaluation; only the rooms found wrong are evaluated again.
+	 * The state is saved every SNAPSHOT_PERIOD runs.
+	 */
+	@Override
+	public void run() {
+		statistics.event(EventType.PERIODIC_CHECK);
+		long now = System.currentTimeMillis();
+		for (Iterator<Zone> iterator = prelitZones.iterator(); iterator.hasNext();) {
+			Zone zone = iterator.next();
+			if (zone.hasPrelightExpired(now)) {
+				iterator.remove();
+				zone.clearPrelight();
+				zoneScheduler.submit(zone);
+			}
+		}
+		for (Zone zone : antiEntropy.nextZones()) {
+			if (zone.getLocation().equals(LOCATION_UNKNOWN)) {
+				continue;
+			}
+			checkOccupancy(zone);
+			// the preferences restored from a snapshot are read again once
+			for (String person : occupancy.getPersons(zone.getLocation())) {
+				userPreferences.verify(preferencesService, person);
+			}
+			boolean drifted;
+			int driftsInARow;
+			zone.lock();
+			try {
+				drifted = zone.hasDrifted();
+				driftsInARow = zone.recordDriftCheck(drifted);
+				if (drifted) {
+					// an event has been missed: the states are read again
+					zone.refreshStates();
+				}
+			} finally {
+				zone.unlock();
+			}
+			if (drifted) {
+				statistics.event(EventType.DRIFT_REPAIRED);
+				if (driftsInARow > 1) {
+					// the repair did not hold: the room may fight with its lights
+					statistics.event(EventType.DRIFT_REPEATED);
+					if (logger.isWarningEnabled()) {
+						logger.warning("The devices of " + zone.getLocation() + " have drifted " + driftsInARow
+								+ " checks in a row. So we check the room again");
+					}
+				} else if (logger.isInfoEnabled()) {
+					logger.info("The devices of " + zone.getLocation() + " have drifted. So we check the room");
+				}
+				presenceFilter.sensed(zone);
+				zoneScheduler.submit(zone);
+			}
+		}
+		if (++runsSinceSnapshot >= SNAPSHOT_PERIOD) {
+			runsSinceSnapshot = 0;
+			saveSnapshot();
+		}
+	}
+
+	@Override
+	public long getPeriod() {
+		return MAINTENANCE_PERIOD;
+	}
+
+	public TimeUnit getUnit() {
+		return TimeUnit.MILLISECONDS;
+	}
+
+	@Override
+	public String getGroup() {
+		return "follow.me";
+	}
+
+	/**
+	 * Check the occupancy of every known room against the
+	 * PersonLocationService, in case a person event has been missed. The rooms
+	 * found inconsistent are repaired and checked again.
+	 */
+	private void checkOccupancy() {
+		for (Zone zone : zoneIndex.getZones()) {
+			if (!zone.getLocation().equals(LOCATION_UNKNOWN)) {
+				checkOccupancy(zone);
+			}
+		}
+	}
+
+	/**
+	 * Check the occupancy of a room against the PersonLocationService.
+	 * 
+	 * @param zone
+	 *            : the room to check
+	 */
+	private void checkOccupancy(Zone zone) {
+		String location = zone.getLocation();
+		Set<String> persons = LocationService.getPersonInZone(location);
+		if (persons == null) {
+			persons = Collections.emptySet();
+		}
+		Set<String> changedLocations = occupancy.reconcile(location, persons);
+		if (!changedLocations.isEmpty() && logger.isInfoEnabled()) {
+			logger.info("The occupancy of " + location + " was not up to date: " + persons);
+		}
+		for (String changedLocation : changedLocations) {
+			zoneScheduler.submit(zoneIndex.getZone(changedLocation));
+		}
 	}
 
 	@Override
 	public void changedProperty(String property, Object oldvalue, Object newvalue) {
-		System.out.println("--------------------------------------------------------------");
-		System.out.println(property + " changed. So we check the states and preferences");
-		System.out.println(" But no Lisener");
+		statistics.event(EventType.PREFERENCE_CHANGED);
+		// a change without the name of the user: forget every cached preference
+		if (logger.isInfoEnabled()) {
+			logger.info(property + " changed. So we check the states and preferences");
+		}
+		userPreferences.invalidateAll();
+		for (Zone zone : zoneIndex.getZones()) {
+			zoneScheduler.submit(zone);
+		}
+	}
+
+	/**
+	 * Called when the cached preference of a user has been updated: the rooms
+	 * where this user is are checked again.
+	 * 
+	 * @param user
+	 *            : the name of the user
+	 */
+	private void userPreferenceChanged(String user) {
+		statistics.event(EventType.PREFERENCE_CHANGED);
+		if (logger.isInfoEnabled()) {
+			logger.info("The preference of " + user + " changed. So we check the states and preferences");
+		}
+		String location = occupancy.getLocation(user);
+		if (location == null) {
+			return;
+		}
+		if (batchDepth.get() > 0) {
+			batchedLocations.add(location);
+			// the batch may have ended meanwhile, then the room is checked here
+			if (batchDepth.get() > 0 || !batchedLocations.remove(location)) {
+				return;
+			}
+		}
+		zoneScheduler.submit(zoneIndex.getZone(location));
+	}
+
+	@Override
+	public void setPresenceTimes(String location, long debounce, long holdOff) {
+		presenceFilter.setTimes(location, debounce, holdOff);
+	}
+
+	@Override
+	public void runInBatch(Runnable changes) {
+		batchDepth.incrementAndGet();
+		try {
+			changes.run();
+		} finally {
+			if (batchDepth.decrementAndGet() == 0) {
+				List<Zone> zones = new ArrayList<Zone>();
+				for (Iterator<String> iterator = batchedLocations.iterator(); iterator.hasNext();) {
+					Zone zone = zoneIndex.getZone(iterator.next());
+					iterator.remove();
+					if (zone != null) {
+						zones.add(zone);
+					}
+				}
+				if (!zones.isEmpty()) {
+					ReconciliationSummary summary = reconciler.reconcile(zones);
+					if (logger.isInfoEnabled()) {
+						logger.info("Preferences batch applied: " + summary);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public String getStatisticsReport() {
+		StringBuilder report = new StringBuilder();
+		if (!statistics.isEnabled()) {
+			report.append("statistics disabled\n");
+		}
+		statistics.appendTo(report);
+		if (journal.isEnabled()) {
+			report.append("journal: records=").append(journal.getWrittenRecords()).append(" commits=")
+					.append(journal.getCommits()).append(" dropped=").append(journal.getDroppedRecords())
+					.append('\n');
+		}
+		report.append("rooms:\n");
+		for (Zone zone : zoneIndex.getZones()) {
+			if (zone.getEvaluations() > 0L) {
+				report.append("  ").append(zone.getLocation()).append(": evaluations=").append(zone.getEvaluations())
+						.append(" commands=").append(zone.getCommands());
+				if (zone.getDriftRepairs() > 0L) {
+					report.append(" drift repairs=").append(zone.getDriftRepairs());
+				}
+				report.append('\n');
+			}
+		}
+		return report.toString();
+	}
+
+	@Override
+	public void resetStatistics() {
+		statistics.reset();
+		for (Zone zone : zoneIndex.getZones()) {
+			zone.resetStatistics();
+		}
+	}
+
+	@Override
+	public ReconciliationSummary reconcile() {
+		ReconciliationSummary summary = reconciler.reconcile(zoneIndex.getZones());
+		if (logger.isInfoEnabled()) {
+			logger.info("Reconciliation: " + summary);
+		}
+		return summary;
+	}
+
+	@Override
+	public double getPower(String location) {
+		return energyMeter.getPower(location);
+	}
+
+	@Override
+	public double getEnergy(String location, EnergyWindow window) {
+		return energyMeter.getEnergy(location, window, System.currentTimeMillis());
 	}
 
+	@Override
+	public double getDeviceEnergy(String serialNumber) {
+		return energyMeter.getDeviceEnergy(serialNumber, System.currentTimeMillis());
+	}
 
+	@Override
+	public Set<String> getAccountedLocations() {
+		return energyMeter.getLocations();
+	}
 }
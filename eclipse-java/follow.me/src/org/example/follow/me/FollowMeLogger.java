@@ -0,0 +1,223 @@
+package org.example.follow.me;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * The FollowMeLogger is the logging facade of the Follow Me application. It is
+ * off by default. The callers check the level first, so no message is built
+ * when the level is disabled; enabled records are queued and written to the
+ * OSGi log service (or to the console when it is absent) by a background
+ * thread, so the control path never waits for the output.
+ */
+class FollowMeLogger {
+
+	/**
+	 * The destination of the records, looked up when a record is written
+	 */
+	interface LogServiceProvider {
+		LogService getLogService();
+	}
+
+	/** The level disabling every record */
+	public static final int LOG_NONE = 0;
+
+	/** The maximum number of records waiting to be written */
+	private static final int QUEUE_CAPACITY = 8192;
+
+	/**
+	 * The maximum time a stop waits for the records queued before it to be
+	 * written, in milliseconds
+	 */
+	private static final long STOP_TIMEOUT = 1000L;
+
+	/** The current level, one of LOG_NONE or the LogService levels */
+	private volatile int level = LOG_NONE;
+
+	/** The records waiting to be written */
+	private final BlockingQueue<Record> records = new ArrayBlockingQueue<Record>(QUEUE_CAPACITY);
+
+	/** The number of records dropped because the queue was full */
+	private final AtomicLong droppedRecords = new AtomicLong();
+
+	private final LogServiceProvider provider;
+
+	private Thread appender;
+
+	/** Whether the component is started; the thread runs only if the level is not NONE */
+	private boolean started;
+
+	FollowMeLogger(LogServiceProvider provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Sets the level from its name. An unknown name keeps the current level.
+	 * 
+	 * @param levelName
+	 *            : "NONE", "ERROR", "WARNING", "INFO" or "DEBUG"
+	 * @return false if the name is not a level
+	 */
+	public boolean setLevel(String levelName) {
+		if (levelName == null) {
+			return false;
+		}
+		switch (levelName.trim().toUpperCase()) {
+		case "NONE":
+			level = LOG_NONE;
+			break;
+		case "ERROR":
+			level = LogService.LOG_ERROR;
+			break;
+		case "WARNING":
+			level = LogService.LOG_WARNING;
+			break;
+		case "INFO":
+			level = LogService.LOG_INFO;
+			break;
+		case "DEBUG":
+			level = LogService.LOG_DEBUG;
+			break;
+		default:
+			return false;
+		}
+		startAppender();
+		return true;
+	}
+
+	public boolean isDebugEnabled() {
+		return level >= LogService.LOG_DEBUG;
+	}
+
+	public boolean isInfoEnabled() {
+		return level >= LogService.LOG_INFO;
+	}
+
+	public boolean isWarningEnabled() {
+		return level >= LogService.LOG_WARNING;
+	}
+
+	public boolean isErrorEnabled() {
+		return level >= LogService.LOG_ERROR;
+	}
+
+	public void debug(String message) {
+		log(LogService.LOG_DEBUG, message, null);
+	}
+
+	public void info(String message) {
+		log(LogService.LOG_INFO, message, null);
+	}
+
+	public void warning(String message) {
+		log(LogService.LOG_WARNING, message, null);
+	}
+
+	public void error(String message, Throwable exception) {
+		log(LogService.LOG_ERROR, message, exception);
+	}
+
+	public long getDroppedRecords() {
+		return droppedRecords.get();
+	}
+
+	private void log(int recordLevel, String message, Throwable exception) {
+		if (recordLevel > level) {
+			return;
+		}
+		if (!records.offer(new Record(recordLevel, message, exception))) {
+			droppedRecords.incrementAndGet();
+		}
+	}
+
+	public synchronized void start() {
+		started = true;
+		startAppender();
+	}
+
+	/**
+	 * Start the thread writing the records, unless the logs are off: the
+	 * houses sharing a process do not keep one idle thread each.
+	 */
+	private synchronized void startAppender() {
+		if (!started || appender != null || level == LOG_NONE) {
+			return;
+		}
+		appender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				append();
+			}
+		}, "follow.me-log-appender");
+		appender.setDaemon(true);
+		appender.start();
+	}
+
+	/**
+	 * Stop the thread writing the records once it has written the records
+	 * queued so far, within STOP_TIMEOUT. The records left are dropped, so
+	 * they are not written after the next start, out of context.
+	 */
+	public synchronized void stop() {
+		started = false;
+		if (appender != null) {
+			appender.interrupt();
+			try {
+				appender.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			appender = null;
+		}
+		records.clear();
+	}
+
+	private void append() {
+		while (true) {
+			Record record;
+			try {
+				record = records.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			write(record);
+		}
+		// stopped: the records queued before the stop are still written
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT);
+		Record record;
+		while (System.nanoTime() < deadline && (record = records.poll()) != null) {
+			write(record);
+		}
+	}
+
+	private void write(Record record) {
+		LogService logService = provider.getLogService();
+		if (logService != null) {
+			logService.log(record.level, record.message, record.exception);
+		} else {
+			System.out.println("[follow.me] " + record.message);
+			if (record.exception != null) {
+				record.exception.printStackTrace(System.out);
+			}
+		}
+	}
+
+	/**
+	 * A record waiting to be written
+	 */
+	private static class Record {
+		private final int level;
+		private final String message;
+		private final Throwable exception;
+
+		Record(int level, String message, Throwable exception) {
+			this.level = level;
+			this.message = message;
+			this.exception = exception;
+		}
+	}
+}
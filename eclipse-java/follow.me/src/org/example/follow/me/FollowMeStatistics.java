@@ -0,0 +1,91 @@
+package org.example.follow.me;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The FollowMeStatistics count the events received by the application and
+ * measure the latency of its reactions. Every recording is lock-free and
+ * allocation-free; the per room counters are kept by the zones themselves.
+ */
+class FollowMeStatistics {
+
+	/**
+	 * The events counted by type
+	 */
+	enum EventType {
+		DEVICE_BOUND, DEVICE_UNBOUND, DEVICE_PROPERTY_MODIFIED, PERSON_ADDED, PERSON_MOVED, PERSON_REMOVED,
+		PREFERENCE_CHANGED, CONFIGURATION_CHANGED, PERIODIC_CHECK, DRIFT_REPAIRED, DRIFT_REPEATED, PRELIGHT,
+		COMMAND_FAILED, SHARD_OVERFLOW
+	}
+
+	private static final EventType[] EVENT_TYPES = EventType.values();
+
+	private final AtomicLongArray events = new AtomicLongArray(EVENT_TYPES.length);
+
+	/** The time from the first event marking a room dirty to its commands */
+	private final LatencyHistogram callbackToActuation = new LatencyHistogram();
+
+	/** The time spent in each command sent to a light */
+	private final LatencyHistogram deviceCalls = new LatencyHistogram();
+
+	/** The time spent in each room evaluation */
+	private final LatencyHistogram evaluations = new LatencyHistogram();
+
+	/** Whether the statistics are recorded */
+	private volatile boolean enabled = true;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void event(EventType type) {
+		if (enabled) {
+			events.incrementAndGet(type.ordinal());
+		}
+	}
+
+	public long getEventCount(EventType type) {
+		return events.get(type.ordinal());
+	}
+
+	public LatencyHistogram getCallbackToActuation() {
+		return callbackToActuation;
+	}
+
+	public LatencyHistogram getDeviceCalls() {
+		return deviceCalls;
+	}
+
+	public LatencyHistogram getEvaluations() {
+		return evaluations;
+	}
+
+	public void reset() {
+		for (int i = 0; i < EVENT_TYPES.length; i++) {
+			events.set(i, 0L);
+		}
+		callbackToActuation.reset();
+		deviceCalls.reset();
+		evaluations.reset();
+	}
+
+	/**
+	 * Describe the global statistics, one per line.
+	 * 
+	 * @param report
+	 *            : the report to append to
+	 */
+	public void appendTo(StringBuilder report) {
+		report.append("events:\n");
+		for (EventType type : EVENT_TYPES) {
+			report.append("  ").append(type.name().toLowerCase()).append('=').append(getEventCount(type)).append('\n');
+		}
+		report.append("room evaluation: ").append(evaluations).append('\n');
+		report.append("callback to actuation: ").append(callbackToActuation).append('\n');
+		report.append("device call: ").append(deviceCalls).append('\n');
+	}
+}
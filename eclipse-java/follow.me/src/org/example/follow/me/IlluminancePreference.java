@@ -0,0 +1,58 @@
+package org.example.follow.me;
+
+/**
+ * The illuminance preference of a user, as stored in the Preferences service
+ * under the "illuminance" property. It mirrors the IlluminanceGoal of the
+ * manager bundle, which this bundle cannot depend on.
+ */
+enum IlluminancePreference {
+
+	/** The preference for soft illuminance. */
+	SOFT(1, 500d),
+	/** The preference for medium illuminance. */
+	MEDIUM(2, 2750d),
+	/** The preference for full illuminance. */
+	FULL(3, 4000d);
+
+	/** The number of lights to turn on. */
+	private final int numberOfLightsToTurnOn;
+
+	/** The targeted illuminance in lumens. */
+	private final double targetedIlluminance;
+
+	private IlluminancePreference(int numberOfLightsToTurnOn, double targetedIlluminance) {
+		this.numberOfLightsToTurnOn = numberOfLightsToTurnOn;
+		this.targetedIlluminance = targetedIlluminance;
+	}
+
+	public int getNumberOfLightsToTurnOn() {
+		return numberOfLightsToTurnOn;
+	}
+
+	public double getTargetedIlluminance() {
+		return targetedIlluminance;
+	}
+
+	/**
+	 * Convert the value of the illuminance property.
+	 * 
+	 * @param value
+	 *            : the value stored in the Preferences service
+	 * @return the preference, or null if the value is missing or invalid
+	 */
+	public static IlluminancePreference fromPropertyValue(Object value) {
+		if (value == null) {
+			return null;
+		}
+		switch (value.toString()) {
+		case FollowMeImpl.USER_PROP_ILLUMINANCE_VALUE_SOFT:
+			return SOFT;
+		case FollowMeImpl.USER_PROP_ILLUMINANCE_VALUE_MEDIUM:
+			return MEDIUM;
+		case FollowMeImpl.USER_PROP_ILLUMINANCE_VALUE_FULL:
+			return FULL;
+		default:
+			return null;
+		}
+	}
+}
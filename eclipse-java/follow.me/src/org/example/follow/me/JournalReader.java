@@ -0,0 +1,202 @@
+package org.example.follow.me;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.example.follow.me.JournalRecord.DeviceKind;
+import org.example.follow.me.JournalRecord.Type;
+import org.example.follow.me.configuration.FollowMeSettings;
+
+/**
+ * The JournalReader reads back the segments written by the event journal, the
+ * oldest first. A record cut by a crash at the end of the last segment is
+ * ignored.
+ */
+public class JournalReader {
+
+	/**
+	 * Receives the records read
+	 */
+	public interface RecordHandler {
+		void handle(JournalRecord record) throws Exception;
+	}
+
+	private static final Type[] TYPES = Type.values();
+
+	private static final DeviceKind[] KINDS = DeviceKind.values();
+
+	private final File directory;
+
+	/**
+	 * @param directory
+	 *            : the directory of the journal
+	 */
+	public JournalReader(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Read the records of a time range.
+	 *
+	 * @param from
+	 *            : the time of the first record, in milliseconds since the
+	 *            epoch
+	 * @param to
+	 *            : the time after the last record
+	 * @param handler
+	 *            : receives the records, in the order they were written
+	 * @return the number of records read
+	 * @throws IOException
+	 *             if a segment is not valid
+	 * @throws Exception
+	 *             if the handler fails
+	 */
+	public long read(long from, long to, RecordHandler handler) throws Exception {
+		File[] segments = EventJournal.getSegments(directory);
+		long count = 0L;
+		for (int i = 0; i < segments.length; i++) {
+			// a segment followed by one starting before the range is skipped
+			if (i + 1 < segments.length && getFirstTime(segments[i + 1]) <= from) {
+				continue;
+			}
+			FileChannel channel = FileChannel.open(segments[i].toPath(), StandardOpenOption.READ);
+			try {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				readHeader(buffer, segments[i]);
+				while (buffer.remaining() >= 4) {
+					int length = buffer.getInt();
+					if (length <= 0 || length > buffer.remaining()) {
+						// the end of a segment being written or cut by a crash
+						break;
+					}
+					int end = buffer.position() + length;
+					JournalRecord record;
+					try {
+						record = decode(buffer);
+					} catch (BufferUnderflowException e) {
+						throw new IOException(segments[i] + " has an invalid record", e);
+					}
+					buffer.position(end);
+					if (record.getTime() >= to) {
+						return count;
+					}
+					if (record.getTime() >= from) {
+						handler.handle(record);
+						count++;
+					}
+				}
+			} finally {
+				channel.close();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the time of the first record of a segment.
+	 *
+	 * @return the time, or Long.MAX_VALUE if the segment is empty
+	 */
+	private static long getFirstTime(File segment) throws IOException {
+		FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() < EventJournal.HEADER_SIZE + 4 + 1 + 8) {
+				return Long.MAX_VALUE;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					EventJournal.HEADER_SIZE + 4 + 1 + 8);
+			readHeader(buffer, segment);
+			buffer.getInt();
+			buffer.get();
+			return buffer.getLong();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void readHeader(MappedByteBuffer buffer, File segment) throws IOException {
+		if (buffer.remaining() < EventJournal.HEADER_SIZE || buffer.getInt() != EventJournal.MAGIC) {
+			throw new IOException(segment + " is not a journal segment");
+		}
+		int version = buffer.getInt();
+		if (version != EventJournal.FORMAT_VERSION) {
+			throw new IOException(segment + " has the unsupported format " + version);
+		}
+	}
+
+	private static JournalRecord decode(MappedByteBuffer buffer) throws IOException {
+		int ordinal = buffer.get();
+		if (ordinal < 0 || ordinal >= TYPES.length) {
+			throw new IOException("unknown record type " + ordinal);
+		}
+		Type type = TYPES[ordinal];
+		long time = buffer.getLong();
+		switch (type) {
+		case DEVICE_BOUND:
+			return new JournalRecord(type, time, getString(buffer), getKind(buffer), null, getString(buffer));
+		case DEVICE_UNBOUND:
+			return new JournalRecord(type, time, getString(buffer), getKind(buffer), null, null);
+		case DEVICE_PROPERTY:
+			return new JournalRecord(type, time, getString(buffer), getKind(buffer), getString(buffer),
+					getValue(buffer));
+		case PERSON_ADDED:
+		case PERSON_MOVED:
+		case PERSON_REMOVED:
+			return new JournalRecord(type, time, getString(buffer), null, getString(buffer), null);
+		case SETTINGS:
+			int maximumNumberOfLightsToTurnOn = buffer.getInt();
+			double maximumAllowedEnergyInRoom = buffer.getDouble();
+			double targetedIlluminance = buffer.getDouble();
+			double houseEnergyBudget = buffer.getDouble();
+			FollowMeSettings settings = new FollowMeSettings(maximumNumberOfLightsToTurnOn,
+					maximumAllowedEnergyInRoom, targetedIlluminance).withHouseEnergyBudget(houseEnergyBudget)
+					.withVersion(buffer.getLong());
+			return new JournalRecord(type, time, null, null, null, settings);
+		case COMMAND:
+			return new JournalRecord(type, time, getString(buffer), getKind(buffer), null,
+					Double.valueOf(buffer.getDouble()));
+		default:
+			throw new IOException("unknown record type " + type);
+		}
+	}
+
+	private static String getString(MappedByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IOException("invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, EventJournal.UTF_8);
+	}
+
+	private static DeviceKind getKind(MappedByteBuffer buffer) {
+		int ordinal = buffer.get();
+		return ordinal < 0 || ordinal >= KINDS.length ? null : KINDS[ordinal];
+	}
+
+	private static Object getValue(MappedByteBuffer buffer) throws IOException {
+		byte tag = buffer.get();
+		switch (tag) {
+		case EventJournal.VALUE_NULL:
+			return null;
+		case EventJournal.VALUE_FALSE:
+			return Boolean.FALSE;
+		case EventJournal.VALUE_TRUE:
+			return Boolean.TRUE;
+		case EventJournal.VALUE_NUMBER:
+			return Double.valueOf(buffer.getDouble());
+		case EventJournal.VALUE_STRING:
+			return getString(buffer);
+		default:
+			throw new IOException("unknown value tag " + tag);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.example.follow.me;
+
+import org.example.follow.me.configuration.FollowMeSettings;
+
+/**
+ * A record of the event journal: an event seen by the component or a command
+ * it has sent to a light.
+ */
+public final class JournalRecord {
+
+	/** The kinds of record */
+	public enum Type {
+		/** A device has been bound; the value is its location */
+		DEVICE_BOUND,
+		/** A device has been unbound */
+		DEVICE_UNBOUND,
+		/** A property of a device has changed; the value is the new one */
+		DEVICE_PROPERTY,
+		/** A person has appeared; the name is its location */
+		PERSON_ADDED,
+		/** A person has moved; the name is its new location */
+		PERSON_MOVED,
+		/** A person has disappeared */
+		PERSON_REMOVED,
+		/** The settings have changed; the value is the new FollowMeSettings */
+		SETTINGS,
+		/** A light has been commanded; the value is its new level, 0 or 1 for a binary light */
+		COMMAND
+	}
+
+	/** The kinds of device */
+	public enum DeviceKind {
+		PRESENCE_SENSOR, BINARY_LIGHT, DIMMER_LIGHT
+	}
+
+	private final Type type;
+	private final long time;
+	private final String subject;
+	private final DeviceKind kind;
+	private final String name;
+	private final Object value;
+
+	JournalRecord(Type type, long time, String subject, DeviceKind kind, String name, Object value) {
+		this.type = type;
+		this.time = time;
+		this.subject = subject;
+		this.kind = kind;
+		this.name = name;
+		this.value = value;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the time of the event in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the serial number of the device or the name of the person, null
+	 *         for the settings
+	 */
+	public String getSubject() {
+		return subject;
+	}
+
+	/**
+	 * @return the kind of the device, null for the other records
+	 */
+	public DeviceKind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the name of the property of a device or the location of a
+	 *         person, null for the other records
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return a Boolean, a Double, a String, a FollowMeSettings or null
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	public FollowMeSettings getSettings() {
+		return (FollowMeSettings) value;
+	}
+
+	@Override
+	public String toString() {
+		return time + " " + type + (subject == null ? "" : " " + subject) + (kind == null ? "" : " " + kind)
+				+ (name == null ? "" : " " + name) + (value == null ? "" : " = " + value);
+	}
+}
@@ -0,0 +1,104 @@
+package org.example.follow.me;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram counts durations in power of two buckets of nanoseconds.
+ * Recording a value is lock-free and allocation-free, so it can be done on
+ * every event without disturbing what is measured.
+ */
+class LatencyHistogram {
+
+	/** One bucket per power of two of nanoseconds */
+	private static final int NUMBER_OF_BUCKETS = 64;
+
+	/** The bucket i counts the values in [2^i, 2^(i+1)[ */
+	private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a duration.
+	 * 
+	 * @param nanos
+	 *            : the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0L) {
+			nanos = 0L;
+		}
+		buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1L));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long currentMax = max.get();
+		while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long count = this.count.get();
+		return count == 0L ? 0L : sum.get() / count;
+	}
+
+	/**
+	 * Get an upper bound of a percentile of the recorded durations.
+	 * 
+	 * @param percentile
+	 *            : the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile in
+	 *         nanoseconds, 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long count = this.count.get();
+		if (count == 0L) {
+			return 0L;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100.0d);
+		long seen = 0L;
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return i == 63 ? Long.MAX_VALUE : Math.min((1L << (i + 1)) - 1L, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			buckets.set(i, 0L);
+		}
+		count.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+	/**
+	 * Describe this histogram in microseconds.
+	 * 
+	 * @return the count, mean, percentiles and max of the durations
+	 */
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " mean=" + micros(getMean()) + "us p50<=" + micros(getPercentile(50))
+				+ "us p99<=" + micros(getPercentile(99)) + "us max=" + micros(getMax()) + "us";
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.1f", nanos / 1000.0d);
+	}
+}
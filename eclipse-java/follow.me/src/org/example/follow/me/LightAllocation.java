@@ -0,0 +1,166 @@
+package org.example.follow.me;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A LightAllocation tells which binary lights of a room are on and the power
+ * level of each of its dimmer lights, by their index in the zone. It is
+ * computed by the solver for a room layout and a goal, then kept in the table
+ * of the zone until its layout changes.
+ */
+class LightAllocation {
+
+	/** The illuminance shortfall ignored, in lumens */
+	private static final double ILLUMINANCE_TOLERANCE = 1.0d;
+
+	private final boolean[] binaryStates;
+
+	private final double[] dimmerLevels;
+
+	/** The illuminance reached, in lumens */
+	private final double illuminance;
+
+	/** The power consumed, in Watt */
+	private final double power;
+
+	LightAllocation(boolean[] binaryStates, double[] dimmerLevels, double illuminance, double power) {
+		this.binaryStates = binaryStates;
+		this.dimmerLevels = dimmerLevels;
+		this.illuminance = illuminance;
+		this.power = power;
+	}
+
+	public boolean isBinaryLightOn(int index) {
+		return index < binaryStates.length && binaryStates[index];
+	}
+
+	public double getDimmerLevel(int index) {
+		return index < dimmerLevels.length ? dimmerLevels[index] : 0.0d;
+	}
+
+	public double getIlluminance() {
+		return illuminance;
+	}
+
+	public double getPower() {
+		return power;
+	}
+
+	/**
+	 * Compute the allocation reaching a targeted illuminance in a room, within
+	 * its energy cap and the maximum number of lights. The binary lights which
+	 * do not exceed the target are switched on first, from the most powerful;
+	 * the dimmer lights then fill the rest of the target. If the target is
+	 * still not reached, the least powerful binary light left is switched on.
+	 * 
+	 * @param binaryPowers
+	 *            : the maximum power of each binary light of the room in Watt
+	 * @param dimmerPowers
+	 *            : the maximum power of each dimmer light of the room in Watt
+	 * @param targetedIlluminance
+	 *            : the targeted illuminance in lumens
+	 * @param maximumEnergy
+	 *            : the maximum energy allowed in the room in Watt
+	 * @param maximumNumberOfLights
+	 *            : the maximum number of lights to turn on
+	 * @return the allocation
+	 */
+	static LightAllocation solve(double[] binaryPowers, double[] dimmerPowers, double targetedIlluminance,
+			double maximumEnergy, int maximumNumberOfLights) {
+		boolean[] binaryStates = new boolean[binaryPowers.length];
+		double[] dimmerLevels = new double[dimmerPowers.length];
+		double remainingIlluminance = targetedIlluminance;
+		double remainingEnergy = maximumEnergy;
+		int remainingLights = maximumNumberOfLights;
+
+		// the binary lights fitting in the target, the most powerful first
+		Integer[] binaryOrder = byDecreasingPower(binaryPowers);
+		for (int i : binaryOrder) {
+			double illuminance = binaryPowers[i] * FollowMeImpl.ONE_WATT_TO_ONE_LUMEN;
+			if (remainingLights > 0 && illuminance <= remainingIlluminance && binaryPowers[i] <= remainingEnergy) {
+				binaryStates[i] = true;
+				remainingIlluminance -= illuminance;
+				remainingEnergy -= binaryPowers[i];
+				remainingLights--;
+			}
+		}
+
+		// the dimmer lights fill the rest
+		for (int i : byDecreasingPower(dimmerPowers)) {
+			if (remainingLights <= 0 || remainingIlluminance <= ILLUMINANCE_TOLERANCE || remainingEnergy <= 0.0d
+					|| dimmerPowers[i] <= 0.0d) {
+				break;
+			}
+			double level = Math.min(1.0d, Math.min(
+					remainingIlluminance / (dimmerPowers[i] * FollowMeImpl.ONE_WATT_TO_ONE_LUMEN),
+					remainingEnergy / dimmerPowers[i]));
+			dimmerLevels[i] = level;
+			remainingIlluminance -= level * dimmerPowers[i] * FollowMeImpl.ONE_WATT_TO_ONE_LUMEN;
+			remainingEnergy -= level * dimmerPowers[i];
+			remainingLights--;
+		}
+
+		// still too dark: the least powerful binary light left, if affordable
+		if (remainingIlluminance > ILLUMINANCE_TOLERANCE && remainingLights > 0) {
+			for (int k = binaryOrder.length - 1; k >= 0; k--) {
+				int i = binaryOrder[k];
+				if (!binaryStates[i] && binaryPowers[i] <= remainingEnergy) {
+					binaryStates[i] = true;
+					remainingIlluminance -= binaryPowers[i] * FollowMeImpl.ONE_WATT_TO_ONE_LUMEN;
+					remainingEnergy -= binaryPowers[i];
+					break;
+				}
+			}
+		}
+		return new LightAllocation(binaryStates, dimmerLevels, targetedIlluminance - remainingIlluminance,
+				maximumEnergy - remainingEnergy);
+	}
+
+	private static Integer[] byDecreasingPower(final double[] powers) {
+		Integer[] order = new Integer[powers.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer first, Integer second) {
+				return Double.compare(powers[second], powers[first]);
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * The key of an allocation in the table of a zone: the goal it has been
+	 * computed for. The layout is implied, the table being cleared whenever the
+	 * layout of the zone changes.
+	 */
+	static final class Key {
+		private final double targetedIlluminance;
+		private final double maximumEnergy;
+		private final int maximumNumberOfLights;
+
+		Key(double targetedIlluminance, double maximumEnergy, int maximumNumberOfLights) {
+			this.targetedIlluminance = targetedIlluminance;
+			this.maximumEnergy = maximumEnergy;
+			this.maximumNumberOfLights = maximumNumberOfLights;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return key.targetedIlluminance == targetedIlluminance && key.maximumEnergy == maximumEnergy
+					&& key.maximumNumberOfLights == maximumNumberOfLights;
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(targetedIlluminance) * 31 + Double.doubleToLongBits(maximumEnergy);
+			return (int) (bits ^ (bits >>> 32)) * 31 + maximumNumberOfLights;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package org.example.follow.me;
+
+import java.util.List;
+
+import org.example.follow.me.JournalRecord.DeviceKind;
+
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+
+/**
+ * A LightingPlan is the desired state of the lights of a room. It is computed
+ * from the last known state of the lights without touching any device, then
+ * applied by sending only the commands for the lights whose state differs.
+ */
+class LightingPlan {
+
+	private final List<BinaryLight> binaryLights;
+	private final List<DimmerLight> dimmerLights;
+
+	/** The last known states of the lights, updated by the commands sent */
+	private final List<DeviceState> binaryLightStates;
+	private final List<DeviceState> dimmerLightStates;
+
+	/** The current and desired states of the binary lights */
+	private final boolean[] currentBinaryStates;
+	private final boolean[] desiredBinaryStates;
+
+	/** The current and desired power levels of the dimmer lights */
+	private final double[] currentDimmerLevels;
+	private final double[] desiredDimmerLevels;
+
+	/**
+	 * Take the current state of the lights of a room.
+	 * 
+	 * @param zone
+	 *            : the room
+	 */
+	LightingPlan(Zone zone) {
+		binaryLights = zone.getBinaryLights();
+		dimmerLights = zone.getDimmerLights();
+		binaryLightStates = zone.getBinaryLightStates();
+		dimmerLightStates = zone.getDimmerLightStates();
+		currentBinaryStates = new boolean[binaryLights.size()];
+		desiredBinaryStates = new boolean[binaryLights.size()];
+		currentDimmerLevels = new double[dimmerLights.size()];
+		desiredDimmerLevels = new double[dimmerLights.size()];
+		for (int i = 0; i < currentBinaryStates.length; i++) {
+			currentBinaryStates[i] = binaryLightStates.get(i).getPowerStatus();
+		}
+		for (int i = 0; i < currentDimmerLevels.length; i++) {
+			currentDimmerLevels[i] = dimmerLightStates.get(i).getPowerLevel();
+		}
+	}
+
+	/**
+	 * Compute the desired state of the room from the allocation solved for its
+	 * goal. Every light is turned off when nobody is in the room.
+	 * 
+	 * @param presence
+	 *            : whether someone is in the room
+	 * @param allocation
+	 *            : the allocation of the lights of the room, may be null
+	 *            without presence
+	 * @return this plan
+	 */
+	public LightingPlan compute(boolean presence, LightAllocation allocation) {
+		for (int i = 0; i < desiredBinaryStates.length; i++) {
+			desiredBinaryStates[i] = presence && allocation.isBinaryLightOn(i);
+		}
+		for (int i = 0; i < desiredDimmerLevels.length; i++) {
+			desiredDimmerLevels[i] = presence ? allocation.getDimmerLevel(i) : 0.0d;
+		}
+		return this;
+	}
+
+	/**
+	 * Send the commands needed to reach the desired state. The known state of
+	 * a light is updated only once its command is done.
+	 * 
+	 * @param actuator
+	 *            : the actuator sending the commands
+	 * @param deviceCalls
+	 *            : the histogram of the duration of each command, null to
+	 *            not measure them
+	 * @param journal
+	 *            : the journal the commands are recorded to, null not to
+	 *            record them
+	 * @return the number of commands done
+	 */
+	public int apply(Actuator actuator, LatencyHistogram deviceCalls, EventJournal journal) {
+		Command[] commands = new Command[desiredBinaryStates.length + desiredDimmerLevels.length];
+		int count = 0;
+		for (int i = 0; i < desiredBinaryStates.length; i++) {
+			if (desiredBinaryStates[i] != currentBinaryStates[i]) {
+				commands[count++] = new Command(i, -1);
+			}
+		}
+		for (int i = 0; i < desiredDimmerLevels.length; i++) {
+			// a level rounded by the device is not sent again
+			if (!DeviceState.isSameLevel(currentDimmerLevels[i], desiredDimmerLevels[i])) {
+				commands[count++] = new Command(-1, i);
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long[] durations = new long[count];
+		int done = actuator.send(commands, count, durations);
+		for (int i = 0; i < count; i++) {
+			if (durations[i] >= 0L) {
+				commands[i].done(deviceCalls, journal, durations[i]);
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * The command of a light whose state differs, by its index in the binary
+	 * lights or in the dimmer lights
+	 */
+	private final class Command implements Runnable {
+
+		private final int binaryLight;
+		private final int dimmerLight;
+
+		Command(int binaryLight, int dimmerLight) {
+			this.binaryLight = binaryLight;
+			this.dimmerLight = dimmerLight;
+		}
+
+		@Override
+		public void run() {
+			if (binaryLight < 0) {
+				dimmerLights.get(dimmerLight).setPowerLevel(desiredDimmerLevels[dimmerLight]);
+			} else if (desiredBinaryStates[binaryLight]) {
+				binaryLights.get(binaryLight).turnOn();
+			} else {
+				binaryLights.get(binaryLight).turnOff();
+			}
+		}
+
+		/**
+		 * Take the command as done, on the thread of the plan.
+		 */
+		void done(LatencyHistogram deviceCalls, EventJournal journal, long duration) {
+			if (deviceCalls != null) {
+				deviceCalls.record(duration);
+			}
+			if (binaryLight < 0) {
+				dimmerLightStates.get(dimmerLight).setPowerLevel(desiredDimmerLevels[dimmerLight]);
+				if (journal != null) {
+					journal.command(dimmerLights.get(dimmerLight).getSerialNumber(), DeviceKind.DIMMER_LIGHT,
+							desiredDimmerLevels[dimmerLight]);
+				}
+			} else {
+				binaryLightStates.get(binaryLight).setPowerStatus(desiredBinaryStates[binaryLight]);
+				if (journal != null) {
+					journal.command(binaryLights.get(binaryLight).getSerialNumber(), DeviceKind.BINARY_LIGHT,
+							desiredBinaryStates[binaryLight] ? 1.0d : 0.0d);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return binaryLight < 0 ? "setPowerLevel(" + desiredDimmerLevels[dimmerLight] + ") of "
+					+ dimmerLights.get(dimmerLight).getSerialNumber() : (desiredBinaryStates[binaryLight] ? "turnOn"
+					: "turnOff") + " of " + binaryLights.get(binaryLight).getSerialNumber();
+		}
+	}
+
+	public boolean[] getDesiredBinaryStates() {
+		return desiredBinaryStates;
+	}
+
+	public double[] getDesiredDimmerLevels() {
+		return desiredDimmerLevels;
+	}
+
+	public int getNumberOfBinaryLightsOn() {
+		return count(desiredBinaryStates);
+	}
+
+	public int getNumberOfDimmerLightsOn() {
+		int count = 0;
+		for (double level : desiredDimmerLevels) {
+			if (level > 0.0d) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int count(boolean[] states) {
+		int count = 0;
+		for (boolean state : states) {
+			if (state) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,85 @@
+package org.example.follow.me;
+
+import java.util.List;
+
+/**
+ * The PresenceBitSet fuses the presence sensed by all the sensors of a zone.
+ * It holds one bit per sensor and the number of bits set, so the change of a
+ * sensor is a bit flip and the fused presence an O(1) check: the zone is
+ * occupied when a quorum of its sensors sense someone, one sensor by default.
+ * The bits are rebuilt only when the sensors of the zone change.
+ */
+class PresenceBitSet {
+
+	/** The states of the sensors, by bit index */
+	private DeviceState[] sensors = new DeviceState[0];
+
+	private long[] words = new long[0];
+
+	/** The number of sensors */
+	private volatile int size;
+
+	/** The number of bits set */
+	private volatile int cardinality;
+
+	/**
+	 * Rebuild the bits from the states of the sensors of the zone.
+	 *
+	 * @param states
+	 *            : the states of the sensors, in the order of the bits
+	 */
+	synchronized void reset(List<DeviceState> states) {
+		sensors = states.toArray(new DeviceState[states.size()]);
+		words = new long[(sensors.length + 63) >>> 6];
+		int count = 0;
+		for (int i = 0; i < sensors.length; i++) {
+			sensors[i].setPresenceSlot(i);
+			if (sensors[i].getSensedPresence()) {
+				words[i >>> 6] |= 1L << i;
+				count++;
+			}
+		}
+		cardinality = count;
+		size = sensors.length;
+	}
+
+	/**
+	 * Take the new sensed presence of a sensor.
+	 *
+	 * @param state
+	 *            : the state of the sensor
+	 * @param quorum
+	 *            : the number of sensors needed for a presence
+	 * @return true if the fused presence has changed
+	 */
+	synchronized boolean update(DeviceState state, int quorum) {
+		int slot = state.getPresenceSlot();
+		// the sensor may have left the zone meanwhile
+		if (slot < 0 || slot >= sensors.length || sensors[slot] != state) {
+			return false;
+		}
+		long mask = 1L << slot;
+		boolean bit = (words[slot >>> 6] & mask) != 0L;
+		boolean sensedPresence = state.getSensedPresence();
+		if (bit == sensedPresence) {
+			return false;
+		}
+		boolean before = isPresent(quorum);
+		words[slot >>> 6] ^= mask;
+		cardinality += sensedPresence ? 1 : -1;
+		return isPresent(quorum) != before;
+	}
+
+	/**
+	 * Tell whether the zone is occupied. With fewer sensors than the quorum,
+	 * all of them must sense someone.
+	 *
+	 * @param quorum
+	 *            : the number of sensors needed for a presence
+	 * @return true if enough sensors sense someone
+	 */
+	boolean isPresent(int quorum) {
+		int size = this.size;
+		return size > 0 && cardinality >= Math.min(Math.max(1, quorum), size);
+	}
+}
@@ -0,0 +1,175 @@
+package org.example.follow.me;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The PresenceFilter turns the presence sensed in a room into the presence
+ * the room is lit for. A presence must last the debounce time before the room
+ * is seen occupied, so the short pulses of a noisy sensor are ignored, and the
+ * room stays occupied for the hold-off time after the presence drops. Only the
+ * changes of the filtered presence are reported. The times are set for the
+ * whole house and may be set again for a room; both are 0 by default, so every
+ * change is reported at once.
+ */
+class PresenceFilter {
+
+	/**
+	 * Receives the rooms whose filtered presence has changed
+	 */
+	interface Listener {
+		void presenceChanged(Zone zone);
+	}
+
+	/**
+	 * The filtered presence of a room and its running timer, guarded by
+	 * itself
+	 */
+	static final class State {
+
+		private volatile boolean presence;
+
+		private TimerWheel.Timeout timeout;
+
+		/** Incremented at each change, so a timer expiring late is ignored */
+		private long generation;
+
+		/**
+		 * @return the presence the room is lit for
+		 */
+		public boolean getPresence() {
+			return presence;
+		}
+
+		/**
+		 * Forget the running timer and take the sensed presence as it is,
+		 * after the sensors of the room have changed.
+		 *
+		 * @param sensedPresence
+		 *            : the presence sensed in the room
+		 */
+		synchronized void reset(boolean sensedPresence) {
+			generation++;
+			if (timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+			presence = sensedPresence;
+		}
+	}
+
+	private final TimerWheel timerWheel;
+
+	private final Listener listener;
+
+	/** The times of the whole house, in milliseconds */
+	private volatile long debounce;
+	private volatile long holdOff;
+
+	/** The times set for a room, by location: {debounce, hold-off} */
+	private final ConcurrentMap<String, long[]> zoneTimes = new ConcurrentHashMap<String, long[]>();
+
+	PresenceFilter(TimerWheel timerWheel, Listener listener) {
+		this.timerWheel = timerWheel;
+		this.listener = listener;
+	}
+
+	/**
+	 * @param debounce
+	 *            : the time a presence must last in the whole house, in
+	 *            milliseconds
+	 */
+	public void setDebounce(long debounce) {
+		this.debounce = Math.max(0L, debounce);
+	}
+
+	/**
+	 * @param holdOff
+	 *            : the time the rooms of the whole house stay occupied after
+	 *            the presence drops, in milliseconds
+	 */
+	public void setHoldOff(long holdOff) {
+		this.holdOff = Math.max(0L, holdOff);
+	}
+
+	/**
+	 * Set the times of a room.
+	 *
+	 * @param location
+	 *            : the room
+	 * @param debounce
+	 *            : the time a presence must last, in milliseconds, negative
+	 *            to use the one of the house
+	 * @param holdOff
+	 *            : the time a room stays occupied after the presence drops,
+	 *            negative to use the one of the house
+	 */
+	public void setTimes(String location, long debounce, long holdOff) {
+		if (debounce < 0L && holdOff < 0L) {
+			zoneTimes.remove(location);
+		} else {
+			zoneTimes.put(location, new long[] { debounce, holdOff });
+		}
+	}
+
+	long getDebounce(String location) {
+		long[] times = zoneTimes.get(location);
+		return times == null || times[0] < 0L ? debounce : times[0];
+	}
+
+	long getHoldOff(String location) {
+		long[] times = zoneTimes.get(location);
+		return times == null || times[1] < 0L ? holdOff : times[1];
+	}
+
+	/**
+	 * Take a change of the presence sensed in a room. The change is reported
+	 * at once, later if it lasts, or not at all if it is undone in time.
+	 *
+	 * @param zone
+	 *            : the room
+	 */
+	public void sensed(final Zone zone) {
+		final PresenceFilter.State state = zone.getPresenceState();
+		boolean changed = false;
+		synchronized (state) {
+			final long generation = ++state.generation;
+			if (state.timeout != null) {
+				state.timeout.cancel();
+				state.timeout = null;
+			}
+			boolean sensedPresence = zone.getSensedPresence();
+			if (sensedPresence == state.presence) {
+				// a pulse shorter than the debounce or the hold-off
+				return;
+			}
+			long delay = sensedPresence ? getDebounce(zone.getLocation()) : getHoldOff(zone.getLocation());
+			if (delay == 0L) {
+				state.presence = sensedPresence;
+				changed = true;
+			} else {
+				state.timeout = timerWheel.schedule(new Runnable() {
+					@Override
+					public void run() {
+						expire(zone, generation);
+					}
+				}, delay);
+			}
+		}
+		if (changed) {
+			listener.presenceChanged(zone);
+		}
+	}
+
+	private void expire(Zone zone, long generation) {
+		PresenceFilter.State state = zone.getPresenceState();
+		synchronized (state) {
+			if (state.generation != generation) {
+				return;
+			}
+			state.timeout = null;
+			state.presence = zone.getSensedPresence();
+		}
+		listener.presenceChanged(zone);
+	}
+}
@@ -0,0 +1,134 @@
+package org.example.follow.me;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.example.follow.me.configuration.ReconciliationSummary;
+
+/**
+ * The Reconciler re-evaluates a whole set of rooms at once. The rooms are
+ * split across a fork/join pool of bounded parallelism, shared by the houses
+ * of the same parallelism, and each room is evaluated under its own lock,
+ * independently of the others. Without a running pool, the rooms are
+ * evaluated by the calling thread.
+ */
+class Reconciler {
+
+	/** The number of rooms below which a task is not split any more */
+	private static final int ROOMS_PER_TASK = 8;
+
+	/** The engine giving the shared pools */
+	private final FollowMeEngine engine;
+
+	/** The evaluation of a room */
+	private final ZoneScheduler.ZoneEvaluator evaluator;
+
+	/** The logger reporting the failed evaluations */
+	private final FollowMeLogger logger;
+
+	/** The maximum number of threads evaluating rooms at the same time */
+	private volatile int parallelism;
+
+	private volatile ForkJoinPool pool;
+
+	Reconciler(FollowMeEngine engine, ZoneScheduler.ZoneEvaluator evaluator, FollowMeLogger logger,
+			int parallelism) {
+		this.engine = engine;
+		this.evaluator = evaluator;
+		this.logger = logger;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Set the parallelism used from the next start.
+	 * 
+	 * @param parallelism
+	 *            : the maximum number of threads, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Take the shared pool of the parallelism; the engine must be started.
+	 */
+	public synchronized void start() {
+		if (pool == null) {
+			pool = engine.getPool(parallelism);
+		}
+	}
+
+	/**
+	 * Leave the shared pool, which is shut down with the engine.
+	 */
+	public synchronized void stop() {
+		pool = null;
+	}
+
+	/**
+	 * Evaluate every given room and wait for the end of the evaluations.
+	 * 
+	 * @param zones
+	 *            : the rooms to evaluate
+	 * @return the summary of the reconciliation
+	 */
+	public ReconciliationSummary reconcile(Collection<Zone> zones) {
+		long begin = System.nanoTime();
+		Zone[] rooms = zones.toArray(new Zone[zones.size()]);
+		ReconcileTask task = new ReconcileTask(rooms, 0, rooms.length);
+		ForkJoinPool pool = this.pool;
+		long[] result = pool == null ? task.compute() : pool.invoke(task);
+		return new ReconciliationSummary(rooms.length, (int) result[0], result[1], System.nanoTime() - begin);
+	}
+
+	/**
+	 * Evaluate a range of rooms, returning the number of rooms changed and the
+	 * number of commands sent.
+	 */
+	private final class ReconcileTask extends RecursiveTask<long[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Zone[] rooms;
+		private final int from;
+		private final int to;
+
+		ReconcileTask(Zone[] rooms, int from, int to) {
+			this.rooms = rooms;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (to - from <= ROOMS_PER_TASK) {
+				long[] result = new long[2];
+				for (int i = from; i < to; i++) {
+					int commands;
+					try {
+						commands = evaluator.evaluate(rooms[i], 0L);
+					} catch (RuntimeException e) {
+						if (logger.isErrorEnabled()) {
+							logger.error("The evaluation of the room " + rooms[i].getLocation() + " failed", e);
+						}
+						continue;
+					}
+					if (commands > 0) {
+						result[0]++;
+						result[1] += commands;
+					}
+				}
+				return result;
+			}
+			int middle = (from + to) >>> 1;
+			ReconcileTask left = new ReconcileTask(rooms, from, middle);
+			left.fork();
+			long[] result = new ReconcileTask(rooms, middle, to).compute();
+			long[] leftResult = left.join();
+			result[0] += leftResult[0];
+			result[1] += leftResult[1];
+			return result;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package org.example.follow.me;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.example.follow.me.configuration.FollowMeSettings;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+
+/**
+ * The StateSnapshot is what the component knows of the house when it stops:
+ * the settings, the cached preferences, the occupancy and the state commanded
+ * in each room. It is saved to a compact binary file through a memory mapping
+ * and loaded by the next start, which then only verifies it lazily against the
+ * live devices instead of evaluating every room again.
+ *
+ * The file is a header (magic number and format version) followed by the
+ * settings, the preferences (user, ordinal or -1), the occupancy (person,
+ * location) and the rooms (location, presence, then the serial number and
+ * state of each binary light and of each dimmer light). Strings are stored as
+ * their UTF-8 length followed by their bytes.
+ */
+class StateSnapshot {
+
+	/** The first bytes of a snapshot file: "FMSS" */
+	private static final int MAGIC = 0x464d5353;
+
+	/** The version of the format, changed with any incompatible change */
+	private static final int FORMAT_VERSION = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The state commanded in one room */
+	static class ZoneState {
+		private final String location;
+		private final boolean presence;
+		private final String[] binarySerialNumbers;
+		private final boolean[] binaryStates;
+		private final String[] dimmerSerialNumbers;
+		private final double[] dimmerLevels;
+
+		ZoneState(String location, boolean presence, String[] binarySerialNumbers, boolean[] binaryStates,
+				String[] dimmerSerialNumbers, double[] dimmerLevels) {
+			this.location = location;
+			this.presence = presence;
+			this.binarySerialNumbers = binarySerialNumbers;
+			this.binaryStates = binaryStates;
+			this.dimmerSerialNumbers = dimmerSerialNumbers;
+			this.dimmerLevels = dimmerLevels;
+		}
+
+		/**
+		 * Capture the state commanded by the last evaluation of a zone, the
+		 * lock of the zone being held by the caller.
+		 *
+		 * @param zone
+		 *            : the given zone
+		 * @return its state, or null if it has not been evaluated since its
+		 *         layout changed
+		 */
+		static ZoneState of(Zone zone) {
+			boolean[] binaryStates = zone.getExpectedBinaryStates();
+			double[] dimmerLevels = zone.getExpectedDimmerLevels();
+			if (binaryStates == null || dimmerLevels == null) {
+				return null;
+			}
+			return new ZoneState(zone.getLocation(), zone.getExpectedPresence(),
+					serialNumbers(zone.getBinaryLights()), binaryStates.clone(),
+					serialNumbers(zone.getDimmerLights()), dimmerLevels.clone());
+		}
+
+		/**
+		 * Restore this state into a zone if it still holds the same lights in
+		 * the same order, the lock of the zone being held by the caller.
+		 *
+		 * @param zone
+		 *            : the live zone of the same location
+		 * @return true if the state has been restored
+		 */
+		boolean restoreInto(Zone zone) {
+			// a presence changed meanwhile needs an evaluation
+			if (presence != zone.getPresenceState().getPresence()
+					|| !hasSerialNumbers(zone.getBinaryLights(), binarySerialNumbers)
+					|| !hasSerialNumbers(zone.getDimmerLights(), dimmerSerialNumbers)) {
+				return false;
+			}
+			zone.setExpectedState(presence, binaryStates.clone(), dimmerLevels.clone());
+			return true;
+		}
+
+		String getLocation() {
+			return location;
+		}
+
+		private int size() {
+			int size = sizeOf(location) + 1 + 4 + 4;
+			for (String serialNumber : binarySerialNumbers) {
+				size += sizeOf(serialNumber) + 1;
+			}
+			for (String serialNumber : dimmerSerialNumbers) {
+				size += sizeOf(serialNumber) + 8;
+			}
+			return size;
+		}
+
+		private void writeTo(MappedByteBuffer buffer) {
+			putString(buffer, location);
+			buffer.put((byte) (presence ? 1 : 0));
+			buffer.putInt(binarySerialNumbers.length);
+			for (int i = 0; i < binarySerialNumbers.length; i++) {
+				putString(buffer, binarySerialNumbers[i]);
+				buffer.put((byte) (binaryStates[i] ? 1 : 0));
+			}
+			buffer.putInt(dimmerSerialNumbers.length);
+			for (int i = 0; i < dimmerSerialNumbers.length; i++) {
+				putString(buffer, dimmerSerialNumbers[i]);
+				buffer.putDouble(dimmerLevels[i]);
+			}
+		}
+
+		private static ZoneState readFrom(MappedByteBuffer buffer) throws IOException {
+			String location = getString(buffer);
+			boolean presence = buffer.get() != 0;
+			int numberOfBinaryLights = getCount(buffer);
+			String[] binarySerialNumbers = new String[numberOfBinaryLights];
+			boolean[] binaryStates = new boolean[numberOfBinaryLights];
+			for (int i = 0; i < numberOfBinaryLights; i++) {
+				binarySerialNumbers[i] = getString(buffer);
+				binaryStates[i] = buffer.get() != 0;
+			}
+			int numberOfDimmerLights = getCount(buffer);
+			String[] dimmerSerialNumbers = new String[numberOfDimmerLights];
+			double[] dimmerLevels = new double[numberOfDimmerLights];
+			for (int i = 0; i < numberOfDimmerLights; i++) {
+				dimmerSerialNumbers[i] = getString(buffer);
+				dimmerLevels[i] = buffer.getDouble();
+			}
+			return new ZoneState(location, presence, binarySerialNumbers, binaryStates, dimmerSerialNumbers,
+					dimmerLevels);
+		}
+	}
+
+	private final FollowMeSettings settings;
+
+	private final Map<String, IlluminancePreference> preferences;
+
+	private final Map<String, String> personLocations;
+
+	private final List<ZoneState> zones;
+
+	StateSnapshot(FollowMeSettings settings, Map<String, IlluminancePreference> preferences,
+			Map<String, String> personLocations, List<ZoneState> zones) {
+		this.settings = settings;
+		this.preferences = preferences;
+		this.personLocations = personLocations;
+		this.zones = zones;
+	}
+
+	FollowMeSettings getSettings() {
+		return settings;
+	}
+
+	Map<String, IlluminancePreference> getPreferences() {
+		return Collections.unmodifiableMap(preferences);
+	}
+
+	Map<String, String> getPersonLocations() {
+		return Collections.unmodifiableMap(personLocations);
+	}
+
+	List<ZoneState> getZones() {
+		return Collections.unmodifiableList(zones);
+	}
+
+	/**
+	 * Save this snapshot. It is written to a temporary file first, then
+	 * renamed, so a crash while saving leaves the previous snapshot.
+	 *
+	 * @param file
+	 *            : the file to write
+	 */
+	void write(File file) throws IOException {
+		int size = 4 + 4 + 4 + 8 + 8 + 8 + 8;
+		size += 4;
+		for (Map.Entry<String, IlluminancePreference> preference : preferences.entrySet()) {
+			size += sizeOf(preference.getKey()) + 1;
+		}
+		size += 4;
+		for (Map.Entry<String, String> personLocation : personLocations.entrySet()) {
+			size += sizeOf(personLocation.getKey()) + sizeOf(personLocation.getValue());
+		}
+		size += 4;
+		for (ZoneState zone : zones) {
+			size += zone.size();
+		}
+
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC);
+			buffer.putInt(FORMAT_VERSION);
+			buffer.putInt(settings.getMaximumNumberOfLightsToTurnOn());
+			buffer.putDouble(settings.getMaximumAllowedEnergyInRoom());
+			buffer.putDouble(settings.getTargetedIlluminance());
+			buffer.putDouble(settings.getHouseEnergyBudget());
+			buffer.putLong(settings.getVersion());
+			buffer.putInt(preferences.size());
+			for (Map.Entry<String, IlluminancePreference> preference : preferences.entrySet()) {
+				putString(buffer, preference.getKey());
+				buffer.put((byte) (preference.getValue() == null ? -1 : preference.getValue().ordinal()));
+			}
+			buffer.putInt(personLocations.size());
+			for (Map.Entry<String, String> personLocation : personLocations.entrySet()) {
+				putString(buffer, personLocation.getKey());
+				putString(buffer, personLocation.getValue());
+			}
+			buffer.putInt(zones.size());
+			for (ZoneState zone : zones) {
+				zone.writeTo(buffer);
+			}
+			buffer.force();
+		} finally {
+			channel.close();
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Load a snapshot.
+	 *
+	 * @param file
+	 *            : the file to read
+	 * @return the snapshot, or null if the file does not exist
+	 * @throws IOException
+	 *             if the file cannot be read or is not a valid snapshot
+	 */
+	static StateSnapshot read(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a snapshot");
+			}
+			int version = buffer.getInt();
+			if (version != FORMAT_VERSION) {
+				throw new IOException(file + " has the unsupported format " + version);
+			}
+			int maximumNumberOfLightsToTurnOn = buffer.getInt();
+			double maximumAllowedEnergyInRoom = buffer.getDouble();
+			double targetedIlluminance = buffer.getDouble();
+			double houseEnergyBudget = buffer.getDouble();
+			FollowMeSettings settings = new FollowMeSettings(maximumNumberOfLightsToTurnOn,
+					maximumAllowedEnergyInRoom, targetedIlluminance).withHouseEnergyBudget(houseEnergyBudget)
+					.withVersion(buffer.getLong());
+
+			IlluminancePreference[] values = IlluminancePreference.values();
+			int numberOfPreferences = getCount(buffer);
+			Map<String, IlluminancePreference> preferences = new HashMap<String, IlluminancePreference>();
+			for (int i = 0; i < numberOfPreferences; i++) {
+				String user = getString(buffer);
+				int ordinal = buffer.get();
+				if (ordinal >= values.length) {
+					throw new IOException(file + " has the unknown preference " + ordinal);
+				}
+				preferences.put(user, ordinal < 0 ? null : values[ordinal]);
+			}
+
+			int numberOfPersons = getCount(buffer);
+			Map<String, String> personLocations = new HashMap<String, String>();
+			for (int i = 0; i < numberOfPersons; i++) {
+				personLocations.put(getString(buffer), getString(buffer));
+			}
+
+			int numberOfZones = getCount(buffer);
+			List<ZoneState> zones = new ArrayList<ZoneState>(numberOfZones);
+			for (int i = 0; i < numberOfZones; i++) {
+				zones.add(ZoneState.readFrom(buffer));
+			}
+			return new StateSnapshot(settings, preferences, personLocations, zones);
+		} catch (BufferUnderflowException e) {
+			throw new IOException(file + " is truncated", e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + " is not a valid snapshot", e);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static String[] serialNumbers(List<? extends GenericDevice> devices) {
+		String[] serialNumbers = new String[devices.size()];
+		for (int i = 0; i < serialNumbers.length; i++) {
+			serialNumbers[i] = devices.get(i).getSerialNumber();
+		}
+		return serialNumbers;
+	}
+
+	private static boolean hasSerialNumbers(List<? extends GenericDevice> devices, String[] serialNumbers) {
+		if (devices.size() != serialNumbers.length) {
+			return false;
+		}
+		for (int i = 0; i < serialNumbers.length; i++) {
+			if (!devices.get(i).getSerialNumber().equals(serialNumbers[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int sizeOf(String string) {
+		return 4 + string.getBytes(UTF_8).length;
+	}
+
+	private static void putString(MappedByteBuffer buffer, String string) {
+		byte[] bytes = string.getBytes(UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(MappedByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[getCount(buffer)];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Read a count, checked against the remaining bytes so a corrupted file
+	 * cannot make the reader allocate a huge array.
+	 */
+	private static int getCount(MappedByteBuffer buffer) throws IOException {
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining()) {
+			throw new IOException("invalid count " + count);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,276 @@
+package org.example.follow.me;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The TimerWheel runs many short timers with a single thread. The time is cut
+ * into ticks and the timers are hashed into the buckets of a wheel by the tick
+ * they expire at; the thread expires one bucket per tick. Scheduling and
+ * cancelling a timer only enqueue it, so both cost O(1) whatever the number of
+ * pending timers; the thread moves the new timers into their bucket and
+ * unlinks the cancelled ones at the next tick. A timer runs at most one tick
+ * late.
+ */
+class TimerWheel {
+
+	/**
+	 * A pending timer
+	 */
+	static final class Timeout {
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final TimerWheel wheel;
+
+		private final Runnable task;
+
+		/** The tick this timer expires at */
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		/** The links of the bucket this timer is in, owned by the thread */
+		private Timeout next;
+		private Timeout previous;
+		private Bucket bucket;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel this timer.
+		 *
+		 * @return false if it has already expired or been cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			wheel.cancelledTimeouts.add(this);
+			return true;
+		}
+	}
+
+	/**
+	 * A bucket of the wheel: a doubly linked list of timers
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.previous == null) {
+				head = timeout.next;
+			} else {
+				timeout.previous.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				tail = timeout.previous;
+			} else {
+				timeout.next.previous = timeout.previous;
+			}
+			timeout.next = null;
+			timeout.previous = null;
+			timeout.bucket = null;
+		}
+	}
+
+	/** The maximum number of new timers moved into the wheel per tick */
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	/** The buckets, a power of two */
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	/** The duration of a tick, in nanoseconds */
+	private final long tickDuration;
+
+	/** The logger reporting the failed timers */
+	private final FollowMeLogger logger;
+
+	/** The timers scheduled and not in the wheel yet */
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	/** The timers cancelled and still in the wheel */
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	/** The time of the tick 0, as given by System.nanoTime() */
+	private final long startTime = System.nanoTime();
+
+	/** The number of pending timers */
+	private final AtomicInteger pendingTimeouts = new AtomicInteger();
+
+	/** The last tick run by the thread, kept across a restart */
+	private long tick;
+
+	private Thread worker;
+
+	/**
+	 * @param tickDuration
+	 *            : the duration of a tick, in milliseconds
+	 * @param numberOfBuckets
+	 *            : the number of buckets, rounded up to a power of two
+	 * @param logger
+	 *            : the logger reporting the failed timers
+	 */
+	TimerWheel(long tickDuration, int numberOfBuckets, FollowMeLogger logger) {
+		int size = Integer.highestOneBit(Math.max(1, numberOfBuckets - 1)) << 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, tickDuration));
+		this.logger = logger;
+	}
+
+	/**
+	 * Run a task after a delay. The task is run by the thread of the wheel,
+	 * so it must be short.
+	 *
+	 * @param task
+	 *            : the task to run
+	 * @param delay
+	 *            : the delay, in milliseconds
+	 * @return the timer, to cancel it
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		long elapsed = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delay));
+		// rounded up, so a timer never runs early
+		Timeout timeout = new Timeout(this, task, (elapsed + tickDuration - 1) / tickDuration);
+		pendingTimeouts.incrementAndGet();
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return the number of timers scheduled and neither expired nor
+	 *         cancelled yet
+	 */
+	public int getPendingTimeouts() {
+		return pendingTimeouts.get();
+	}
+
+	public synchronized void start() {
+		if (worker != null) {
+			return;
+		}
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		}, "follow.me-timer-wheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stop the thread of the wheel. The pending timers run once it is started
+	 * again, if they are due.
+	 */
+	public synchronized void stop() {
+		if (worker == null) {
+			return;
+		}
+		worker.interrupt();
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+	}
+
+	/**
+	 * Run the ticks, catching up with the ones missed while stopped.
+	 */
+	private void turn() {
+		while (!Thread.currentThread().isInterrupted()) {
+			long sleep = startTime + (tick + 1) * tickDuration - System.nanoTime();
+			if (sleep > 0L) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			tick++;
+			removeCancelledTimeouts();
+			transferNewTimeouts();
+			expire(wheel[(int) (tick & mask)]);
+		}
+	}
+
+	/**
+	 * Expire the timers of a bucket due at the current tick; the others are
+	 * due on a later turn of the wheel.
+	 */
+	private void expire(Bucket bucket) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadline <= tick) {
+				bucket.remove(timeout);
+				if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+					pendingTimeouts.decrementAndGet();
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						if (logger.isErrorEnabled()) {
+							logger.error("A timer has failed", e);
+						}
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	private void removeCancelledTimeouts() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			pendingTimeouts.decrementAndGet();
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void transferNewTimeouts() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = newTimeouts.poll();
+			if (timeout == null) {
+				return;
+			}
+			if (timeout.state.get() == Timeout.CANCELLED) {
+				// unlinked from the queue of the cancelled timers later
+				continue;
+			}
+			// a timer already due is run with the current tick
+			long deadline = Math.max(timeout.deadline, tick);
+			wheel[(int) (deadline & mask)].add(timeout);
+		}
+	}
+}
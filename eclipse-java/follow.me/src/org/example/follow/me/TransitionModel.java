@@ -0,0 +1,163 @@
+package org.example.follow.me;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The TransitionModel learns, for each person, where the person goes from
+ * each room and how long the person stays in it. Each room keeps a small
+ * fixed number of destinations with their counts and the most frequent one,
+ * so recording a move and predicting the next room are done in constant time.
+ */
+class TransitionModel {
+
+	/** The number of destinations kept for each room */
+	private static final int DESTINATIONS_PER_ROOM = 8;
+
+	/** The number of moves out of a room needed before predicting */
+	private static final int MIN_OBSERVATIONS = 3;
+
+	/** The weight of the last dwell time in its moving average */
+	private static final double DWELL_SMOOTHING = 0.3d;
+
+	private final ConcurrentMap<String, PersonModel> persons = new ConcurrentHashMap<String, PersonModel>();
+
+	/**
+	 * Record a move of a person and predict the next one.
+	 * 
+	 * @param person
+	 *            : the name of the person
+	 * @param from
+	 *            : the room left, null if unknown
+	 * @param to
+	 *            : the room entered
+	 * @param now
+	 *            : the time of the move in milliseconds
+	 * @return the most likely next room of the person, or null if there is no
+	 *         confident prediction
+	 */
+	public Prediction recordMove(String person, String from, String to, long now) {
+		PersonModel model = persons.get(person);
+		if (model == null) {
+			PersonModel created = new PersonModel();
+			model = persons.putIfAbsent(person, created);
+			if (model == null) {
+				model = created;
+			}
+		}
+		synchronized (model) {
+			if (from != null && from.equals(model.location) && !from.equals(to)) {
+				Transitions transitions = model.getTransitions(from);
+				transitions.increment(to);
+				transitions.recordDwell(now - model.since);
+			}
+			model.location = to;
+			model.since = now;
+			Transitions next = model.rooms.get(to);
+			if (next == null) {
+				return null;
+			}
+			return next.predict();
+		}
+	}
+
+	/**
+	 * Forget a person who has left the house.
+	 * 
+	 * @param person
+	 *            : the name of the person
+	 */
+	public void forget(String person) {
+		persons.remove(person);
+	}
+
+	/**
+	 * A confident prediction of the next room and of the time before moving
+	 * to it.
+	 */
+	static final class Prediction {
+		private final String location;
+		private final long expectedDwell;
+
+		Prediction(String location, long expectedDwell) {
+			this.location = location;
+			this.expectedDwell = expectedDwell;
+		}
+
+		public String getLocation() {
+			return location;
+		}
+
+		public long getExpectedDwell() {
+			return expectedDwell;
+		}
+	}
+
+	private static final class PersonModel {
+		/** The current room of the person and the time it entered it */
+		String location;
+		long since;
+		/** The transitions out of each room */
+		final Map<String, Transitions> rooms = new HashMap<String, Transitions>();
+
+		Transitions getTransitions(String location) {
+			Transitions transitions = rooms.get(location);
+			if (transitions == null) {
+				transitions = new Transitions();
+				rooms.put(location, transitions);
+			}
+			return transitions;
+		}
+	}
+
+	/**
+	 * The moves out of one room: a bounded row of the transition matrix. When
+	 * the row is full, a new destination replaces the least frequent one.
+	 */
+	private static final class Transitions {
+		final String[] destinations = new String[DESTINATIONS_PER_ROOM];
+		final int[] counts = new int[DESTINATIONS_PER_ROOM];
+		int total;
+		/** The index of the most frequent destination, -1 if none */
+		int best = -1;
+		/** The moving average of the time spent in the room, in milliseconds */
+		double dwell = -1.0d;
+
+		void increment(String destination) {
+			int index = -1;
+			int least = 0;
+			for (int i = 0; i < DESTINATIONS_PER_ROOM; i++) {
+				if (destinations[i] == null || destinations[i].equals(destination)) {
+					index = i;
+					break;
+				}
+				if (counts[i] < counts[least]) {
+					least = i;
+				}
+			}
+			if (index < 0) {
+				index = least;
+			}
+			destinations[index] = destination;
+			counts[index]++;
+			total++;
+			if (best < 0 || counts[index] > counts[best]) {
+				best = index;
+			}
+		}
+
+		void recordDwell(long millis) {
+			dwell = dwell < 0.0d ? millis : DWELL_SMOOTHING * millis + (1.0d - DWELL_SMOOTHING) * dwell;
+		}
+
+		Prediction predict() {
+			// a prediction needs enough moves and a majority destination
+			if (best < 0 || total < MIN_OBSERVATIONS || counts[best] * 2 < total) {
+				return null;
+			}
+			return new Prediction(destinations[best], (long) dwell);
+		}
+	}
+}
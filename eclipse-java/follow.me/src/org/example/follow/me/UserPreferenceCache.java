@@ -0,0 +1,181 @@
+package org.example.follow.me;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import fr.liglab.adele.icasa.service.preferences.PreferenceChangeListener;
+import fr.liglab.adele.icasa.service.preferences.Preferences;
+
+/**
+ * The UserPreferenceCache keeps the illuminance preference of each user, so the
+ * evaluation of a room does not call the Preferences service. The first lookup
+ * of a user reads the service and registers a listener on the properties of
+ * this user; the listener then keeps the cached value up to date.
+ */
+class UserPreferenceCache {
+
+	/**
+	 * Notified when the preference of a user has changed
+	 */
+	interface PreferenceObserver {
+		void preferenceChanged(String user);
+	}
+
+	/**
+	 * The cached preferences, by user. An entry holding null means that the
+	 * user has no valid preference.
+	 */
+	private final ConcurrentMap<String, Entry> preferences = new ConcurrentHashMap<String, Entry>();
+
+	/** The listeners registered on the Preferences service, by user */
+	private final ConcurrentMap<String, UserListener> listeners = new ConcurrentHashMap<String, UserListener>();
+
+	private final PreferenceObserver observer;
+
+	UserPreferenceCache(PreferenceObserver observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * Return the illuminance preference of a user.
+	 * 
+	 * @param preferencesService
+	 *            : the service read on a cache miss
+	 * @param user
+	 *            : the name of the user
+	 * @return the preference, or null if the user has none
+	 */
+	public IlluminancePreference get(Preferences preferencesService, String user) {
+		Entry entry = preferences.get(user);
+		if (entry != null) {
+			return entry.preference;
+		}
+		// listen before reading, so a change made meanwhile is not missed
+		listen(preferencesService, user);
+		IlluminancePreference preference = IlluminancePreference.fromPropertyValue(
+				preferencesService.getUserPropertyValue(user, FollowMeImpl.USER_PROP_ILLUMINANCE));
+		preferences.putIfAbsent(user, new Entry(preference, false));
+		return preference;
+	}
+
+	/**
+	 * Restore the preference of a user saved by a snapshot, without reading
+	 * the Preferences service. The user is listened to as after a lookup, so a
+	 * later change replaces the restored value; a change made while the
+	 * component was stopped is found by verify.
+	 * 
+	 * @param preferencesService
+	 *            : the service to listen to
+	 * @param user
+	 *            : the name of the user
+	 * @param preference
+	 *            : the saved preference, null if the user had none
+	 */
+	public void restore(Preferences preferencesService, String user, IlluminancePreference preference) {
+		listen(preferencesService, user);
+		preferences.putIfAbsent(user, new Entry(preference, true));
+	}
+
+	/**
+	 * Check a preference restored from a snapshot against the Preferences
+	 * service, once. The observer is notified if it has changed meanwhile.
+	 * 
+	 * @param preferencesService
+	 *            : the service to read
+	 * @param user
+	 *            : the name of the user
+	 */
+	public void verify(Preferences preferencesService, String user) {
+		Entry entry = preferences.get(user);
+		if (entry == null || !entry.restored) {
+			return;
+		}
+		IlluminancePreference preference = IlluminancePreference.fromPropertyValue(
+				preferencesService.getUserPropertyValue(user, FollowMeImpl.USER_PROP_ILLUMINANCE));
+		// a change seen by the listener meanwhile wins over this reading
+		if (preferences.replace(user, entry, new Entry(preference, false)) && preference != entry.preference) {
+			observer.preferenceChanged(user);
+		}
+	}
+
+	/**
+	 * Return the cached preferences.
+	 * 
+	 * @return a copy of the cached preference of each user, null for a user
+	 *         without preference
+	 */
+	public Map<String, IlluminancePreference> getCachedPreferences() {
+		Map<String, IlluminancePreference> cached = new HashMap<String, IlluminancePreference>();
+		for (Map.Entry<String, Entry> entry : preferences.entrySet()) {
+			cached.put(entry.getKey(), entry.getValue().preference);
+		}
+		return cached;
+	}
+
+	private void listen(Preferences preferencesService, String user) {
+		if (!listeners.containsKey(user)) {
+			UserListener listener = new UserListener(user);
+			if (listeners.putIfAbsent(user, listener) == null) {
+				preferencesService.addUserPropertyListener(user, listener);
+			}
+		}
+	}
+
+	/**
+	 * Forget every cached preference.
+	 */
+	public void invalidateAll() {
+		preferences.clear();
+	}
+
+	/**
+	 * Forget every cached preference and unregister the listeners.
+	 * 
+	 * @param preferencesService
+	 *            : the service the listeners are registered on
+	 */
+	public void clear(Preferences preferencesService) {
+		for (Map.Entry<String, UserListener> listener : listeners.entrySet()) {
+			preferencesService.removeUserPropertyListener(listener.getKey(), listener.getValue());
+		}
+		listeners.clear();
+		preferences.clear();
+	}
+
+	/**
+	 * A cached preference
+	 */
+	private static class Entry {
+		private final IlluminancePreference preference;
+
+		/** Whether the preference comes from a snapshot and is not verified yet */
+		private final boolean restored;
+
+		Entry(IlluminancePreference preference, boolean restored) {
+			this.preference = preference;
+			this.restored = restored;
+		}
+	}
+
+	/**
+	 * The listener on the properties of one user
+	 */
+	private class UserListener implements PreferenceChangeListener {
+		private final String user;
+
+		UserListener(String user) {
+			this.user = user;
+		}
+
+		@Override
+		public void changedProperty(String property, Object oldValue, Object newValue) {
+			if (!FollowMeImpl.USER_PROP_ILLUMINANCE.equals(property)) {
+				return;
+			}
+			preferences.put(user, new Entry(IlluminancePreference.fromPropertyValue(newValue), false));
+			observer.preferenceChanged(user);
+		}
+	}
+}
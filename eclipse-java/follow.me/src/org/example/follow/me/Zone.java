@@ -0,0 +1,509 @@
+package org.example.follow.me;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+import fr.liglab.adele.icasa.device.light.BinaryLight;
+import fr.liglab.adele.icasa.device.light.DimmerLight;
+import fr.liglab.adele.icasa.device.presence.PresenceSensor;
+
+/**
+ * A Zone groups the devices which are located in the same room. Each zone has
+ * its own lock, so rooms are evaluated independently of each other: the
+ * device lists of a zone must only be read or modified while holding it.
+ */
+class Zone {
+
+	/** The location (zone id) of this zone */
+	private final String location;
+
+	/** The binary lights located in this zone */
+	private final List<BinaryLight> binaryLights = new ArrayList<BinaryLight>();
+
+	/** The dimmer lights located in this zone */
+	private final List<DimmerLight> dimmerLights = new ArrayList<DimmerLight>();
+
+	/** The presence sensors located in this zone */
+	private final List<PresenceSensor> presenceSensors = new ArrayList<PresenceSensor>();
+
+	/** The last known states of the devices above, by index */
+	private final List<DeviceState> binaryLightStates = new ArrayList<DeviceState>();
+	private final List<DeviceState> dimmerLightStates = new ArrayList<DeviceState>();
+	private final List<DeviceState> presenceSensorStates = new ArrayList<DeviceState>();
+
+	/** The presence sensed by each presence sensor, read without the lock */
+	private final PresenceBitSet presenceBits = new PresenceBitSet();
+
+	/** The number of presence sensors needed for a presence */
+	private volatile int presenceQuorum = 1;
+
+	/** The presence this zone is lit for, filtered from the sensed one */
+	private final PresenceFilter.State presenceState = new PresenceFilter.State();
+
+	/**
+	 * The allocations already solved for the current layout of this zone, by
+	 * goal
+	 */
+	private final Map<LightAllocation.Key, LightAllocation> allocations = new HashMap<LightAllocation.Key, LightAllocation>();
+
+	/**
+	 * The maximum number of allocations kept, the energy shared by the house
+	 * budget taking many values
+	 */
+	private static final int MAX_ALLOCATIONS = 64;
+
+	/** The lock guarding this zone */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Whether this zone is waiting for an evaluation */
+	private final AtomicBoolean dirty = new AtomicBoolean();
+
+	/**
+	 * The presence and the state of the lights commanded by the last
+	 * evaluation, unknown (null) until then and after a layout change
+	 */
+	private boolean expectedPresence;
+	private boolean[] expectedBinaryStates;
+	private double[] expectedDimmerLevels;
+
+	/**
+	 * The power drawn by all the lights of this zone, negative until computed
+	 * for the current layout
+	 */
+	private double maxPower = -1.0d;
+
+	/**
+	 * The time until which this zone is lit ahead of a predicted arrival, in
+	 * milliseconds
+	 */
+	private volatile long prelitUntil;
+
+	/** The time the zone has been marked dirty, in nanoseconds */
+	private volatile long dirtySince;
+
+	/** The number of evaluations of this zone */
+	private final AtomicLong evaluations = new AtomicLong();
+
+	/** The number of commands sent to the lights of this zone */
+	private final AtomicLong commands = new AtomicLong();
+
+	/** The number of drifts of this zone repaired */
+	private final AtomicLong driftRepairs = new AtomicLong();
+
+	/** The number of checks in a row finding this zone drifted, under the lock */
+	private int driftsInARow;
+
+	Zone(String location) {
+		this.location = location;
+	}
+
+	public void lock() {
+		lock.lock();
+	}
+
+	public void unlock() {
+		lock.unlock();
+	}
+
+	/**
+	 * Mark this zone as waiting for an evaluation.
+	 * 
+	 * @return true if it was not already waiting
+	 */
+	boolean markDirty() {
+		if (dirty.compareAndSet(false, true)) {
+			dirtySince = System.nanoTime();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Light this zone ahead of a predicted arrival.
+	 * 
+	 * @param until
+	 *            : the time the prediction expires, in milliseconds
+	 */
+	void prelight(long until) {
+		if (until > prelitUntil) {
+			prelitUntil = until;
+		}
+	}
+
+	/**
+	 * Tell whether this zone is lit ahead of a predicted arrival.
+	 * 
+	 * @param now
+	 *            : the current time in milliseconds
+	 * @return true if a prediction is running
+	 */
+	boolean isPrelit(long now) {
+		return prelitUntil > now;
+	}
+
+	/**
+	 * Tell whether the prediction lighting this zone has expired since.
+	 * 
+	 * @param now
+	 *            : the current time in milliseconds
+	 * @return true if the zone has been prelit and must now be checked
+	 */
+	boolean hasPrelightExpired(long now) {
+		return prelitUntil != 0L && prelitUntil <= now;
+	}
+
+	void clearPrelight() {
+		prelitUntil = 0L;
+	}
+
+	/**
+	 * Get the time of the first event since the last evaluation of this zone.
+	 * 
+	 * @return the time in nanoseconds, as given by System.nanoTime()
+	 */
+	long getDirtySince() {
+		return dirtySince;
+	}
+
+	/**
+	 * Count an evaluation of this zone.
+	 * 
+	 * @param commands
+	 *            : the number of commands sent by the evaluation
+	 */
+	void recordEvaluation(int commands) {
+		evaluations.incrementAndGet();
+		if (commands > 0) {
+			this.commands.addAndGet(commands);
+		}
+	}
+
+	public long getEvaluations() {
+		return evaluations.get();
+	}
+
+	public long getCommands() {
+		return commands.get();
+	}
+
+	/**
+	 * Count a check of the drift of this zone, under its lock.
+	 * 
+	 * @param drifted
+	 *            : whether the zone has drifted
+	 * @return the number of checks in a row finding the zone drifted, 0 if it
+	 *         has not
+	 */
+	int recordDriftCheck(boolean drifted) {
+		if (!drifted) {
+			driftsInARow = 0;
+			return 0;
+		}
+		driftRepairs.incrementAndGet();
+		return ++driftsInARow;
+	}
+
+	public long getDriftRepairs() {
+		return driftRepairs.get();
+	}
+
+	void resetStatistics() {
+		evaluations.set(0L);
+		commands.set(0L);
+		driftRepairs.set(0L);
+	}
+
+	void clearDirty() {
+		dirty.set(false);
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public List<BinaryLight> getBinaryLights() {
+		return binaryLights;
+	}
+
+	public List<DimmerLight> getDimmerLights() {
+		return dimmerLights;
+	}
+
+	public List<PresenceSensor> getPresenceSensors() {
+		return presenceSensors;
+	}
+
+	public List<DeviceState> getBinaryLightStates() {
+		return binaryLightStates;
+	}
+
+	public List<DeviceState> getDimmerLightStates() {
+		return dimmerLightStates;
+	}
+
+	/**
+	 * Get the presence last sensed by the presence sensors of this zone.
+	 * 
+	 * @return true if a quorum of them see someone, false if they do not or
+	 *         there is none
+	 */
+	public boolean getSensedPresence() {
+		return presenceBits.isPresent(presenceQuorum);
+	}
+
+	/**
+	 * Take the new sensed presence of one of the presence sensors of this
+	 * zone.
+	 * 
+	 * @param state
+	 *            : the state of the sensor
+	 * @return true if the presence sensed in this zone has changed
+	 */
+	boolean presenceSensed(DeviceState state) {
+		return presenceBits.update(state, presenceQuorum);
+	}
+
+	/**
+	 * @param quorum
+	 *            : the number of presence sensors needed for a presence
+	 */
+	void setPresenceQuorum(int quorum) {
+		presenceQuorum = Math.max(1, quorum);
+	}
+
+	PresenceFilter.State getPresenceState() {
+		return presenceState;
+	}
+
+	/**
+	 * Rebuild the presence bits after the presence sensors of this zone have
+	 * changed. The filtered presence restarts from the sensed one.
+	 */
+	private void presenceSensorsChanged() {
+		presenceBits.reset(presenceSensorStates);
+		presenceState.reset(getSensedPresence());
+	}
+
+	/**
+	 * Get the allocation of the lights of this zone reaching a goal, solving it
+	 * only the first time this goal is met since the last layout change.
+	 * 
+	 * @param targetedIlluminance
+	 *            : the targeted illuminance in lumens
+	 * @param maximumEnergy
+	 *            : the maximum energy allowed in Watt
+	 * @param maximumNumberOfLights
+	 *            : the maximum number of lights to turn on
+	 * @return the allocation
+	 */
+	public LightAllocation getAllocation(double targetedIlluminance, double maximumEnergy, int maximumNumberOfLights) {
+		LightAllocation.Key key = new LightAllocation.Key(targetedIlluminance, maximumEnergy, maximumNumberOfLights);
+		LightAllocation allocation = allocations.get(key);
+		if (allocation == null) {
+			if (allocations.size() >= MAX_ALLOCATIONS) {
+				allocations.clear();
+			}
+			allocation = LightAllocation.solve(maxPowers(binaryLightStates), maxPowers(dimmerLightStates),
+					targetedIlluminance, maximumEnergy, maximumNumberOfLights);
+			allocations.put(key, allocation);
+		}
+		return allocation;
+	}
+
+	private static double[] maxPowers(List<DeviceState> states) {
+		double[] maxPowers = new double[states.size()];
+		for (int i = 0; i < maxPowers.length; i++) {
+			maxPowers[i] = states.get(i).getMaxPower();
+		}
+		return maxPowers;
+	}
+
+	/**
+	 * Get the power drawn by all the lights of this zone at full level,
+	 * computed only once for each layout.
+	 * 
+	 * @return the power in Watt
+	 */
+	public double getMaxPower() {
+		if (maxPower < 0.0d) {
+			double power = 0.0d;
+			for (DeviceState state : binaryLightStates) {
+				power += state.getMaxPower();
+			}
+			for (DeviceState state : dimmerLightStates) {
+				power += state.getMaxPower();
+			}
+			maxPower = power;
+		}
+		return maxPower;
+	}
+
+	/**
+	 * Forget the allocations and the power of this zone after the maximum
+	 * power of one of its lights has changed.
+	 */
+	void maxPowerChanged() {
+		allocations.clear();
+		maxPower = -1.0d;
+	}
+
+	/**
+	 * Read the state of the devices of this zone again, after it has been
+	 * found drifted.
+	 */
+	void refreshStates() {
+		for (int i = 0; i < presenceSensors.size(); i++) {
+			presenceSensorStates.get(i).refresh(presenceSensors.get(i));
+		}
+		presenceBits.reset(presenceSensorStates);
+		for (int i = 0; i < binaryLights.size(); i++) {
+			binaryLightStates.get(i).refresh(binaryLights.get(i));
+		}
+		for (int i = 0; i < dimmerLights.size(); i++) {
+			dimmerLightStates.get(i).refresh(dimmerLights.get(i));
+		}
+	}
+
+	/**
+	 * Remember the state commanded by an evaluation.
+	 * 
+	 * @param presence
+	 *            : the presence the evaluation has seen
+	 * @param binaryStates
+	 *            : the states of the binary lights, by index
+	 * @param dimmerLevels
+	 *            : the levels of the dimmer lights, by index
+	 */
+	void setExpectedState(boolean presence, boolean[] binaryStates, double[] dimmerLevels) {
+		expectedPresence = presence;
+		expectedBinaryStates = binaryStates;
+		expectedDimmerLevels = dimmerLevels;
+	}
+
+	/**
+	 * Get the presence seen by the last evaluation.
+	 * 
+	 * @return true if the presence sensors of this zone saw someone
+	 */
+	boolean getExpectedPresence() {
+		return expectedPresence;
+	}
+
+	/**
+	 * Get the states of the binary lights commanded by the last evaluation.
+	 * 
+	 * @return the states by index, or null if unknown
+	 */
+	boolean[] getExpectedBinaryStates() {
+		return expectedBinaryStates;
+	}
+
+	/**
+	 * Get the levels of the dimmer lights commanded by the last evaluation.
+	 * 
+	 * @return the levels by index, or null if unknown
+	 */
+	double[] getExpectedDimmerLevels() {
+		return expectedDimmerLevels;
+	}
+
+	/**
+	 * Tell whether the devices of this zone no longer match the last
+	 * evaluation: one of its presence sensors or lights has changed without
+	 * the change being seen, or the zone has lights and has not been evaluated
+	 * since its layout changed.
+	 * 
+	 * @return true if this zone must be evaluated again
+	 */
+	boolean hasDrifted() {
+		if (expectedBinaryStates == null) {
+			return hasLights();
+		}
+		// an event missed by the state of a sensor
+		for (int i = 0; i < presenceSensors.size(); i++) {
+			if (presenceSensors.get(i).getSensedPresence() != presenceSensorStates.get(i).getSensedPresence()) {
+				return true;
+			}
+		}
+		for (int i = 0; i < expectedBinaryStates.length; i++) {
+			if (binaryLights.get(i).getPowerStatus() != expectedBinaryStates[i]) {
+				return true;
+			}
+		}
+		for (int i = 0; i < expectedDimmerLevels.length; i++) {
+			if (!DeviceState.isSameLevel(dimmerLights.get(i).getPowerLevel(), expectedDimmerLevels[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add a device to this zone according to its type.
+	 * 
+	 * @param device
+	 *            : the device placed in this zone
+	 * @param state
+	 *            : its last known state
+	 */
+	void add(GenericDevice device, DeviceState state) {
+		if (device instanceof PresenceSensor) {
+			presenceSensors.add((PresenceSensor) device);
+			presenceSensorStates.add(state);
+			presenceSensorsChanged();
+		} else if (device instanceof BinaryLight) {
+			binaryLights.add((BinaryLight) device);
+			binaryLightStates.add(state);
+		} else if (device instanceof DimmerLight) {
+			dimmerLights.add((DimmerLight) device);
+			dimmerLightStates.add(state);
+		}
+		allocations.clear();
+		maxPower = -1.0d;
+		expectedBinaryStates = null;
+		expectedDimmerLevels = null;
+	}
+
+	/**
+	 * Remove a device from this zone.
+	 * 
+	 * @param device
+	 *            : the device leaving this zone
+	 */
+	void remove(GenericDevice device) {
+		if (device instanceof PresenceSensor) {
+			remove(presenceSensors, presenceSensorStates, device);
+			presenceSensorsChanged();
+		} else if (device instanceof BinaryLight) {
+			remove(binaryLights, binaryLightStates, device);
+		} else if (device instanceof DimmerLight) {
+			remove(dimmerLights, dimmerLightStates, device);
+		}
+		allocations.clear();
+		maxPower = -1.0d;
+		expectedBinaryStates = null;
+		expectedDimmerLevels = null;
+	}
+
+	private static void remove(List<? extends GenericDevice> devices, List<DeviceState> states, GenericDevice device) {
+		int index = devices.indexOf(device);
+		if (index >= 0) {
+			devices.remove(index);
+			states.remove(index);
+		}
+	}
+
+	public boolean hasLights() {
+		return !binaryLights.isEmpty() || !dimmerLights.isEmpty();
+	}
+
+	public boolean isEmpty() {
+		return binaryLights.isEmpty() && dimmerLights.isEmpty() && presenceSensors.isEmpty();
+	}
+}
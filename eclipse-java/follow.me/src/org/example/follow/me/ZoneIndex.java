@@ -0,0 +1,210 @@
+package org.example.follow.me;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import fr.liglab.adele.icasa.device.GenericDevice;
+
+/**
+ * The ZoneIndex keeps, for each location, the devices currently placed in it.
+ * It is maintained by the bind/unbind callbacks and by the changes of the
+ * Location property, so the per-room lookups never scan the whole house.
+ * 
+ * Zones are never removed once created, and every change of a zone is made
+ * while holding its lock. A device moving between two zones takes both locks,
+ * always in the order of the location names to avoid dead locks.
+ */
+class ZoneIndex {
+
+	/** The zones, by location */
+	private final ConcurrentMap<String, Zone> zones = new ConcurrentHashMap<String, Zone>();
+
+	/** The location of each indexed device, by serial number */
+	private final ConcurrentMap<String, String> deviceLocations = new ConcurrentHashMap<String, String>();
+
+	/** The last known state of each indexed device, by serial number */
+	private final ConcurrentMap<String, DeviceState> deviceStates = new ConcurrentHashMap<String, DeviceState>();
+
+	/** The number of presence sensors needed for a presence in a zone */
+	private volatile int presenceQuorum = 1;
+
+	/**
+	 * Return the zone of the given location.
+	 * 
+	 * @param location
+	 *            : the given location
+	 * @return the zone, or null if no device has ever been placed there
+	 */
+	public Zone getZone(String location) {
+		return zones.get(location);
+	}
+
+	/**
+	 * Return the zone of the given location, creating it if needed.
+	 * 
+	 * @param location
+	 *            : the given location
+	 * @return the zone
+	 */
+	public Zone getOrCreateZone(String location) {
+		Zone zone = zones.get(location);
+		if (zone == null) {
+			Zone created = new Zone(location);
+			created.setPresenceQuorum(presenceQuorum);
+			zone = zones.putIfAbsent(location, created);
+			if (zone == null) {
+				zone = created;
+			}
+		}
+		return zone;
+	}
+
+	/**
+	 * Set the number of presence sensors needed for a presence in every zone.
+	 * 
+	 * @param quorum
+	 *            : the number of sensors, 1 for any of them
+	 */
+	public void setPresenceQuorum(int quorum) {
+		presenceQuorum = Math.max(1, quorum);
+		for (Zone zone : zones.values()) {
+			zone.setPresenceQuorum(presenceQuorum);
+		}
+	}
+
+	/**
+	 * Return the location the given device is indexed at.
+	 * 
+	 * @param device
+	 *            : the given device
+	 * @return its location, or null if the device is not indexed
+	 */
+	public String getLocation(GenericDevice device) {
+		return deviceLocations.get(device.getSerialNumber());
+	}
+
+	/**
+	 * Return the last known state of the given device.
+	 * 
+	 * @param device
+	 *            : the given device
+	 * @return its state, or null if the device is not indexed
+	 */
+	public DeviceState getState(GenericDevice device) {
+		return deviceStates.get(device.getSerialNumber());
+	}
+
+	public Collection<Zone> getZones() {
+		return zones.values();
+	}
+
+	/**
+	 * Index a device at the given location, reading its state once.
+	 * 
+	 * @param device
+	 *            : the device to index
+	 * @param location
+	 *            : its location
+	 * @return the state of the device
+	 */
+	public DeviceState add(GenericDevice device, String location) {
+		DeviceState state = DeviceState.read(device);
+		deviceStates.put(device.getSerialNumber(), state);
+		move(device, location);
+		return state;
+	}
+
+	/**
+	 * Remove a device from the index.
+	 * 
+	 * @param device
+	 *            : the device to remove
+	 * @return the location it was indexed at, or null
+	 */
+	public String remove(GenericDevice device) {
+		String serialNumber = device.getSerialNumber();
+		while (true) {
+			String location = deviceLocations.get(serialNumber);
+			if (location == null) {
+				return null;
+			}
+			Zone zone = getOrCreateZone(location);
+			zone.lock();
+			try {
+				if (deviceLocations.remove(serialNumber, location)) {
+					zone.remove(device);
+					deviceStates.remove(serialNumber);
+					return location;
+				}
+			} finally {
+				zone.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Move an indexed device to a new location. The device leaves its old zone
+	 * and joins the new one atomically.
+	 * 
+	 * @param device
+	 *            : the device which has moved
+	 * @param newLocation
+	 *            : its new location
+	 * @return the location it was indexed at before, or null
+	 */
+	public String move(GenericDevice device, String newLocation) {
+		String serialNumber = device.getSerialNumber();
+		DeviceState state = deviceStates.get(serialNumber);
+		if (state == null) {
+			// not indexed, or removed meanwhile
+			return null;
+		}
+		Zone newZone = getOrCreateZone(newLocation);
+		while (true) {
+			String oldLocation = deviceLocations.get(serialNumber);
+			Zone oldZone = (oldLocation == null) ? newZone : getOrCreateZone(oldLocation);
+			lockBoth(oldZone, newZone);
+			try {
+				// retry if the device has been moved meanwhile
+				String current = deviceLocations.get(serialNumber);
+				if (current == null ? oldLocation != null : !current.equals(oldLocation)) {
+					continue;
+				}
+				if (deviceStates.get(serialNumber) != state) {
+					return null;
+				}
+				if (oldLocation != null) {
+					oldZone.remove(device);
+				}
+				newZone.add(device, state);
+				deviceLocations.put(serialNumber, newLocation);
+				return oldLocation;
+			} finally {
+				unlockBoth(oldZone, newZone);
+			}
+		}
+	}
+
+	/**
+	 * Lock two zones, always in the same order.
+	 */
+	static void lockBoth(Zone first, Zone second) {
+		if (first == second) {
+			first.lock();
+		} else if (first.getLocation().compareTo(second.getLocation()) < 0) {
+			first.lock();
+			second.lock();
+		} else {
+			second.lock();
+			first.lock();
+		}
+	}
+
+	static void unlockBoth(Zone first, Zone second) {
+		first.unlock();
+		if (first != second) {
+			second.unlock();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.example.follow.me;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The ZoneOccupancy keeps which persons are in which zone. It is maintained
+ * from the PersonListener callbacks, so the evaluation of a room reads it in
+ * memory instead of querying the PersonLocationService; a periodic check
+ * repairs it against the service.
+ */
+class ZoneOccupancy {
+
+	/** The zone of each person */
+	private final ConcurrentMap<String, String> personZones = new ConcurrentHashMap<String, String>();
+
+	/** The persons in each zone */
+	private final ConcurrentMap<String, Set<String>> zonePersons = new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * Return the zone of every person.
+	 * 
+	 * @return a copy of the zone of each person
+	 */
+	public Map<String, String> getLocations() {
+		return new HashMap<String, String>(personZones);
+	}
+
+	/**
+	 * Return the persons in a zone.
+	 * 
+	 * @param location
+	 *            : the given zone
+	 * @return a read-only view of the persons in this zone
+	 */
+	public Set<String> getPersons(String location) {
+		Set<String> persons = zonePersons.get(location);
+		if (persons == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(persons);
+	}
+
+	/**
+	 * Return the zone of a person.
+	 * 
+	 * @param person
+	 *            : the name of the person
+	 * @return the zone, or null if the person is unknown
+	 */
+	public String getLocation(String person) {
+		return personZones.get(person);
+	}
+
+	/**
+	 * Record that a person is now in a zone.
+	 * 
+	 * @param person
+	 *            : the name of the person
+	 * @param location
+	 *            : the zone the person is in
+	 * @return the previous zone of the person, or null
+	 */
+	public synchronized String move(String person, String location) {
+		String oldLocation = personZones.put(person, location);
+		if (oldLocation != null && !oldLocation.equals(location)) {
+			personsOf(oldLocation).remove(person);
+		}
+		personsOf(location).add(person);
+		return oldLocation;
+	}
+
+	/**
+	 * Forget a person.
+	 * 
+	 * @param person
+	 *            : the name of the person
+	 * @return the zone the person was in, or null
+	 */
+	public synchronized String remove(String person) {
+		String oldLocation = personZones.remove(person);
+		if (oldLocation != null) {
+			personsOf(oldLocation).remove(person);
+		}
+		return oldLocation;
+	}
+
+	/**
+	 * Repair the persons of a zone with the ones actually located there.
+	 * 
+	 * @param location
+	 *            : the checked zone
+	 * @param actualPersons
+	 *            : the persons actually in this zone
+	 * @return the zones whose persons have changed, empty if the zone was
+	 *         consistent
+	 */
+	public synchronized Set<String> reconcile(String location, Set<String> actualPersons) {
+		Set<String> persons = personsOf(location);
+		if (persons.equals(actualPersons)) {
+			return Collections.emptySet();
+		}
+		Set<String> changedLocations = new HashSet<String>();
+		changedLocations.add(location);
+		for (String person : new HashSet<String>(persons)) {
+			if (!actualPersons.contains(person)) {
+				remove(person);
+			}
+		}
+		for (String person : actualPersons) {
+			String oldLocation = move(person, location);
+			if (oldLocation != null) {
+				changedLocations.add(oldLocation);
+			}
+		}
+		return changedLocations;
+	}
+
+	private Set<String> personsOf(String location) {
+		Set<String> persons = zonePersons.get(location);
+		if (persons == null) {
+			Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			persons = zonePersons.putIfAbsent(location, created);
+			if (persons == null) {
+				persons = created;
+			}
+		}
+		return persons;
+	}
+}
@@ -0,0 +1,174 @@
+package org.example.follow.me;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.example.follow.me.FollowMeStatistics.EventType;
+
+/**
+ * The ZoneScheduler decouples the iCasa callbacks from the evaluation of the
+ * rooms of a house. A callback only marks a zone as dirty and enqueues it
+ * once on a shard of the engine; the worker of the shard evaluates each dirty
+ * zone a single time, however many events arrived for it in the meantime.
+ * The houses of the process share the workers of the engine.
+ */
+class ZoneScheduler {
+
+	/**
+	 * The evaluation run by the workers for each dirty zone
+	 */
+	interface ZoneEvaluator {
+		/**
+		 * Evaluate a zone.
+		 * 
+		 * @param zone
+		 *            : the zone to evaluate
+		 * @param dirtySince
+		 *            : the time of the first event since the last evaluation,
+		 *            as given by System.nanoTime(), 0 if the evaluation does
+		 *            not follow an event
+		 * @return the number of commands sent to its lights
+		 */
+		int evaluate(Zone zone, long dirtySince);
+	}
+
+	/** The shards the dirty zones wait in */
+	private final FollowMeEngine engine;
+
+	/** The evaluation of a zone */
+	private final ZoneEvaluator evaluator;
+
+	/** The logger reporting the failed evaluations */
+	private final FollowMeLogger logger;
+
+	/** The statistics counting the zones overflowing their shard */
+	private final FollowMeStatistics statistics;
+
+	/** The hash of the house, routing its zones to the shards */
+	private volatile int houseHash;
+
+	/** Whether the zones are evaluated; the zones met while stopped are dropped */
+	private volatile boolean running;
+
+	/** The number of zones submitted and not evaluated yet */
+	private final AtomicInteger pendingZones = new AtomicInteger();
+
+	ZoneScheduler(FollowMeEngine engine, ZoneEvaluator evaluator, FollowMeLogger logger,
+			FollowMeStatistics statistics) {
+		this.engine = engine;
+		this.evaluator = evaluator;
+		this.logger = logger;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * @param houseId
+	 *            : the house the zones belong to, may be null
+	 */
+	public void setHouseId(String houseId) {
+		houseHash = houseId == null ? 0 : houseId.hashCode();
+	}
+
+	int getHouseHash() {
+		return houseHash;
+	}
+
+	/**
+	 * Mark a zone as dirty. The zone is enqueued only if it is not already
+	 * waiting for an evaluation. When its shard is full, the zone waits in the
+	 * overflow of the shard, so no change is ever lost and the calling thread
+	 * never evaluates it.
+	 * 
+	 * @param zone
+	 *            : the zone to evaluate
+	 */
+	public void submit(Zone zone) {
+		if (zone == null || !running || !zone.markDirty()) {
+			return;
+		}
+		pendingZones.incrementAndGet();
+		if (!engine.offer(this, zone)) {
+			statistics.event(EventType.SHARD_OVERFLOW);
+		}
+	}
+
+	/**
+	 * Evaluate the zones submitted from now on, the threads of the engine
+	 * being started with the first house. The zones submitted before are
+	 * evaluated by the start of the component.
+	 */
+	public synchronized void start() {
+		if (!running) {
+			engine.start();
+			running = true;
+		}
+	}
+
+	/**
+	 * Stop evaluating the zones. The zones still waiting in the shards are
+	 * dropped; the start of the component evaluates all of them again.
+	 */
+	public synchronized void stop() {
+		if (running) {
+			running = false;
+			engine.cancel(this);
+			engine.stop();
+		}
+	}
+
+	/**
+	 * Wait until every submitted zone has been evaluated.
+	 * 
+	 * @param timeoutMillis
+	 *            : the maximum time to wait
+	 * @return true if no zone is waiting any more
+	 */
+	public boolean awaitQuiescence(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while (pendingZones.get() > 0) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			LockSupport.parkNanos(20000L);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Forget a zone removed from its shard without being evaluated.
+	 * 
+	 * @param zone
+	 *            : the dirty zone
+	 */
+	void drop(Zone zone) {
+		zone.clearDirty();
+		pendingZones.decrementAndGet();
+	}
+
+	/**
+	 * Evaluate a zone taken from its shard.
+	 * 
+	 * @param zone
+	 *            : the dirty zone
+	 */
+	void evaluate(Zone zone) {
+		// cleared before the evaluation, so an event arriving meanwhile
+		// enqueues the zone again instead of being lost
+		long dirtySince = zone.getDirtySince();
+		zone.clearDirty();
+		try {
+			if (running) {
+				evaluator.evaluate(zone, dirtySince);
+			}
+		} catch (RuntimeException e) {
+			if (logger.isErrorEnabled()) {
+				logger.error("The evaluation of the room " + zone.getLocation() + " failed", e);
+			}
+		} finally {
+			pendingZones.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.example.follow.me.configuration;
+
+/**
+ * The periods over which the energy consumed by the lights is reported.
+ */
+public enum EnergyWindow {
+
+    /** The last minute, by one second steps. */
+    LAST_MINUTE(1000L, 60),
+    /** The last hour, by one minute steps. */
+    LAST_HOUR(60000L, 60),
+    /** The last day, by one hour steps. */
+    LAST_DAY(3600000L, 24),
+    /** Since the start of the application. */
+    TOTAL(0L, 0);
+
+    /** The duration of a step in milliseconds. */
+    private final long stepMillis;
+
+    /** The number of steps of the window. */
+    private final int numberOfSteps;
+
+    private EnergyWindow(long stepMillis, int numberOfSteps) {
+        this.stepMillis = stepMillis;
+        this.numberOfSteps = numberOfSteps;
+    }
+
+    public long getStepMillis() {
+        return stepMillis;
+    }
+
+    public int getNumberOfSteps() {
+        return numberOfSteps;
+    }
+}
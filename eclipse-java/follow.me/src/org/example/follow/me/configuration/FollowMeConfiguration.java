@@ -52,7 +52,54 @@ public interface FollowMeConfiguration {
      *       the targeted illuminance in lumens for each room
      */
     public void setTargetedIlluminance(double illuminance);
-    
+
+    /**
+     * Gets the current settings, as one consistent snapshot
+     * 
+     * @return the current settings and their version
+     */
+    public FollowMeSettings getSettings();
+
+    /**
+     * Applies several settings at once. The rooms are evaluated once with
+     * the new settings, never with only part of them. The settings must be
+     * derived from the current ones and keep their version: if the settings
+     * have changed meanwhile, nothing is applied and the current settings are
+     * returned, so the caller derives its change from them again instead of
+     * overwriting the other change.
+     * 
+     * @param settings
+     *            the new settings, with the version they are derived from
+     * @return the settings applied, with their new version, or the current
+     *         settings if the given ones are not derived from them
+     */
+    public FollowMeSettings applySettings(FollowMeSettings settings);
+
+    /**
+     * Runs several changes of the user preferences as one batch: the rooms
+     * affected by the changes are evaluated once, when the batch ends,
+     * instead of once per change.
+     * 
+     * @param changes
+     *            the changes to run, on the calling thread
+     */
+    public void runInBatch(Runnable changes);
+
+    /**
+     * Sets the presence times of a room: a presence shorter than the
+     * debounce is ignored, and the room stays lit for the hold-off after the
+     * presence drops.
+     * 
+     * @param location
+     *            the room
+     * @param debounce
+     *            the debounce in milliseconds, negative to use the one of the
+     *            house
+     * @param holdOff
+     *            the hold-off in milliseconds, negative to use the one of the
+     *            house
+     */
+    public void setPresenceTimes(String location, long debounce, long holdOff);
 
 }
 
@@ -0,0 +1,29 @@
+package org.example.follow.me.configuration;
+
+/**
+ * The FollowMeDiagnostics service exposes the runtime statistics of the
+ * Follow Me application and allows one to repair the state of its rooms.
+ */
+public interface FollowMeDiagnostics {
+
+    /**
+     * Gets a report of the events received, of the evaluations of each room
+     * and of the latencies measured since the last reset.
+     * 
+     * @return the statistics report, one value per line
+     */
+    public String getStatisticsReport();
+
+    /**
+     * Resets every statistic to zero.
+     */
+    public void resetStatistics();
+
+    /**
+     * Re-evaluates every room of the house at once, for instance after lost
+     * events.
+     * 
+     * @return the summary of the reconciliation
+     */
+    public ReconciliationSummary reconcile();
+}
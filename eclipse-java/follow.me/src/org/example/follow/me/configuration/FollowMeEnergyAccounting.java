@@ -0,0 +1,47 @@
+package org.example.follow.me.configuration;
+
+import java.util.Set;
+
+/**
+ * The FollowMeEnergyAccounting service reports the power drawn and the energy
+ * consumed by the lights managed by the Follow Me application, for each
+ * device, each room and the whole house.
+ */
+public interface FollowMeEnergyAccounting {
+
+    /**
+     * Gets the power currently drawn by the lights of a room
+     * 
+     * @param location
+     *            the room, or null for the whole house
+     * @return the power in Watts
+     */
+    public double getPower(String location);
+
+    /**
+     * Gets the energy consumed by the lights of a room over a period
+     * 
+     * @param location
+     *            the room, or null for the whole house
+     * @param window
+     *            the period
+     * @return the energy in Watt-hours
+     */
+    public double getEnergy(String location, EnergyWindow window);
+
+    /**
+     * Gets the energy consumed by a light since the start of the application
+     * 
+     * @param serialNumber
+     *            the serial number of the light
+     * @return the energy in Watt-hours, 0 for an unknown light
+     */
+    public double getDeviceEnergy(String serialNumber);
+
+    /**
+     * Gets the rooms having consumed energy
+     * 
+     * @return the locations of the rooms
+     */
+    public Set<String> getAccountedLocations();
+}
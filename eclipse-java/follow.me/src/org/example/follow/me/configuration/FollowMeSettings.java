@@ -0,0 +1,139 @@
+package org.example.follow.me.configuration;
+
+/**
+ * A FollowMeSettings is an immutable snapshot of the configuration of the
+ * Follow Me application. Several goals are changed at once by building new
+ * settings and applying them in a single call, so the rooms never see a half
+ * applied configuration.
+ */
+public final class FollowMeSettings {
+
+    private final int maximumNumberOfLightsToTurnOn;
+
+    private final double maximumAllowedEnergyInRoom;
+
+    private final double targetedIlluminance;
+
+    /**
+     * The power budget of the whole house in Watts, shared among the occupied
+     * rooms; 0 when each room has its own maximum allowed energy
+     */
+    private final double houseEnergyBudget;
+
+    /** The version of the configuration, incremented at each change */
+    private final long version;
+
+    /**
+     * Creates new settings, not applied yet.
+     * 
+     * @param maximumNumberOfLightsToTurnOn
+     *            the maximum number of lights to turn on in each room
+     * @param maximumAllowedEnergyInRoom
+     *            the maximum allowed energy consumption in Watts in each room
+     * @param targetedIlluminance
+     *            the targeted illuminance in lumens in each room
+     */
+    public FollowMeSettings(int maximumNumberOfLightsToTurnOn, double maximumAllowedEnergyInRoom,
+            double targetedIlluminance) {
+        this(maximumNumberOfLightsToTurnOn, maximumAllowedEnergyInRoom, targetedIlluminance, 0.0d, 0L);
+    }
+
+    private FollowMeSettings(int maximumNumberOfLightsToTurnOn, double maximumAllowedEnergyInRoom,
+            double targetedIlluminance, double houseEnergyBudget, long version) {
+        this.maximumNumberOfLightsToTurnOn = maximumNumberOfLightsToTurnOn;
+        this.maximumAllowedEnergyInRoom = maximumAllowedEnergyInRoom;
+        this.targetedIlluminance = targetedIlluminance;
+        this.houseEnergyBudget = houseEnergyBudget;
+        this.version = version;
+    }
+
+    public int getMaximumNumberOfLightsToTurnOn() {
+        return maximumNumberOfLightsToTurnOn;
+    }
+
+    public double getMaximumAllowedEnergyInRoom() {
+        return maximumAllowedEnergyInRoom;
+    }
+
+    public double getTargetedIlluminance() {
+        return targetedIlluminance;
+    }
+
+    /**
+     * Gets the power budget of the whole house. When it is set, the budget is
+     * shared among the occupied rooms by their occupancy and the preferences
+     * of their users, and the maximum allowed energy of a room is not used.
+     * 
+     * @return the budget in Watts, or 0 if each room has its own maximum
+     */
+    public double getHouseEnergyBudget() {
+        return houseEnergyBudget;
+    }
+
+    public boolean isHouseBudgetMode() {
+        return houseEnergyBudget > 0.0d;
+    }
+
+    /**
+     * Gets the version of these settings. Settings built by the caller have
+     * the version 0 until they are applied.
+     * 
+     * @return the version of the configuration
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public FollowMeSettings withMaximumNumberOfLightsToTurnOn(int maximumNumberOfLightsToTurnOn) {
+        return new FollowMeSettings(maximumNumberOfLightsToTurnOn, maximumAllowedEnergyInRoom, targetedIlluminance,
+                houseEnergyBudget, version);
+    }
+
+    public FollowMeSettings withMaximumAllowedEnergyInRoom(double maximumAllowedEnergyInRoom) {
+        return new FollowMeSettings(maximumNumberOfLightsToTurnOn, maximumAllowedEnergyInRoom, targetedIlluminance,
+                houseEnergyBudget, version);
+    }
+
+    public FollowMeSettings withTargetedIlluminance(double targetedIlluminance) {
+        return new FollowMeSettings(maximumNumberOfLightsToTurnOn, maximumAllowedEnergyInRoom, targetedIlluminance,
+                houseEnergyBudget, version);
+    }
+
+    public FollowMeSettings withHouseEnergyBudget(double houseEnergyBudget) {
+        return new FollowMeSettings(maximumNumberOfLightsToTurnOn, maximumAllowedEnergyInRoom, targetedIlluminance,
+                houseEnergyBudget, version);
+    }
+
+    /**
+     * Gets a copy of these settings with another version.
+     * 
+     * @param version
+     *            the version of the configuration
+     * @return the settings with this version
+     */
+    public FollowMeSettings withVersion(long version) {
+        return new FollowMeSettings(maximumNumberOfLightsToTurnOn, maximumAllowedEnergyInRoom, targetedIlluminance,
+                houseEnergyBudget, version);
+    }
+
+    /**
+     * Tells whether other settings have the same goals, whatever their version.
+     * 
+     * @param other
+     *            the other settings
+     * @return true if both settings have the same goals
+     */
+    public boolean hasSameGoals(FollowMeSettings other) {
+        return other.maximumNumberOfLightsToTurnOn == maximumNumberOfLightsToTurnOn
+                && other.maximumAllowedEnergyInRoom == maximumAllowedEnergyInRoom
+                && other.targetedIlluminance == targetedIlluminance
+                && other.houseEnergyBudget == houseEnergyBudget;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " {maximumNumberOfLightsToTurnOn=" + maximumNumberOfLightsToTurnOn
+                + ", maximumAllowedEnergyInRoom=" + maximumAllowedEnergyInRoom + ", targetedIlluminance="
+                + targetedIlluminance + ", houseEnergyBudget=" + houseEnergyBudget + "}";
+    }
+}
@@ -0,0 +1,65 @@
+package org.example.follow.me.configuration;
+
+/**
+ * A ReconciliationSummary describes a re-evaluation of every room of the
+ * house.
+ */
+public final class ReconciliationSummary {
+
+    private final int evaluatedRooms;
+
+    private final int changedRooms;
+
+    private final long commands;
+
+    private final long elapsedNanos;
+
+    public ReconciliationSummary(int evaluatedRooms, int changedRooms, long commands, long elapsedNanos) {
+        this.evaluatedRooms = evaluatedRooms;
+        this.changedRooms = changedRooms;
+        this.commands = commands;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the number of rooms evaluated
+     * 
+     * @return the number of rooms evaluated
+     */
+    public int getEvaluatedRooms() {
+        return evaluatedRooms;
+    }
+
+    /**
+     * Gets the number of rooms whose lights have been changed
+     * 
+     * @return the number of rooms changed
+     */
+    public int getChangedRooms() {
+        return changedRooms;
+    }
+
+    /**
+     * Gets the number of commands sent to the lights
+     * 
+     * @return the number of device commands
+     */
+    public long getCommands() {
+        return commands;
+    }
+
+    /**
+     * Gets the time taken by the reconciliation
+     * 
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return evaluatedRooms + " rooms evaluated, " + changedRooms + " rooms changed, " + commands
+                + " commands sent in " + String.format("%.3f", elapsedNanos / 1000000.0d) + "ms";
+    }
+}